@@ -0,0 +1,135 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Latency of reads by id while another thread keeps selling books, for each
+ * {@link BookDbHelper.StorageProfile}. It runs on a device, where a database in write-ahead
+ * logging mode gives the reading thread its own connection; on the JVM, Robolectric runs every
+ * SQLite call on a single thread, so readers never run alongside the writer there.
+ * <p>
+ * The results are logged under {@link #LOG_TAG}. Run it with, for 100k books:
+ * <pre>
+ * ./gradlew :app:connectedAndroidTest \
+ *         -Pandroid.testInstrumentationRunnerArguments.class=com.example.android.project9inventoryappstage2.data.StorageProfileBenchmark \
+ *         -Pandroid.testInstrumentationRunnerArguments.benchmarkSize=100000
+ * </pre>
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class StorageProfileBenchmark {
+
+    public static final String LOG_TAG = StorageProfileBenchmark.class.getSimpleName();
+
+    private static final int READS = 2000;
+
+    @Test
+    public void readLatencyUnderWrites() throws InterruptedException {
+        Context context = InstrumentationRegistry.getTargetContext();
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        int size = Integer.parseInt(arguments.getString("benchmarkSize", "10000"));
+
+        for (BookDbHelper.StorageProfile profile : BookDbHelper.StorageProfile.values()) {
+            String name = "benchmark-" + profile.name().toLowerCase(Locale.US) + ".db";
+            context.deleteDatabase(name);
+            BookDbHelper helper = new BookDbHelper(context, name, profile);
+            final SQLiteDatabase database = helper.getWritableDatabase();
+            try {
+                final long[] ids = fill(database, size);
+                final AtomicBoolean writing = new AtomicBoolean(true);
+                Thread writer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Random random = new Random(7);
+                        while (writing.get()) {
+                            long id = ids[0] + (long) (random.nextDouble() * (ids[1] - ids[0] + 1));
+                            database.execSQL("UPDATE " + BookContract.BookEntry.TABLE_NAME + " SET "
+                                    + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " = "
+                                    + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " + 1 WHERE "
+                                    + BookContract.BookEntry._ID + " = ?", new Object[]{id});
+                        }
+                    }
+                });
+                writer.start();
+                long[] latencies = new long[READS];
+                try {
+                    Random random = new Random(42);
+                    for (int i = 0; i < READS; i++) {
+                        long id = ids[0] + (long) (random.nextDouble() * (ids[1] - ids[0] + 1));
+                        long start = System.nanoTime();
+                        Cursor cursor = database.query(BookContract.BookEntry.TABLE_NAME, null,
+                                BookContract.BookEntry._ID + "=?", new String[]{String.valueOf(id)},
+                                null, null, null);
+                        try {
+                            cursor.moveToFirst();
+                        } finally {
+                            cursor.close();
+                        }
+                        latencies[i] = System.nanoTime() - start;
+                    }
+                } finally {
+                    writing.set(false);
+                    writer.join();
+                }
+
+                Arrays.sort(latencies);
+                Log.i(LOG_TAG, String.format(Locale.US,
+                        "{\"operation\": \"read_under_writes_%s\", \"size\": %d, \"p50Micros\": %.1f, "
+                                + "\"p99Micros\": %.1f}",
+                        profile.name().toLowerCase(Locale.US), size,
+                        latencies[READS / 2] / 1e3, latencies[READS * 99 / 100] / 1e3));
+            } finally {
+                helper.close();
+                context.deleteDatabase(name);
+            }
+        }
+    }
+
+    /**
+     * Fill the database with the given number of books, and return the first and last ids.
+     */
+    private static long[] fill(SQLiteDatabase database, int size) {
+        ContentValues supplier = new ContentValues();
+        supplier.put(BookContract.SupplierEntry.COLUMN_SUPPLIER_NAME, "Supplier");
+        supplier.put(BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE, "0212240130");
+        long supplierId = database.insert(BookContract.SupplierEntry.TABLE_NAME, null, supplier);
+
+        long[] ids = new long[2];
+        database.beginTransaction();
+        try {
+            for (int i = 0; i < size; i++) {
+                ContentValues row = new ContentValues();
+                row.put(BookContract.BookEntry.COLUMN_BOOK_TITLE, "Title " + i);
+                row.put(BookContract.BookEntry.COLUMN_BOOK_AUTHOR, "Author " + i % 1000);
+                row.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, 1 + i % 50);
+                row.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, 100);
+                row.put(BookContract.BookEntry.COLUMN_SUPPLIER_ID, supplierId);
+                long id = database.insert(BookContract.BookEntry.TABLE_NAME, null, row);
+                if (i == 0) {
+                    ids[0] = id;
+                }
+                ids[1] = id;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,458 @@
+package com.example.android.project9inventoryappstage2;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.v4.util.LongSparseArray;
+import android.support.v7.widget.RecyclerView;
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.example.android.project9inventoryappstage2.data.BookCatalog;
+import com.example.android.project9inventoryappstage2.data.BookContract;
+import com.example.android.project9inventoryappstage2.data.BookWriter;
+
+import java.text.NumberFormat;
+import java.util.List;
+
+/**
+ * {@link BookAdapter} is a {@link RecyclerView} adapter that uses a {@link Cursor} of book data
+ * as its data source. Rows are identified by their book id, which the adapter reports as a
+ * stable id.
+ * <p>
+ * Each cursor is copied once into a {@link BookCatalog}, which the rows are bound from. The
+ * views of a row are cached in its {@link BookViewHolder}, and a single click listener serves
+ * every row. Binding a row copies its title and quantity into buffers of the holder and reuses
+ * the formatted prices, so that it does not allocate.
+ */
+public class BookAdapter extends RecyclerView.Adapter<BookAdapter.BookViewHolder> {
+
+    /**
+     * Payload for a row where only the quantity changed.
+     */
+    static final Object PAYLOAD_QUANTITY = new Object();
+
+    /**
+     * Formatted prices kept for the binds. The cache is emptied when it grows past this size.
+     */
+    private static final int MAX_PRICE_TEXTS = 512;
+
+    /**
+     * Called when the user clicks on a book, outside of its sell button.
+     */
+    public interface OnBookClickListener {
+        void onBookClick(long id);
+    }
+
+    private final NumberFormat mPriceFormat = NumberFormat.getCurrencyInstance();
+    private final SparseArray<String> mPriceTexts = new SparseArray<>();
+    private final OnBookClickListener mBookClickListener;
+    private Cursor mCursor;
+
+    /**
+     * The books of the cursor.
+     */
+    private BookCatalog mBooks;
+
+    /**
+     * Books changed since the cursor was loaded, by id. They take precedence over the cursor.
+     * A book is dropped when a new cursor holds other values for it, or other books.
+     */
+    private final LongSparseArray<Book> mUpdatedBooks = new LongSparseArray<>();
+
+    /**
+     * Shared by all the rows: the clicked view is tagged with its {@link BookViewHolder}.
+     */
+    private final View.OnClickListener mClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            BookViewHolder holder = (BookViewHolder) v.getTag();
+            long id = holder.getItemId();
+            if (id == RecyclerView.NO_ID) {
+                return;
+            }
+            if (v == holder.mSellImageView) {
+                sellBook(v.getContext(), id);
+            } else if (mBookClickListener != null) {
+                mBookClickListener.onBookClick(id);
+            }
+        }
+    };
+
+    /**
+     * Constructs a new {@link BookAdapter}.
+     *
+     * @param listener Called when a book is clicked
+     */
+    public BookAdapter(OnBookClickListener listener) {
+        mBookClickListener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Replace the cursor. The old cursor is returned and not closed.
+     * When the new cursor starts with the same books as the old one, only the rows that changed
+     * are rebound, and the rows where only the quantity changed get a {@link #PAYLOAD_QUANTITY}.
+     */
+    public Cursor swapCursor(Cursor cursor) {
+        Cursor oldCursor = mCursor;
+        if (cursor == oldCursor) {
+            return null;
+        }
+
+        mCursor = cursor;
+        setBooks(cursor == null ? null : BookCatalog.from(cursor));
+        return oldCursor;
+    }
+
+    /**
+     * Show the given books rather than the rows of a cursor, e.g. the results of a search.
+     * The old cursor is returned and not closed.
+     */
+    public Cursor swapBooks(BookCatalog books) {
+        Cursor oldCursor = mCursor;
+        mCursor = null;
+        setBooks(books);
+        return oldCursor;
+    }
+
+    /**
+     * Show the given books, which start with the books shown, e.g. with the next page appended.
+     * Only the added rows are notified, the shown ones are not compared.
+     */
+    void appendBooks(BookCatalog books) {
+        int oldCount = getItemCount();
+        mCursor = null;
+        mBooks = books;
+        notifyItemRangeInserted(oldCount, books.size() - oldCount);
+    }
+
+    /**
+     * Show the given books, which are the books shown with the given book removed from one
+     * position and added at another, e.g. when it moved in a sorted list. Only these rows are
+     * notified, and the in-place updates of the other books are kept.
+     *
+     * @param from position of the book in the shown books, or -1 if it was not shown
+     * @param to   position of the book in the given books, or -1 if it is no longer shown
+     */
+    void moveBook(BookCatalog books, long id, int from, int to) {
+        mCursor = null;
+        mBooks = books;
+        mUpdatedBooks.remove(id);
+        if (from != -1 && to != -1) {
+            if (from != to) {
+                notifyItemMoved(from, to);
+            }
+            notifyItemChanged(to);
+        } else if (from != -1) {
+            notifyItemRemoved(from);
+        } else if (to != -1) {
+            notifyItemInserted(to);
+        }
+    }
+
+    /**
+     * Return the books shown, or null if there are none.
+     */
+    BookCatalog getBooks() {
+        return mBooks;
+    }
+
+    private void setBooks(BookCatalog books) {
+        BookCatalog oldBooks = mBooks;
+        mBooks = books;
+        if (oldBooks != null && mBooks != null && sameBooks(oldBooks, mBooks)) {
+            keepUpdatedBooks(oldBooks, mBooks);
+            notifyRowChanges(oldBooks, mBooks);
+        } else {
+            mUpdatedBooks.clear();
+            notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Keep the in-place updates of the books that the new catalogue still holds with the old
+     * values, e.g. when a page is only appended to the same page rows. The books read again
+     * since, with new values, are up to date without them.
+     */
+    private void keepUpdatedBooks(BookCatalog oldBooks, BookCatalog books) {
+        for (int i = mUpdatedBooks.size() - 1; i >= 0; i--) {
+            int position = oldBooks.indexOf(mUpdatedBooks.keyAt(i));
+            if (position == -1 || position >= books.size()
+                    || !oldBooks.sameDetails(position, books, position)
+                    || oldBooks.getQuantity(position) != books.getQuantity(position)) {
+                mUpdatedBooks.removeAt(i);
+            }
+        }
+    }
+
+    /**
+     * Return true if the rows the two catalogues have in common are the same books in the same order.
+     */
+    private static boolean sameBooks(BookCatalog oldBooks, BookCatalog books) {
+        int count = Math.min(oldBooks.size(), books.size());
+        for (int position = 0; position < count; position++) {
+            if (oldBooks.getId(position) != books.getId(position)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Notify the rows that changed between two catalogues holding the same books, then the rows
+     * added or removed at the end.
+     */
+    private void notifyRowChanges(BookCatalog oldBooks, BookCatalog books) {
+        int oldCount = oldBooks.size();
+        int newCount = books.size();
+        int count = Math.min(oldCount, newCount);
+        for (int position = 0; position < count; position++) {
+            if (!oldBooks.sameDetails(position, books, position)) {
+                notifyItemChanged(position);
+            } else if (oldBooks.getQuantity(position) != books.getQuantity(position)) {
+                notifyItemChanged(position, PAYLOAD_QUANTITY);
+            }
+        }
+        if (newCount > oldCount) {
+            notifyItemRangeInserted(oldCount, newCount - oldCount);
+        } else if (newCount < oldCount) {
+            notifyItemRangeRemoved(newCount, oldCount - newCount);
+        }
+    }
+
+    /**
+     * Apply a change to a single book in place, without reloading the cursor.
+     *
+     * @param cursor Positioned on the new values of the book, with the same columns as the
+     *               adapter's cursor
+     * @return false if the book is not in the adapter
+     */
+    public boolean updateBook(long id, Cursor cursor) {
+        int position = mBooks == null ? -1 : mBooks.indexOf(id);
+        if (position == -1) {
+            return false;
+        }
+        Book book = new Book(
+                cursor.getString(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_TITLE)),
+                cursor.getString(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_AUTHOR)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_PRICE)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_QUANTITY)));
+        Book oldBook = bookAt(position);
+        mUpdatedBooks.put(id, book);
+
+        if (book.mPrice == oldBook.mPrice && equals(book.mTitle, oldBook.mTitle)
+                && equals(book.mAuthor, oldBook.mAuthor)) {
+            if (book.mQuantity != oldBook.mQuantity) {
+                notifyItemChanged(position, PAYLOAD_QUANTITY);
+            }
+        } else {
+            notifyItemChanged(position);
+        }
+        return true;
+    }
+
+    /**
+     * Return the book at the given position, taking the in-place updates into account.
+     */
+    private Book bookAt(int position) {
+        Book book = mUpdatedBooks.get(mBooks.getId(position));
+        if (book != null) {
+            return book;
+        }
+        return new Book(mBooks.getTitle(position), mBooks.getAuthor(position),
+                mBooks.getPrice(position), mBooks.getQuantity(position));
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    public Cursor getCursor() {
+        return mCursor;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mBooks == null ? 0 : mBooks.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        if (mBooks == null || position < 0 || position >= mBooks.size()) {
+            return RecyclerView.NO_ID;
+        }
+        return mBooks.getId(position);
+    }
+
+    @NonNull
+    @Override
+    public BookViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        // Inflate a list item view using the layout specified in list_item.xml
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item, parent, false);
+        BookViewHolder holder = new BookViewHolder(view);
+        view.setTag(holder);
+        view.setOnClickListener(mClickListener);
+        holder.mSellImageView.setTag(holder);
+        holder.mSellImageView.setOnClickListener(mClickListener);
+        return holder;
+    }
+
+    /**
+     * This method binds the book data (in the row at the given position) to the given holder.
+     */
+    @Override
+    public void onBindViewHolder(@NonNull BookViewHolder holder, int position) {
+        if (position >= getItemCount()) {
+            return;
+        }
+        if (mUpdatedBooks.size() > 0) {
+            Book book = mUpdatedBooks.get(mBooks.getId(position));
+            if (book != null) {
+                holder.mTitleTextView.setText(book.mTitle);
+                holder.mAuthorTextView.setText(book.mAuthor);
+                holder.mPriceTextView.setText(formatPrice(book.mPrice));
+                bindQuantity(holder, book.mQuantity);
+                return;
+            }
+        }
+        copyToHolder(holder, position);
+        holder.mTitleTextView.setText(holder.mTitleBuffer.data, 0, holder.mTitleBuffer.sizeCopied);
+        holder.mAuthorTextView.setText(holder.mAuthor);
+        holder.mPriceTextView.setText(holder.mPriceText);
+        bindQuantity(holder, mBooks.getQuantity(position));
+    }
+
+    /**
+     * Copy the texts of the book at the given position into the holder. The title is copied
+     * into the holder's buffer and the author and price are shared strings, so nothing is
+     * allocated once the price is cached.
+     */
+    private void copyToHolder(BookViewHolder holder, int position) {
+        mBooks.copyTitleToBuffer(position, holder.mTitleBuffer);
+        holder.mAuthor = mBooks.getAuthor(position);
+        holder.mPriceText = formatPrice(mBooks.getPrice(position));
+    }
+
+    private String formatPrice(int price) {
+        String text = mPriceTexts.get(price);
+        if (text == null) {
+            if (mPriceTexts.size() >= MAX_PRICE_TEXTS) {
+                mPriceTexts.clear();
+            }
+            text = mPriceFormat.format(price);
+            mPriceTexts.put(price, text);
+        }
+        return text;
+    }
+
+    /**
+     * Write the decimal digits of the quantity into the buffer, growing it if needed.
+     */
+    static void formatQuantity(int quantity, CharArrayBuffer buffer) {
+        long value = Math.abs((long) quantity);
+        int length = quantity < 0 ? 2 : 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            length++;
+        }
+        if (buffer.data == null || buffer.data.length < length) {
+            buffer.data = new char[length];
+        }
+        for (int i = length - 1; i >= (quantity < 0 ? 1 : 0); i--) {
+            buffer.data[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        if (quantity < 0) {
+            buffer.data[0] = '-';
+        }
+        buffer.sizeCopied = length;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull BookViewHolder holder, int position,
+                                 @NonNull List<Object> payloads) {
+        if (payloads.isEmpty() || position >= getItemCount()) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        // Only the quantity changed
+        Book book = mUpdatedBooks.get(mBooks.getId(position));
+        bindQuantity(holder, book != null ? book.mQuantity : mBooks.getQuantity(position));
+    }
+
+    private void bindQuantity(BookViewHolder holder, int quantity) {
+        // A level of the sell button drawable, as setting an image resource loads it again
+        holder.mSellImageView.setImageLevel(quantity == 0 ? 0 : 1);
+        formatQuantity(quantity, holder.mQuantityBuffer);
+        holder.mQuantityTextView.setText(holder.mQuantityBuffer.data, 0, holder.mQuantityBuffer.sizeCopied);
+    }
+
+    /**
+     * Sell one unit of the given book. Quick clicks on the same book are merged into one sale.
+     */
+    private void sellBook(Context context, long id) {
+        final Context appContext = context.getApplicationContext();
+        BookWriter.getInstance(context).sell(id, 1, new BookWriter.Callback<Integer>() {
+            @Override
+            public void onComplete(Integer rowsUpdated) {
+                // The provider reports 0 rows when the book is out of stock
+                if (rowsUpdated == 0) {
+                    Toast.makeText(appContext, R.string.book_unavailable, Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
+    /**
+     * Values of a book updated in place.
+     */
+    private static class Book {
+
+        final String mTitle;
+        final String mAuthor;
+        final int mPrice;
+        final int mQuantity;
+
+        Book(String title, String author, int price, int quantity) {
+            mTitle = title;
+            mAuthor = author;
+            mPrice = price;
+            mQuantity = quantity;
+        }
+    }
+
+    /**
+     * Caches the views of a list item.
+     */
+    public static class BookViewHolder extends RecyclerView.ViewHolder {
+
+        final TextView mTitleTextView;
+        final TextView mAuthorTextView;
+        final TextView mPriceTextView;
+        final TextView mQuantityTextView;
+        final ImageView mSellImageView;
+        final CharArrayBuffer mTitleBuffer = new CharArrayBuffer(64);
+        final CharArrayBuffer mQuantityBuffer = new CharArrayBuffer(11);
+
+        /**
+         * Texts of the bound book, set by copyToHolder
+         */
+        String mAuthor;
+        String mPriceText;
+
+        BookViewHolder(View view) {
+            super(view);
+            mTitleTextView = view.findViewById(R.id.edit_book_title);
+            mAuthorTextView = view.findViewById(R.id.edit_book_author);
+            mPriceTextView = view.findViewById(R.id.edit_book_price);
+            mQuantityTextView = view.findViewById(R.id.edit_book_quantity);
+            mSellImageView = view.findViewById(R.id.sell_button);
+        }
+    }
+}
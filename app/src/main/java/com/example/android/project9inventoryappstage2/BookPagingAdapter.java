@@ -0,0 +1,497 @@
+package com.example.android.project9inventoryappstage2;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import com.example.android.project9inventoryappstage2.data.BookCatalog;
+import com.example.android.project9inventoryappstage2.data.BookContract;
+import com.example.android.project9inventoryappstage2.data.CatalogSnapshot;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * {@link BookPagingAdapter} is a {@link BookAdapter} that loads the books one page at a
+ * time instead of querying the whole table. The first page is shown as soon as it is loaded,
+ * and the next page is fetched in the background when the list scrolls close to the last
+ * loaded row, after the values of the sort keys of that row. Each page is read into a
+ * {@link BookCatalog} and appended to the loaded books in the background, so the main thread
+ * only swaps in the new catalogue.
+ * <p>
+ * The books come in the order of {@link #setOrder(String, String)}, sorted and filtered by the
+ * provider. A change to a single book only reloads that book: in the default order an update
+ * is patched in place, otherwise the book is removed from its row and added at its new place
+ * among the loaded books, if it is still in the list. Changes to many books at once reload the
+ * loaded pages.
+ * <p>
+ * Call {@link #start(boolean)} to load the first page and {@link #close()} when the adapter is
+ * no longer used.
+ */
+public class BookPagingAdapter extends BookAdapter {
+
+    /**
+     * Number of books loaded per page.
+     */
+    private static final int PAGE_SIZE = 50;
+
+    /**
+     * The next page is loaded when a row this close to the end of the loaded rows is shown.
+     */
+    private static final int PREFETCH_DISTANCE = 20;
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final String[] mProjection;
+    private final ContentObserver mObserver;
+
+    /**
+     * One of the BookEntry SORT_ constants, and one of the FILTER_ constants or null.
+     */
+    private String mSort = BookContract.BookEntry.SORT_ADDED;
+    private String mFilter;
+
+    private boolean mEndReached;
+
+    /**
+     * The page or change task running, only one at a time as each one starts from the loaded
+     * books.
+     */
+    private AsyncTask<Void, Void, ?> mPendingTask;
+
+    /**
+     * Ids of the changed books, waiting for the pending task to complete.
+     */
+    private final Set<Long> mChangedIds = new HashSet<>();
+
+    /**
+     * True from {@link #start(boolean)} until {@link #close()}.
+     */
+    private boolean mStarted;
+
+    /**
+     * Constructs a new {@link BookPagingAdapter}.
+     *
+     * @param context    The context
+     * @param projection The columns to load, must include {@link BookContract.BookEntry#_ID}
+     * @param listener   Called when a book is clicked
+     */
+    public BookPagingAdapter(Context context, String[] projection, OnBookClickListener listener) {
+        super(listener);
+        mContext = context.getApplicationContext();
+        mResolver = context.getContentResolver();
+        mProjection = projection;
+        mObserver = new ContentObserver(new Handler()) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                // Before Jelly Bean the URI is not reported and every change reloads the pages
+                String change = uri == null ? null
+                        : uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_CHANGE);
+                if (BookContract.BookEntry.CHANGE_UPDATE.equals(change) && isDefaultOrder()) {
+                    new BookTask(ContentUris.parseId(uri)).execute();
+                } else if (change != null) {
+                    onBookChanged(ContentUris.parseId(uri));
+                } else {
+                    reload();
+                }
+            }
+        };
+    }
+
+    /**
+     * Load the first page and start watching the books for changes.
+     *
+     * @param fromSnapshot show the first page from the {@link CatalogSnapshot} right away, if
+     *                     there is one and the order is the default one, while it is loaded.
+     *                     The projection must only hold columns of the snapshot.
+     * @return true if the first page was read from the snapshot
+     */
+    public boolean start(boolean fromSnapshot) {
+        mResolver.registerContentObserver(BookContract.BookEntry.CONTENT_URI, true, mObserver);
+        mStarted = true;
+        reload();
+        Cursor snapshotPage = fromSnapshot && isDefaultOrder()
+                ? CatalogSnapshot.read(mContext, mProjection, PAGE_SIZE) : null;
+        if (snapshotPage == null) {
+            return false;
+        }
+        try {
+            // Shown until the first page is loaded
+            swapBooks(BookCatalog.from(snapshotPage));
+        } finally {
+            snapshotPage.close();
+        }
+        return true;
+    }
+
+    /**
+     * Sort and filter the books, and load the first page again if the adapter is started.
+     *
+     * @param sort   one of the {@link BookContract.BookEntry} SORT_ constants
+     * @param filter one of the {@link BookContract.BookEntry} FILTER_ constants, or null for
+     *               all the books
+     */
+    public void setOrder(String sort, String filter) {
+        if (sort.equals(mSort) && (filter == null ? mFilter == null : filter.equals(mFilter))) {
+            return;
+        }
+        mSort = sort;
+        mFilter = filter;
+        if (mStarted) {
+            cancelPendingTask();
+            mPendingTask = new PageTask(PAGE_SIZE, null);
+            mPendingTask.execute();
+        }
+    }
+
+    public String getSort() {
+        return mSort;
+    }
+
+    public String getFilter() {
+        return mFilter;
+    }
+
+    /**
+     * Stop watching the books and release the loaded pages.
+     */
+    public void close() {
+        mResolver.unregisterContentObserver(mObserver);
+        mStarted = false;
+        cancelPendingTask();
+        swapBooks(null);
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull BookViewHolder holder, int position) {
+        if (position >= getItemCount() - PREFETCH_DISTANCE) {
+            loadNextPage();
+        }
+        super.onBindViewHolder(holder, position);
+    }
+
+    /**
+     * Load again as many rows as are currently shown, so that the list keeps its scroll position.
+     * Only changes to many books at once, which cannot be applied book by book, need it.
+     */
+    private void reload() {
+        cancelPendingTask();
+        int rows = Math.max(PAGE_SIZE, getItemCount());
+        mPendingTask = new PageTask(rows, null);
+        mPendingTask.execute();
+    }
+
+    /**
+     * Move the changed book to its place among the loaded books once the pending task is done.
+     */
+    private void onBookChanged(long id) {
+        mChangedIds.add(id);
+        if (mChangedIds.size() > PAGE_SIZE) {
+            reload();
+        } else {
+            applyChanges();
+        }
+    }
+
+    private void applyChanges() {
+        if (mPendingTask != null || mChangedIds.isEmpty() || getBooks() == null) {
+            return;
+        }
+        mPendingTask = new ChangeTask(mChangedIds);
+        mChangedIds.clear();
+        mPendingTask.execute();
+    }
+
+    private boolean isDefaultOrder() {
+        return mSort.equals(BookContract.BookEntry.SORT_ADDED) && mFilter == null;
+    }
+
+    private void loadNextPage() {
+        if (mPendingTask != null || mEndReached) {
+            return;
+        }
+        mPendingTask = new PageTask(PAGE_SIZE, getBooks());
+        mPendingTask.execute();
+    }
+
+    /**
+     * Cancel the pending task. The books it was to change are read again by the next full page.
+     */
+    private void cancelPendingTask() {
+        mChangedIds.clear();
+        if (mPendingTask != null) {
+            mPendingTask.cancel(false);
+            mPendingTask = null;
+        }
+    }
+
+    private void onPageLoaded(PageTask task, BookCatalog books) {
+        mPendingTask = null;
+        mEndReached = task.mPage.size() < task.mLimit;
+        if (task.mLoaded != null && task.mLoaded == getBooks()) {
+            appendBooks(books);
+        } else {
+            swapBooks(books);
+        }
+        applyChanges();
+    }
+
+    /**
+     * Queries a single updated book on a background thread and patches it in place.
+     */
+    private class BookTask extends AsyncTask<Void, Void, Cursor> {
+
+        final long mId;
+
+        BookTask(long id) {
+            mId = id;
+        }
+
+        @Override
+        protected Cursor doInBackground(Void... params) {
+            Uri uri = ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, mId);
+            return mResolver.query(uri, mProjection, null, null, null);
+        }
+
+        @Override
+        protected void onPostExecute(Cursor cursor) {
+            if (cursor == null) {
+                return;
+            }
+            try {
+                if (mStarted && cursor.moveToFirst()) {
+                    updateBook(mId, cursor);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Return the URI of the books in the current order, with the given page parameters.
+     */
+    private static Uri.Builder booksUri(String sort, String filter) {
+        Uri.Builder builder = BookContract.BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SORT, sort);
+        if (filter != null) {
+            builder.appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_FILTER, filter);
+        }
+        return builder;
+    }
+
+    /**
+     * A changed book, removed from a position of the books and added at another.
+     */
+    private static class Move {
+
+        /**
+         * The books once moved.
+         */
+        final BookCatalog mBooks;
+        final long mId;
+        final int mFrom;
+        final int mTo;
+
+        Move(BookCatalog books, long id, int from, int to) {
+            mBooks = books;
+            mId = id;
+            mFrom = from;
+            mTo = to;
+        }
+    }
+
+    /**
+     * Reads the changed books on a background thread, in the current order and filter, and
+     * moves each one to its place among the loaded books. A book that is no longer in the list
+     * is removed, and one whose place is after the loaded books is left to a next page.
+     */
+    private class ChangeTask extends AsyncTask<Void, Void, List<Move>> {
+
+        final long[] mIds;
+        final BookCatalog mLoaded;
+        final boolean mEndReached;
+        final String mSort;
+        final String mFilter;
+
+        ChangeTask(Set<Long> ids) {
+            mIds = new long[ids.size()];
+            int i = 0;
+            for (Long id : ids) {
+                mIds[i++] = id;
+            }
+            mLoaded = getBooks();
+            mEndReached = BookPagingAdapter.this.mEndReached;
+            mSort = BookPagingAdapter.this.mSort;
+            mFilter = BookPagingAdapter.this.mFilter;
+        }
+
+        @Override
+        protected List<Move> doInBackground(Void... params) {
+            StringBuilder selection = new StringBuilder(BookContract.BookEntry._ID + " IN (");
+            String[] selectionArgs = new String[mIds.length];
+            for (int i = 0; i < mIds.length; i++) {
+                selection.append(i == 0 ? "?" : ",?");
+                selectionArgs[i] = String.valueOf(mIds[i]);
+            }
+            selection.append(')');
+            Cursor cursor = mResolver.query(booksUri(mSort, mFilter).build(), mProjection,
+                    selection.toString(), selectionArgs, null);
+            if (cursor == null) {
+                return null;
+            }
+            BookCatalog changed;
+            try {
+                changed = BookCatalog.from(cursor);
+            } finally {
+                cursor.close();
+            }
+
+            List<Move> moves = new ArrayList<>();
+            BookCatalog books = mLoaded;
+            for (long id : mIds) {
+                int from = books.indexOf(id);
+                int position = changed.indexOf(id);
+                int to = -1;
+                if (position != -1) {
+                    int place = placeOf(books, changed, position);
+                    if (place == books.size() && !mEndReached) {
+                        // After the last loaded book: the next page reads it
+                        position = -1;
+                    } else {
+                        to = from != -1 && from < place ? place - 1 : place;
+                    }
+                }
+                if (from == -1 && position == -1) {
+                    continue;
+                }
+                books = books.move(from, changed, position, to);
+                moves.add(new Move(books, id, from, to));
+            }
+            return moves;
+        }
+
+        /**
+         * Return the number of books that come before the changed book in the order.
+         */
+        private int placeOf(BookCatalog books, BookCatalog changed, int position) {
+            int low = 0;
+            int high = books.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (books.compareInOrder(mSort, middle, changed, position) < 0) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        @Override
+        protected void onPostExecute(List<Move> moves) {
+            mPendingTask = null;
+            if (moves == null) {
+                return;
+            }
+            if (mLoaded != getBooks()) {
+                // The books were replaced meanwhile: read the changes again
+                for (long id : mIds) {
+                    mChangedIds.add(id);
+                }
+            } else {
+                for (Move move : moves) {
+                    moveBook(move.mBooks, move.mId, move.mFrom, move.mTo);
+                }
+            }
+            applyChanges();
+        }
+    }
+
+    /**
+     * Queries one page of books on a background thread, and appends it to the loaded books.
+     */
+    private class PageTask extends AsyncTask<Void, Void, BookCatalog> {
+
+        final int mLimit;
+        final String mSort;
+        final String mFilter;
+
+        /**
+         * Books the page is appended to, or null if the page replaces the loaded books.
+         */
+        final BookCatalog mLoaded;
+
+        /**
+         * Id and sort keys of the last loaded book, where the page starts, or 0 for the first page.
+         */
+        final long mAfter;
+        final String[] mAfterKeys;
+
+        /**
+         * The books of the page, once loaded.
+         */
+        BookCatalog mPage;
+
+        PageTask(int limit, BookCatalog loaded) {
+            mLimit = limit;
+            mLoaded = loaded;
+            mSort = BookPagingAdapter.this.mSort;
+            mFilter = BookPagingAdapter.this.mFilter;
+            if (loaded != null && loaded.size() > 0) {
+                mAfter = loaded.getId(loaded.size() - 1);
+                mAfterKeys = loaded.getSortKeys(mSort, loaded.size() - 1);
+            } else {
+                mAfter = 0;
+                mAfterKeys = new String[0];
+            }
+        }
+
+        @Override
+        protected BookCatalog doInBackground(Void... params) {
+            Uri.Builder builder = booksUri(mSort, mFilter)
+                    .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_LIMIT,
+                            String.valueOf(mLimit))
+                    .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER,
+                            String.valueOf(mAfter));
+            if (mAfter > 0) {
+                for (String key : mAfterKeys) {
+                    builder.appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER_KEY, key);
+                }
+            }
+            Cursor cursor = mResolver.query(builder.build(), mProjection, null, null, null);
+            if (cursor == null) {
+                return null;
+            }
+            try {
+                mPage = BookCatalog.from(cursor);
+            } finally {
+                cursor.close();
+            }
+            return mLoaded == null ? mPage : mLoaded.append(mPage);
+        }
+
+        @Override
+        protected void onPostExecute(BookCatalog books) {
+            if (books == null) {
+                mPendingTask = null;
+                applyChanges();
+                return;
+            }
+            onPageLoaded(this, books);
+        }
+    }
+}
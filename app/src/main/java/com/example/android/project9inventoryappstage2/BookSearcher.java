@@ -0,0 +1,164 @@
+package com.example.android.project9inventoryappstage2;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.support.v4.os.CancellationSignal;
+
+import com.example.android.project9inventoryappstage2.data.BookCatalog;
+import com.example.android.project9inventoryappstage2.data.BookContract;
+import com.example.android.project9inventoryappstage2.data.BookSearch;
+
+/**
+ * {@link BookSearcher} searches the books as the user types. The database is only searched
+ * once the text has not changed for {@link #DEBOUNCE_MILLIS}, and a search still running when
+ * the text changes again is cancelled. A text that extends the text of the last search
+ * narrows its books in memory instead, right away.
+ * <p>
+ * A change to the books drops the kept results and searches the database again. Call
+ * {@link #close()} when the searcher is no longer used.
+ */
+public class BookSearcher {
+
+    /**
+     * Called on the main thread with the books found for the current text.
+     */
+    public interface Listener {
+        void onSearchResults(String text, BookCatalog books);
+    }
+
+    /**
+     * The database is searched when the text has not changed for this long.
+     */
+    private static final long DEBOUNCE_MILLIS = 150;
+
+    private final ContentResolver mResolver;
+    private final String[] mProjection;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler();
+    private final ContentObserver mObserver;
+
+    private final Runnable mSearch = new Runnable() {
+        @Override
+        public void run() {
+            startTask(null);
+        }
+    };
+
+    /**
+     * The current text, null when not searching.
+     */
+    private String mText;
+
+    /**
+     * The last books found, narrowed for the next texts that extend theirs.
+     */
+    private BookSearch mLastSearch;
+    private SearchTask mPendingTask;
+
+    /**
+     * Constructs a new {@link BookSearcher}.
+     *
+     * @param context    The context
+     * @param projection The columns to load, as read by {@link BookCatalog#from(android.database.Cursor)}
+     * @param listener   Called with the books found
+     */
+    public BookSearcher(Context context, String[] projection, Listener listener) {
+        mResolver = context.getContentResolver();
+        mProjection = projection;
+        mListener = listener;
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mLastSearch = null;
+                if (mText != null) {
+                    setText(mText);
+                }
+            }
+        };
+        mResolver.registerContentObserver(BookContract.BookEntry.CONTENT_URI, true, mObserver);
+    }
+
+    /**
+     * Search the books for the given text.
+     *
+     * @param text The search text, or null or blank to stop searching
+     */
+    public void setText(String text) {
+        mHandler.removeCallbacks(mSearch);
+        cancelPendingTask();
+        mText = text == null || text.trim().isEmpty() ? null : text;
+        if (mText == null) {
+            return;
+        }
+        if (mLastSearch != null && mLastSearch.canNarrow(mText)) {
+            startTask(mLastSearch);
+        } else {
+            mHandler.postDelayed(mSearch, DEBOUNCE_MILLIS);
+        }
+    }
+
+    /**
+     * Stop searching and watching the books.
+     */
+    public void close() {
+        setText(null);
+        mResolver.unregisterContentObserver(mObserver);
+        mLastSearch = null;
+    }
+
+    /**
+     * Find the books of the current text among the books of the given search, or in the
+     * database if there is none.
+     */
+    private void startTask(BookSearch narrowed) {
+        mPendingTask = new SearchTask(mText, narrowed);
+        // Searches do not wait behind the page loads of the catalogue
+        mPendingTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+    }
+
+    private void cancelPendingTask() {
+        if (mPendingTask != null) {
+            mPendingTask.mCancellationSignal.cancel();
+            mPendingTask.cancel(false);
+            mPendingTask = null;
+        }
+    }
+
+    /**
+     * Searches or narrows the books on a background thread.
+     */
+    private class SearchTask extends AsyncTask<Void, Void, BookSearch> {
+
+        final String mText;
+        final BookSearch mNarrowed;
+        final CancellationSignal mCancellationSignal = new CancellationSignal();
+
+        SearchTask(String text, BookSearch narrowed) {
+            mText = text;
+            mNarrowed = narrowed;
+        }
+
+        @Override
+        protected BookSearch doInBackground(Void... params) {
+            if (mNarrowed != null) {
+                return mNarrowed.narrow(mText);
+            }
+            return BookSearch.query(mResolver, mText, mProjection, mCancellationSignal);
+        }
+
+        @Override
+        protected void onPostExecute(BookSearch search) {
+            if (this != mPendingTask) {
+                return;
+            }
+            mPendingTask = null;
+            if (search != null) {
+                mLastSearch = search;
+                mListener.onSearchResults(search.getText(), search.getBooks());
+            }
+        }
+    }
+}
@@ -1,39 +1,65 @@
 package com.example.android.project9inventoryappstage2;
 
-import android.app.LoaderManager;
 import android.content.ContentUris;
 import android.content.ContentValues;
-import android.content.CursorLoader;
 import android.content.Intent;
-import android.content.Loader;
-import android.database.Cursor;
 import android.net.Uri;
 import android.support.design.widget.FloatingActionButton;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SearchView;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.ListView;
 import android.widget.TextView;
 
+import com.example.android.project9inventoryappstage2.data.BookCatalog;
 import com.example.android.project9inventoryappstage2.data.BookContract;
+import com.example.android.project9inventoryappstage2.data.BookWriter;
 
 /**
  * Displays list of books that were entered and stored in the app.
  */
-public class CatalogActivity extends AppCompatActivity
-        implements LoaderManager.LoaderCallbacks<Cursor> {
+public class CatalogActivity extends AppCompatActivity {
 
     private static final String LOG_TAG = CatalogActivity.class.getSimpleName();
 
-    private static final int BOOK_LOADER = 0;
+    /**
+     * Boolean extra, true by default: show the first books from the catalogue snapshot while
+     * they are loaded. Turned off to compare the time to the first rows with and without it:
+     * <pre>
+     * adb shell am start -n com.example.android.project9inventoryappstage2/.CatalogActivity --ez use_snapshot false
+     * </pre>
+     */
+    static final String EXTRA_USE_SNAPSHOT = "use_snapshot";
+
+    /**
+     * Keys of the order of the books in the saved state
+     */
+    private static final String STATE_SORT = "sort";
+    private static final String STATE_FILTER = "filter";
+
+    private BookPagingAdapter mCursorAdapter;
 
-    private BookCursorAdapter mCursorAdapter;
+    /**
+     * Shows the search results in place of the catalogue while searching
+     */
+    private BookAdapter mSearchAdapter;
+    private BookSearcher mSearcher;
+    private RecyclerView mBookListView;
+    private TextView mEmptyView;
+
+    /**
+     * Counts the dropped frames of the catalog, in debug builds
+     */
+    private final FrameMonitor mFrameMonitor = new FrameMonitor("CatalogActivity");
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long createMillis = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_catalog);
 
@@ -47,22 +73,25 @@ public class CatalogActivity extends AppCompatActivity
             }
         });
 
-        // Find the ListView which will be populated with the book data
-        ListView bookListView = findViewById(R.id.list);
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        TextView emptyView = findViewById(R.id.empty_view);
+        // Find the RecyclerView which will be populated with the book data
+        mBookListView = findViewById(R.id.list);
+        mBookListView.setLayoutManager(new LinearLayoutManager(this));
+        // Find the empty view, so that it only shows when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
 
-        // Setup an adapter to create a list item for each row of book data in the Cursor.
-        // There is no book data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new BookCursorAdapter(this, null);
+        //Define a projection that specifies the column from the table we care about.
+        String[] projection = {
+                BookContract.BookEntry._ID,
+                BookContract.BookEntry.COLUMN_BOOK_TITLE,
+                BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+                BookContract.BookEntry.COLUMN_BOOK_PRICE,
+                BookContract.BookEntry.COLUMN_BOOK_QUANTITY};
 
-        bookListView.setAdapter(mCursorAdapter);
-        bookListView.setEmptyView(emptyView);
-
-        // Setup item click listener
-        bookListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Setup an adapter to create a list item for each row of book data.
+        // It loads the books one page at a time, as the list scrolls.
+        BookAdapter.OnBookClickListener clickListener = new BookAdapter.OnBookClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+            public void onBookClick(long id) {
                 // Create new intent to go to {@link Editor Activity.class}
                 Intent intent = new Intent(CatalogActivity.this, EditorActivity.class);
 
@@ -79,10 +108,97 @@ public class CatalogActivity extends AppCompatActivity
                 // Launch the {@link EditorActivity} to display the data for the current pet.
                 startActivity(intent);
             }
+        };
+        mCursorAdapter = new BookPagingAdapter(this, projection, clickListener);
+
+        // The search results are narrowed or searched again at each keystroke
+        mSearchAdapter = new BookAdapter(clickListener);
+        mSearcher = new BookSearcher(this, projection, new BookSearcher.Listener() {
+            @Override
+            public void onSearchResults(String text, BookCatalog books) {
+                mSearchAdapter.swapBooks(books);
+            }
         });
 
-        // Kick off the loader
-        getLoaderManager().initLoader(BOOK_LOADER, null, this);
+        // Show the empty view whenever the catalogue has no books
+        RecyclerView.AdapterDataObserver emptyViewObserver = new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                onChanged();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                onChanged();
+            }
+        };
+        mCursorAdapter.registerAdapterDataObserver(emptyViewObserver);
+        mSearchAdapter.registerAdapterDataObserver(emptyViewObserver);
+
+        mBookListView.setAdapter(mCursorAdapter);
+
+        if (savedInstanceState != null) {
+            mCursorAdapter.setOrder(savedInstanceState.getString(STATE_SORT, BookContract.BookEntry.SORT_ADDED),
+                    savedInstanceState.getString(STATE_FILTER));
+        }
+
+        // Load the first page of books, showing the snapshot of the catalogue meanwhile
+        boolean fromSnapshot = mCursorAdapter.start(getIntent().getBooleanExtra(EXTRA_USE_SNAPSHOT, true));
+        mFrameMonitor.logFirstFrame(mBookListView, createMillis, fromSnapshot ? "snapshot" : "database");
+    }
+
+    /**
+     * Show the empty view when the catalogue is shown and has no books. A search without
+     * results only leaves the list empty.
+     */
+    private void updateEmptyView() {
+        boolean empty = mBookListView.getAdapter() == mCursorAdapter && mCursorAdapter.getItemCount() == 0;
+        mEmptyView.setVisibility(empty ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Show the results of the given search text, or the catalogue if it is empty.
+     */
+    private void search(String text) {
+        boolean searching = text != null && !text.trim().isEmpty();
+        mSearcher.setText(searching ? text : null);
+        BookAdapter adapter = searching ? mSearchAdapter : mCursorAdapter;
+        if (mBookListView.getAdapter() != adapter) {
+            mSearchAdapter.swapBooks(null);
+            mBookListView.setAdapter(adapter);
+            updateEmptyView();
+        }
+    }
+
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        outState.putString(STATE_SORT, mCursorAdapter.getSort());
+        outState.putString(STATE_FILTER, mCursorAdapter.getFilter());
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mFrameMonitor.start();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mFrameMonitor.stop();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mCursorAdapter.close();
+        mSearcher.close();
     }
 
 
@@ -101,18 +217,15 @@ public class CatalogActivity extends AppCompatActivity
         values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER, "Editorial ART");
         values.put(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE, "0212240130");
 
-        // Insert a new row for BFG into the provider using the ContentResolver.
-        // Use the {@link BookEntry#CONTENT_URI} to indicate that we want to insert
-        // into the books database table.
-        // Receive the new content URI that will allow us to access BFG's data in the future.
-        getContentResolver().insert(BookContract.BookEntry.CONTENT_URI, values);
+        // Insert a new row for BFG into the provider, on the writer thread.
+        BookWriter.getInstance(this).insert(values, null);
     }
 
     /**
      * Helper method to delete all books in the database.
      */
     private void deleteAllBooks() {
-        getContentResolver().delete(BookContract.BookEntry.CONTENT_URI, null, null);
+        BookWriter.getInstance(this).delete(BookContract.BookEntry.CONTENT_URI, null);
     }
 
     @Override
@@ -120,9 +233,57 @@ public class CatalogActivity extends AppCompatActivity
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+
+        // Search as the user types, and show the catalogue again when the search is closed
+        MenuItem searchItem = menu.findItem(R.id.action_search);
+        SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                return false;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
+        searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                search(null);
+                return true;
+            }
+        });
         return true;
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // Check the current order of the books
+        String sort = mCursorAdapter.getSort();
+        int sortItem;
+        if (BookContract.BookEntry.SORT_AUTHOR.equals(sort)) {
+            sortItem = R.id.action_sort_author;
+        } else if (BookContract.BookEntry.SORT_PRICE.equals(sort)) {
+            sortItem = R.id.action_sort_price;
+        } else if (BookContract.BookEntry.SORT_QUANTITY.equals(sort)) {
+            sortItem = R.id.action_sort_quantity;
+        } else {
+            sortItem = R.id.action_sort_added;
+        }
+        menu.findItem(sortItem).setChecked(true);
+        menu.findItem(R.id.action_in_stock_only).setChecked(mCursorAdapter.getFilter() != null);
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
@@ -135,42 +296,25 @@ public class CatalogActivity extends AppCompatActivity
             case R.id.action_delete_all_entries:
                 deleteAllBooks();
                 return true;
+            // Respond to a click on a sort order, the filter is kept
+            case R.id.action_sort_added:
+                mCursorAdapter.setOrder(BookContract.BookEntry.SORT_ADDED, mCursorAdapter.getFilter());
+                return true;
+            case R.id.action_sort_author:
+                mCursorAdapter.setOrder(BookContract.BookEntry.SORT_AUTHOR, mCursorAdapter.getFilter());
+                return true;
+            case R.id.action_sort_price:
+                mCursorAdapter.setOrder(BookContract.BookEntry.SORT_PRICE, mCursorAdapter.getFilter());
+                return true;
+            case R.id.action_sort_quantity:
+                mCursorAdapter.setOrder(BookContract.BookEntry.SORT_QUANTITY, mCursorAdapter.getFilter());
+                return true;
+            // Respond to a click on the "In stock only" menu option
+            case R.id.action_in_stock_only:
+                mCursorAdapter.setOrder(mCursorAdapter.getSort(),
+                        item.isChecked() ? null : BookContract.BookEntry.FILTER_IN_STOCK);
+                return true;
         }
         return super.onOptionsItemSelected(item);
     }
-
-    @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle arg) {
-        switch (id) {
-            case BOOK_LOADER:
-                //Define a projection that specifies the column from the table we care about.
-                String[] projection = {
-                        BookContract.BookEntry._ID,
-                        BookContract.BookEntry.COLUMN_BOOK_TITLE,
-                        BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
-                        BookContract.BookEntry.COLUMN_BOOK_PRICE,
-                        BookContract.BookEntry.COLUMN_BOOK_QUANTITY};
-                //This loader will execute the ContentProvider's query method on a background thread
-                return new CursorLoader(this,   // Parent activity context
-                        BookContract.BookEntry.CONTENT_URI,     // Provider content URI to query
-                        projection,                             // Columns to include in the resulting Cursor
-                        null,                          // No selection clause
-                        null,                       // No Selection arguments
-                        null);                         // Default sort order
-        }
-        return null;
-    }
-
-    @Override
-    public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link BookCursorAdapter} with this new cursor containing updated book data
-        mCursorAdapter.swapCursor(data);
-    }
-
-
-    @Override
-    public void onLoaderReset(Loader<Cursor> loader) {
-        // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
-    }
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package com.example.android.project9inventoryappstage2;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -26,6 +27,9 @@ import android.widget.Toast;
 
 import com.example.android.project9inventoryappstage2.data.BookContract;
 import com.example.android.project9inventoryappstage2.data.BookDbHelper;
+import com.example.android.project9inventoryappstage2.data.BookWriter;
+
+import java.lang.ref.WeakReference;
 
 /**
  * Allows user to create a new book or edit an existing one.
@@ -38,6 +42,17 @@ public class EditorActivity extends AppCompatActivity implements
      */
     private static final int EXISTING_BOOK_LOADER = 1;
 
+    /**
+     * Columns of the book that the editor can change
+     */
+    private static final String[] EDITED_COLUMNS = {
+            BookContract.BookEntry.COLUMN_BOOK_TITLE,
+            BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+            BookContract.BookEntry.COLUMN_BOOK_PRICE,
+            BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
+            BookContract.BookEntry.COLUMN_BOOK_SUPPLIER,
+            BookContract.BookEntry.COLUMN_SUPPLIER_PHONE};
+
     /**
      * EditText field to enter the book's title
      */
@@ -70,11 +85,22 @@ public class EditorActivity extends AppCompatActivity implements
 
     private BookDbHelper mDbHelper;
 
+    /**
+     * Counts the dropped frames of the editor, in debug builds
+     */
+    private final FrameMonitor mFrameMonitor = new FrameMonitor("EditorActivity");
+
     /**
      * Content URI for the existing book (null if it's a new book)
      */
     private Uri mCurrentBookUri;
 
+    /**
+     * Values of the existing book as last loaded. The save only writes the fields that differ
+     * from them, and only if the book still holds the loaded values of these fields.
+     */
+    private ContentValues mLoadedBook;
+
     /**
      * Boolean flag that keeps track of whether the book has been edited (true) or not (false)
      */
@@ -187,6 +213,18 @@ public class EditorActivity extends AppCompatActivity implements
         mPhoneEditText.setOnTouchListener(mTouchListener);
     }
 
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mFrameMonitor.start();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mFrameMonitor.stop();
+    }
+
     /**
      * Show a dialog that warns the user there are unsaved changes that will be lost
      * if they continue leaving the editor.
@@ -273,12 +311,13 @@ public class EditorActivity extends AppCompatActivity implements
     }
 
     /**
-     * Get user input from editor and save pet into database.
+     * Get user input from editor and save book into database. The editor closes once the book
+     * is saved, and stays open if the save fails.
      */
-    private boolean saveBook() {
+    private void saveBook() {
 
         if (!validData()) {
-            return false;
+            return;
         }
         // Read from input fields
         // Use trim to eliminate leading or trailing white space
@@ -301,27 +340,39 @@ public class EditorActivity extends AppCompatActivity implements
 
         //Determine if this is a new or existing book by checking if mCurrentBookUri is null or not
         if (mCurrentBookUri != null) {
-            int bookUpdate = getContentResolver().update(mCurrentBookUri, values, null, null);
-            if (bookUpdate > 0) {
-                Toast.makeText(this, R.string.editor_update_book_successful, Toast.LENGTH_LONG).show();
-            } else {
-                Toast.makeText(this, getString(R.string.editor_update_book_failed), Toast.LENGTH_SHORT).show();
+            if (mLoadedBook == null) {
+                // The book is not loaded yet, there is nothing to compare the fields with
+                return;
+            }
+            // Only write the fields the user changed, so that a concurrent sale of the book
+            // is not overwritten with the quantity shown when the editor opened
+            for (String column : EDITED_COLUMNS) {
+                if (String.valueOf(values.get(column)).equals(mLoadedBook.getAsString(column))) {
+                    values.remove(column);
+                }
+            }
+            if (values.size() == 0) {
+                finish();
+                return;
             }
+            // A change to the other fields meanwhile, e.g. a sale, does not conflict
+            for (String column : EDITED_COLUMNS) {
+                if (values.containsKey(column)) {
+                    values.put(BookContract.BookEntry.expected(column), mLoadedBook.getAsString(column));
+                }
+            }
+
+            // The book changed since it was loaded if it is not updated: the loader brings in
+            // the new values, and the user decides what to save
+            BookWriter.getInstance(this).update(mCurrentBookUri, values, EditorCallback.rows(this,
+                    R.string.editor_update_book_successful, R.string.editor_update_book_conflict,
+                    Toast.LENGTH_LONG));
 
         } else {
-            Uri newUri = getContentResolver().insert(BookContract.BookEntry.CONTENT_URI, values);
-            if (newUri == null) {
-                // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, getString(R.string.editor_insert_book_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_insert_book_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            BookWriter.getInstance(this).insert(values, EditorCallback.uri(this,
+                    R.string.editor_insert_book_successful, R.string.editor_insert_book_failed,
+                    Toast.LENGTH_SHORT));
         }
-
-        return true;
     }
 
     /**
@@ -357,13 +408,9 @@ public class EditorActivity extends AppCompatActivity implements
      * Perform the deletion of the book in the database.
      */
     private void deleteBook() {
-        int rowDeleted = getContentResolver().delete(mCurrentBookUri, null, null);
-        if (rowDeleted > 0) {
-            Toast.makeText(this, R.string.editor_delete_book_successful, Toast.LENGTH_SHORT).show();
-            finish();
-        } else {
-            Toast.makeText(this, getString(R.string.editor_delete_book_failed), Toast.LENGTH_SHORT).show();
-        }
+        BookWriter.getInstance(this).delete(mCurrentBookUri, EditorCallback.rows(this,
+                R.string.editor_delete_book_successful, R.string.editor_delete_book_failed,
+                Toast.LENGTH_SHORT));
     }
 
     @Override
@@ -395,11 +442,8 @@ public class EditorActivity extends AppCompatActivity implements
         switch (item.getItemId()) {
             // Respond to a click on the "Save" menu option
             case R.id.action_save:
-                boolean saved = saveBook();
-                if (saved) {
-                    // Exit activity
-                    finish();
-                }
+                // Exits the activity once the book is saved
+                saveBook();
                 return true;
             // Respond to a click on the "Delete" menu option
             case R.id.action_delete:
@@ -493,20 +537,31 @@ public class EditorActivity extends AppCompatActivity implements
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (data.moveToFirst()) {
-            String bookTitle = data.getString(data.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_TITLE));
-            String authorName = data.getString(data.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_AUTHOR));
-            int bookPrice = data.getInt(data.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_PRICE));
-            int bookQuantity = data.getInt(data.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_QUANTITY));
-            String supplierName = data.getString(data.getColumnIndex(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER));
-            String supplierPhoneNumber = data.getString(data.getColumnIndex(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE));
-
-            // Update the views on the screen with the values from the database
-            mTitleEditText.setText(bookTitle);
-            mAuthorEditText.setText(authorName);
-            mPriceEditText.setText(Integer.toString(bookPrice));
-            mQuantityEditText.setText(Integer.toString(bookQuantity));
-            mSupplierEditText.setText(supplierName);
-            mPhoneEditText.setText(supplierPhoneNumber);
+            ContentValues book = new ContentValues();
+            for (String column : EDITED_COLUMNS) {
+                book.put(column, data.getString(data.getColumnIndex(column)));
+            }
+
+            // Update the views on the screen with the values from the database. When the book
+            // is loaded again because it changed, the fields the user edited are kept
+            loadField(mTitleEditText, book, BookContract.BookEntry.COLUMN_BOOK_TITLE);
+            loadField(mAuthorEditText, book, BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
+            loadField(mPriceEditText, book, BookContract.BookEntry.COLUMN_BOOK_PRICE);
+            loadField(mQuantityEditText, book, BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+            loadField(mSupplierEditText, book, BookContract.BookEntry.COLUMN_BOOK_SUPPLIER);
+            loadField(mPhoneEditText, book, BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
+
+            mLoadedBook = book;
+        }
+    }
+
+    /**
+     * Show the loaded value of a column, unless the user changed the value loaded before.
+     */
+    private void loadField(EditText editText, ContentValues book, String column) {
+        if (mLoadedBook == null
+                || editText.getText().toString().equals(mLoadedBook.getAsString(column))) {
+            editText.setText(book.getAsString(column));
         }
     }
 
@@ -522,5 +577,68 @@ public class EditorActivity extends AppCompatActivity implements
         mQuantityEditText.setText(null);
         mSupplierEditText.setText(null);
         mPhoneEditText.setText(null);
+        mLoadedBook = null;
+    }
+
+    /**
+     * Shows the result of a write, and closes the editor when it succeeded. The write may
+     * complete after the editor is gone, so the toast uses the application context and the
+     * editor is only held weakly. The callbacks are made in static methods, where they do not
+     * hold the editor either.
+     */
+    private abstract static class EditorCallback<T> implements BookWriter.Callback<T> {
+
+        private final Context mContext;
+        private final WeakReference<EditorActivity> mEditor;
+        private final int mSuccessMessage;
+        private final int mFailureMessage;
+        private final int mDuration;
+
+        EditorCallback(EditorActivity editor, int successMessage, int failureMessage, int duration) {
+            mContext = editor.getApplicationContext();
+            mEditor = new WeakReference<>(editor);
+            mSuccessMessage = successMessage;
+            mFailureMessage = failureMessage;
+            mDuration = duration;
+        }
+
+        /**
+         * Return a callback of a write that succeeded when it changed rows.
+         */
+        static EditorCallback<Integer> rows(EditorActivity editor, int successMessage,
+                                            int failureMessage, int duration) {
+            return new EditorCallback<Integer>(editor, successMessage, failureMessage, duration) {
+                @Override
+                boolean isSuccessful(Integer rows) {
+                    return rows > 0;
+                }
+            };
+        }
+
+        /**
+         * Return a callback of an insert that succeeded when it returned the uri of the book.
+         */
+        static EditorCallback<Uri> uri(EditorActivity editor, int successMessage,
+                                       int failureMessage, int duration) {
+            return new EditorCallback<Uri>(editor, successMessage, failureMessage, duration) {
+                @Override
+                boolean isSuccessful(Uri uri) {
+                    return uri != null;
+                }
+            };
+        }
+
+        abstract boolean isSuccessful(T result);
+
+        @Override
+        public void onComplete(T result) {
+            boolean successful = isSuccessful(result);
+            Toast.makeText(mContext, successful ? mSuccessMessage : mFailureMessage, mDuration).show();
+            EditorActivity editor = mEditor.get();
+            if (successful && editor != null && !editor.isFinishing()
+                    && (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1 || !editor.isDestroyed())) {
+                editor.finish();
+            }
+        }
     }
-}
\ No newline at end of file
+}
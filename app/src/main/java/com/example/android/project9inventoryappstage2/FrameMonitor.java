@@ -0,0 +1,132 @@
+package com.example.android.project9inventoryappstage2;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
+
+import java.util.Locale;
+
+/**
+ * Counts the frames of an activity that took too long, i.e. the dropped frames the user sees
+ * as jank, and logs them when the activity pauses:
+ * <pre>
+ * adb logcat -s FrameMonitor
+ * </pre>
+ * Frames are timed with {@link Choreographer}, so nothing is measured before Jelly Bean.
+ * The monitor only runs in debug builds.
+ */
+class FrameMonitor {
+
+    private static final String LOG_TAG = FrameMonitor.class.getSimpleName();
+
+    private static final long FRAME_NANOS = 16666667;
+
+    /**
+     * A frame that starts this long after the previous one missed at least one vsync.
+     */
+    private static final long JANK_NANOS = FRAME_NANOS * 3 / 2;
+
+    private final String mName;
+    private Object mCallback;
+
+    private long mLastFrameNanos;
+    private int mFrames;
+    private int mJankyFrames;
+    private int mDroppedFrames;
+    private long mWorstFrameNanos;
+
+    /**
+     * @param name shown in the log, e.g. the name of the activity
+     */
+    FrameMonitor(String name) {
+        mName = name;
+    }
+
+    /**
+     * Start counting frames. Called from the main thread.
+     */
+    void start() {
+        if (!BuildConfig.DEBUG || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                || mCallback != null) {
+            return;
+        }
+        mLastFrameNanos = 0;
+        mFrames = 0;
+        mJankyFrames = 0;
+        mDroppedFrames = 0;
+        mWorstFrameNanos = 0;
+        mCallback = postFrameCallback();
+    }
+
+    /**
+     * Stop counting frames and log the counts. Called from the main thread.
+     */
+    void stop() {
+        if (mCallback == null) {
+            return;
+        }
+        removeFrameCallback(mCallback);
+        mCallback = null;
+        Log.i(LOG_TAG, String.format(Locale.US, "%s: %d frames, %d janky, %d dropped, worst %.1f ms",
+                mName, mFrames, mJankyFrames, mDroppedFrames, mWorstFrameNanos / 1e6));
+    }
+
+    private void onFrame(long frameTimeNanos) {
+        if (mLastFrameNanos != 0) {
+            long interval = frameTimeNanos - mLastFrameNanos;
+            mFrames++;
+            if (interval > JANK_NANOS) {
+                mJankyFrames++;
+                mDroppedFrames += (int) (interval / FRAME_NANOS) - 1;
+            }
+            mWorstFrameNanos = Math.max(mWorstFrameNanos, interval);
+        }
+        mLastFrameNanos = frameTimeNanos;
+    }
+
+    /**
+     * Log the time from the given start until the first frame that draws a child of the given
+     * view, e.g. the first rows of a list. Only in debug builds.
+     *
+     * @param startMillis start, in {@link SystemClock#uptimeMillis()}
+     * @param source      shown in the log, e.g. where the rows came from
+     */
+    void logFirstFrame(final ViewGroup view, final long startMillis, final String source) {
+        if (!BuildConfig.DEBUG) {
+            return;
+        }
+        view.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                if (view.getChildCount() > 0) {
+                    view.getViewTreeObserver().removeOnPreDrawListener(this);
+                    Log.i(LOG_TAG, String.format(Locale.US, "%s: first rows drawn after %d ms, from the %s",
+                            mName, SystemClock.uptimeMillis() - startMillis, source));
+                }
+                return true;
+            }
+        });
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private Object postFrameCallback() {
+        Choreographer.FrameCallback callback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                onFrame(frameTimeNanos);
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        };
+        Choreographer.getInstance().postFrameCallback(callback);
+        return callback;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void removeFrameCallback(Object callback) {
+        Choreographer.getInstance().removeFrameCallback((Choreographer.FrameCallback) callback);
+    }
+}
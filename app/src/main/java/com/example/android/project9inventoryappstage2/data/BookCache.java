@@ -0,0 +1,167 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.database.Cursor;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of single books, used by {@link BookProvider} to answer queries by id
+ * without going to SQLite.
+ * <p>
+ * The cache is limited both by number of entries and by an estimate of their size in bytes,
+ * and evicts the least recently used books first. The provider invalidates entries from its
+ * write paths. A lookup that started before an invalidation must not repopulate the cache with
+ * the values it read, so {@link #put} takes the {@link #generation()} observed before the read.
+ */
+class BookCache {
+
+    /**
+     * Immutable copy of all the columns of a book.
+     */
+    static final class Book {
+
+        final long mId;
+        final String mTitle;
+        final String mAuthor;
+        final int mPrice;
+        final int mQuantity;
+        final String mSupplier;
+        final String mPhone;
+
+        Book(Cursor cursor) {
+            mId = cursor.getLong(cursor.getColumnIndexOrThrow(BookContract.BookEntry._ID));
+            mTitle = cursor.getString(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_TITLE));
+            mAuthor = cursor.getString(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_AUTHOR));
+            mPrice = cursor.getInt(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_PRICE));
+            mQuantity = cursor.getInt(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_QUANTITY));
+            mSupplier = cursor.getString(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER));
+            mPhone = cursor.getString(cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE));
+        }
+
+        /**
+         * Return the value of the given column, or throw if it is not a column of the books table.
+         */
+        Object get(String column) {
+            switch (column) {
+                case BookContract.BookEntry._ID:
+                    return mId;
+                case BookContract.BookEntry.COLUMN_BOOK_TITLE:
+                    return mTitle;
+                case BookContract.BookEntry.COLUMN_BOOK_AUTHOR:
+                    return mAuthor;
+                case BookContract.BookEntry.COLUMN_BOOK_PRICE:
+                    return mPrice;
+                case BookContract.BookEntry.COLUMN_BOOK_QUANTITY:
+                    return mQuantity;
+                case BookContract.BookEntry.COLUMN_BOOK_SUPPLIER:
+                    return mSupplier;
+                case BookContract.BookEntry.COLUMN_SUPPLIER_PHONE:
+                    return mPhone;
+                default:
+                    throw new IllegalArgumentException("Unknown column " + column);
+            }
+        }
+
+        /**
+         * Rough size of this object and its strings on the heap.
+         */
+        int sizeInBytes() {
+            return 64 + 2 * (length(mTitle) + length(mAuthor) + length(mSupplier) + length(mPhone));
+        }
+
+        private static int length(String value) {
+            return value == null ? 0 : value.length();
+        }
+    }
+
+    private final int mMaxEntries;
+    private final int mMaxBytes;
+    private final LinkedHashMap<Long, Book> mBooks = new LinkedHashMap<>(16, 0.75f, true);
+    private int mBytes;
+    private long mGeneration;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    BookCache(int maxEntries, int maxBytes) {
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Return the cached book with the given id, or null.
+     */
+    synchronized Book get(long id) {
+        Book book = mBooks.get(id);
+        if (book == null) {
+            mMissCount++;
+        } else {
+            mHitCount++;
+        }
+        return book;
+    }
+
+    /**
+     * Value to pass to {@link #put} for a book read after this call.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache a book read from the database, unless the cache was invalidated since the given
+     * generation was taken.
+     */
+    synchronized void put(Book book, long generation) {
+        if (generation != mGeneration) {
+            return;
+        }
+        Book oldBook = mBooks.put(book.mId, book);
+        if (oldBook != null) {
+            mBytes -= oldBook.sizeInBytes();
+        }
+        mBytes += book.sizeInBytes();
+
+        Iterator<Map.Entry<Long, Book>> iterator = mBooks.entrySet().iterator();
+        while ((mBooks.size() > mMaxEntries || mBytes > mMaxBytes) && iterator.hasNext()) {
+            mBytes -= iterator.next().getValue().sizeInBytes();
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Drop the book with the given id.
+     */
+    synchronized void invalidate(long id) {
+        mGeneration++;
+        Book book = mBooks.remove(id);
+        if (book != null) {
+            mBytes -= book.sizeInBytes();
+        }
+    }
+
+    /**
+     * Drop every book, after a write that may have changed any of them.
+     */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mBooks.clear();
+        mBytes = 0;
+    }
+
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+}
@@ -0,0 +1,565 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable, columnar copy of the catalogue columns of a cursor: the ids, prices and quantities
+ * in primitive arrays, the titles packed in a single char array, and the authors interned, as
+ * the same authors come back across the books.
+ * <p>
+ * Built once with {@link #from(Cursor)}, it reads any book in constant time, without the
+ * seeking and the field decoding of a cursor. Sorting and filtering only make a new
+ * permutation of the rows, which shares the columns with the original catalogue.
+ */
+public class BookCatalog {
+
+    /**
+     * Accepts the books kept by {@link #filter(Filter)}.
+     */
+    public interface Filter {
+        boolean accept(BookCatalog catalog, int position);
+    }
+
+    /**
+     * Compares two rows of the columns.
+     */
+    private interface RowComparator {
+        int compare(int a, int b);
+    }
+
+    private final long[] mIds;
+    private final int[] mPrices;
+    private final int[] mQuantities;
+
+    /**
+     * The title of row i is the chars from mTitleStarts[i] to mTitleStarts[i + 1].
+     */
+    private final char[] mTitleChars;
+    private final int[] mTitleStarts;
+    private final String[] mAuthors;
+
+    /**
+     * Row of each position, or null when the positions are the rows.
+     */
+    private final int[] mRows;
+
+    /**
+     * Ids of this catalogue in ascending order and their positions, built on demand for
+     * {@link #indexOf(long)}.
+     */
+    private long[] mSortedIds;
+    private int[] mSortedPositions;
+
+    private BookCatalog(long[] ids, int[] prices, int[] quantities, char[] titleChars,
+                        int[] titleStarts, String[] authors, int[] rows) {
+        mIds = ids;
+        mPrices = prices;
+        mQuantities = quantities;
+        mTitleChars = titleChars;
+        mTitleStarts = titleStarts;
+        mAuthors = authors;
+        mRows = rows;
+    }
+
+    /**
+     * Copy all the books of the cursor, which must hold the {@link BookContract.BookEntry#_ID},
+     * title, author, price and quantity columns. The cursor is left after its last row.
+     */
+    public static BookCatalog from(Cursor cursor) {
+        int idColumn = cursor.getColumnIndexOrThrow(BookContract.BookEntry._ID);
+        int titleColumn = cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_TITLE);
+        int authorColumn = cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
+        int priceColumn = cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_PRICE);
+        int quantityColumn = cursor.getColumnIndexOrThrow(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+
+        int count = cursor.getCount();
+        long[] ids = new long[count];
+        int[] prices = new int[count];
+        int[] quantities = new int[count];
+        int[] titleStarts = new int[count + 1];
+        String[] authors = new String[count];
+        char[] titleChars = new char[count * 16];
+        Map<String, String> internedAuthors = new HashMap<>();
+
+        cursor.moveToPosition(-1);
+        for (int row = 0; row < count && cursor.moveToNext(); row++) {
+            ids[row] = cursor.getLong(idColumn);
+            prices[row] = cursor.getInt(priceColumn);
+            quantities[row] = cursor.getInt(quantityColumn);
+
+            String title = cursor.getString(titleColumn);
+            int start = titleStarts[row];
+            int length = title == null ? 0 : title.length();
+            if (start + length > titleChars.length) {
+                char[] grown = new char[Math.max(titleChars.length * 2, start + length)];
+                System.arraycopy(titleChars, 0, grown, 0, start);
+                titleChars = grown;
+            }
+            if (title != null) {
+                title.getChars(0, length, titleChars, start);
+            }
+            titleStarts[row + 1] = start + length;
+
+            String author = cursor.getString(authorColumn);
+            if (author != null) {
+                String interned = internedAuthors.get(author);
+                if (interned == null) {
+                    internedAuthors.put(author, author);
+                    interned = author;
+                }
+                authors[row] = interned;
+            }
+        }
+
+        char[] packedTitles = new char[titleStarts[count]];
+        System.arraycopy(titleChars, 0, packedTitles, 0, packedTitles.length);
+        return new BookCatalog(ids, prices, quantities, packedTitles, titleStarts, authors, null);
+    }
+
+    /**
+     * Return a catalogue of the books of this catalogue followed by the given books, e.g. to
+     * add the next page of a list. The rows are copied, so it runs in time linear in the size
+     * of both catalogues and should not run on the main thread for large ones.
+     */
+    public BookCatalog append(BookCatalog books) {
+        int count = size();
+        int total = count + books.size();
+        long[] ids = new long[total];
+        int[] prices = new int[total];
+        int[] quantities = new int[total];
+        String[] authors = new String[total];
+        int[] titleStarts = new int[total + 1];
+        char[] titleChars = new char[titleLength() + books.titleLength()];
+        copyRows(this, 0, ids, prices, quantities, authors, titleChars, titleStarts);
+        copyRows(books, count, ids, prices, quantities, authors, titleChars, titleStarts);
+        return new BookCatalog(ids, prices, quantities, titleChars, titleStarts, authors, null);
+    }
+
+    /**
+     * Return a catalogue of the books of this catalogue without the book at the given position,
+     * and with a book of another catalogue added at the given position, e.g. to move a changed
+     * book to its new place in a sorted list. The rows are copied, as by {@link #append(BookCatalog)}.
+     *
+     * @param removed  position of the book to remove, or -1 to remove none
+     * @param books    catalogue of the book to add
+     * @param position position of the book to add in books, or -1 to add none
+     * @param added    position of the added book in the returned catalogue
+     */
+    public BookCatalog move(int removed, BookCatalog books, int position, int added) {
+        int total = size() - (removed == -1 ? 0 : 1) + (position == -1 ? 0 : 1);
+        int titleLength = titleLength();
+        if (removed != -1) {
+            int row = row(removed);
+            titleLength -= mTitleStarts[row + 1] - mTitleStarts[row];
+        }
+        if (position != -1) {
+            int row = books.row(position);
+            titleLength += books.mTitleStarts[row + 1] - books.mTitleStarts[row];
+        }
+        long[] ids = new long[total];
+        int[] prices = new int[total];
+        int[] quantities = new int[total];
+        String[] authors = new String[total];
+        int[] titleStarts = new int[total + 1];
+        char[] titleChars = new char[titleLength];
+        int source = 0;
+        for (int target = 0; target < total; target++) {
+            if (source == removed) {
+                source++;
+            }
+            if (target == added && position != -1) {
+                copyRow(books, position, target, ids, prices, quantities, authors, titleChars, titleStarts);
+            } else {
+                copyRow(this, source++, target, ids, prices, quantities, authors, titleChars, titleStarts);
+            }
+        }
+        return new BookCatalog(ids, prices, quantities, titleChars, titleStarts, authors, null);
+    }
+
+    /**
+     * Copy the rows of the catalogue into the columns, from the given position. The title
+     * starts must be set up to that position.
+     */
+    private static void copyRows(BookCatalog catalog, int offset, long[] ids, int[] prices,
+                                 int[] quantities, String[] authors, char[] titleChars,
+                                 int[] titleStarts) {
+        for (int position = 0; position < catalog.size(); position++) {
+            copyRow(catalog, position, offset + position, ids, prices, quantities, authors,
+                    titleChars, titleStarts);
+        }
+    }
+
+    /**
+     * Copy a row of the catalogue into the columns, at the given position. The title starts
+     * must be set up to that position.
+     */
+    private static void copyRow(BookCatalog catalog, int position, int target, long[] ids, int[] prices,
+                                int[] quantities, String[] authors, char[] titleChars,
+                                int[] titleStarts) {
+        int row = catalog.row(position);
+        ids[target] = catalog.mIds[row];
+        prices[target] = catalog.mPrices[row];
+        quantities[target] = catalog.mQuantities[row];
+        authors[target] = catalog.mAuthors[row];
+        int start = catalog.mTitleStarts[row];
+        int length = catalog.mTitleStarts[row + 1] - start;
+        System.arraycopy(catalog.mTitleChars, start, titleChars, titleStarts[target], length);
+        titleStarts[target + 1] = titleStarts[target] + length;
+    }
+
+    /**
+     * Total length of the titles of the books of this catalogue.
+     */
+    private int titleLength() {
+        if (mRows == null) {
+            return mTitleStarts[mIds.length];
+        }
+        int length = 0;
+        for (int row : mRows) {
+            length += mTitleStarts[row + 1] - mTitleStarts[row];
+        }
+        return length;
+    }
+
+    public int size() {
+        return mRows == null ? mIds.length : mRows.length;
+    }
+
+    public long getId(int position) {
+        return mIds[row(position)];
+    }
+
+    public int getPrice(int position) {
+        return mPrices[row(position)];
+    }
+
+    public int getQuantity(int position) {
+        return mQuantities[row(position)];
+    }
+
+    public String getAuthor(int position) {
+        return mAuthors[row(position)];
+    }
+
+    /**
+     * Return the title of the book, empty if it has none.
+     */
+    public String getTitle(int position) {
+        int row = row(position);
+        return new String(mTitleChars, mTitleStarts[row], mTitleStarts[row + 1] - mTitleStarts[row]);
+    }
+
+    /**
+     * Copy the title of the book into the buffer, growing it if needed, without allocating a
+     * string, e.g. for {@link android.widget.TextView#setText(char[], int, int)}.
+     */
+    public void copyTitleToBuffer(int position, CharArrayBuffer buffer) {
+        int row = row(position);
+        int length = mTitleStarts[row + 1] - mTitleStarts[row];
+        if (buffer.data == null || buffer.data.length < length) {
+            buffer.data = new char[length];
+        }
+        System.arraycopy(mTitleChars, mTitleStarts[row], buffer.data, 0, length);
+        buffer.sizeCopied = length;
+    }
+
+    /**
+     * Return true if the book at the given position has the same values as the book at the
+     * other position of the other catalogue, apart from its quantity.
+     */
+    public boolean sameDetails(int position, BookCatalog other, int otherPosition) {
+        int row = row(position);
+        int otherRow = other.row(otherPosition);
+        if (mPrices[row] != other.mPrices[otherRow]) {
+            return false;
+        }
+        String author = mAuthors[row];
+        String otherAuthor = other.mAuthors[otherRow];
+        if (author == null ? otherAuthor != null : !author.equals(otherAuthor)) {
+            return false;
+        }
+        return compareTitles(this, row, other, otherRow) == 0;
+    }
+
+    /**
+     * Compare the book at the given position with the book at the other position of the other
+     * catalogue in one of the orders of the provider: by the keys of the order, then by id.
+     * Titles and authors are compared char by char.
+     *
+     * @param sort one of the {@link BookContract.BookEntry} SORT_ constants
+     */
+    public int compareInOrder(String sort, int position, BookCatalog other, int otherPosition) {
+        int row = row(position);
+        int otherRow = other.row(otherPosition);
+        int result;
+        switch (sort) {
+            case BookContract.BookEntry.SORT_ADDED:
+                result = 0;
+                break;
+            case BookContract.BookEntry.SORT_AUTHOR:
+                String author = mAuthors[row];
+                String otherAuthor = other.mAuthors[otherRow];
+                if (author == null || otherAuthor == null) {
+                    result = author == null ? (otherAuthor == null ? 0 : -1) : 1;
+                } else {
+                    result = author.compareTo(otherAuthor);
+                }
+                if (result == 0) {
+                    result = compareTitles(this, row, other, otherRow);
+                }
+                break;
+            case BookContract.BookEntry.SORT_PRICE:
+                result = compareLongs(mPrices[row], other.mPrices[otherRow]);
+                break;
+            case BookContract.BookEntry.SORT_QUANTITY:
+                result = compareLongs(mQuantities[row], other.mQuantities[otherRow]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown sort order " + sort);
+        }
+        return result != 0 ? result : compareLongs(mIds[row], other.mIds[otherRow]);
+    }
+
+    /**
+     * Return the values of the keys of the given order for the book at the given position, as
+     * the {@link BookContract.BookEntry#QUERY_PARAMETER_AFTER_KEY} of the page after it.
+     *
+     * @param sort one of the {@link BookContract.BookEntry} SORT_ constants
+     */
+    public String[] getSortKeys(String sort, int position) {
+        switch (sort) {
+            case BookContract.BookEntry.SORT_ADDED:
+                return new String[0];
+            case BookContract.BookEntry.SORT_AUTHOR:
+                return new String[]{getAuthor(position), getTitle(position)};
+            case BookContract.BookEntry.SORT_PRICE:
+                return new String[]{String.valueOf(getPrice(position))};
+            case BookContract.BookEntry.SORT_QUANTITY:
+                return new String[]{String.valueOf(getQuantity(position))};
+            default:
+                throw new IllegalArgumentException("Unknown sort order " + sort);
+        }
+    }
+
+    /**
+     * Return the position of the book with the given id, or -1 if it is not in the catalogue.
+     */
+    public synchronized int indexOf(long id) {
+        if (mSortedIds == null) {
+            int[] positions = new int[size()];
+            for (int position = 0; position < positions.length; position++) {
+                positions[position] = position;
+            }
+            mSortedPositions = sort(positions, new RowComparator() {
+                @Override
+                public int compare(int a, int b) {
+                    return compareLongs(getId(a), getId(b));
+                }
+            });
+            mSortedIds = new long[positions.length];
+            for (int i = 0; i < mSortedIds.length; i++) {
+                mSortedIds[i] = getId(mSortedPositions[i]);
+            }
+        }
+        int low = 0;
+        int high = mSortedIds.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (mSortedIds[middle] < id) {
+                low = middle + 1;
+            } else if (mSortedIds[middle] > id) {
+                high = middle - 1;
+            } else {
+                return mSortedPositions[middle];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Return the books sorted on the given column, keeping the current order of the books
+     * that have the same value. Titles and authors are compared char by char.
+     *
+     * @param column one of the columns read by {@link #from(Cursor)}
+     */
+    public BookCatalog sortedBy(String column, boolean descending) {
+        RowComparator comparator;
+        switch (column) {
+            case BookContract.BookEntry._ID:
+                comparator = new RowComparator() {
+                    @Override
+                    public int compare(int a, int b) {
+                        return compareLongs(mIds[a], mIds[b]);
+                    }
+                };
+                break;
+            case BookContract.BookEntry.COLUMN_BOOK_TITLE:
+                comparator = new RowComparator() {
+                    @Override
+                    public int compare(int a, int b) {
+                        return compareTitles(BookCatalog.this, a, BookCatalog.this, b);
+                    }
+                };
+                break;
+            case BookContract.BookEntry.COLUMN_BOOK_AUTHOR:
+                comparator = new RowComparator() {
+                    @Override
+                    public int compare(int a, int b) {
+                        String author = mAuthors[a];
+                        String otherAuthor = mAuthors[b];
+                        if (author == null || otherAuthor == null) {
+                            return author == null ? (otherAuthor == null ? 0 : -1) : 1;
+                        }
+                        return author.compareTo(otherAuthor);
+                    }
+                };
+                break;
+            case BookContract.BookEntry.COLUMN_BOOK_PRICE:
+                comparator = new RowComparator() {
+                    @Override
+                    public int compare(int a, int b) {
+                        return compareLongs(mPrices[a], mPrices[b]);
+                    }
+                };
+                break;
+            case BookContract.BookEntry.COLUMN_BOOK_QUANTITY:
+                comparator = new RowComparator() {
+                    @Override
+                    public int compare(int a, int b) {
+                        return compareLongs(mQuantities[a], mQuantities[b]);
+                    }
+                };
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot sort on " + column);
+        }
+
+        final RowComparator ascending = comparator;
+        if (descending) {
+            comparator = new RowComparator() {
+                @Override
+                public int compare(int a, int b) {
+                    return ascending.compare(b, a);
+                }
+            };
+        }
+        int[] rows = new int[size()];
+        for (int position = 0; position < rows.length; position++) {
+            rows[position] = row(position);
+        }
+        return withRows(sort(rows, comparator));
+    }
+
+    /**
+     * Return the books accepted by the filter, in the current order.
+     */
+    public BookCatalog filter(Filter filter) {
+        int[] rows = new int[size()];
+        int count = 0;
+        for (int position = 0; position < rows.length; position++) {
+            if (filter.accept(this, position)) {
+                rows[count++] = row(position);
+            }
+        }
+        int[] kept = new int[count];
+        System.arraycopy(rows, 0, kept, 0, count);
+        return withRows(kept);
+    }
+
+    /**
+     * Return the books accepted by the filter first, then the others, each in the current order.
+     */
+    public BookCatalog sortedFirst(Filter filter) {
+        int[] rows = new int[size()];
+        int first = 0;
+        for (int position = 0; position < rows.length; position++) {
+            if (filter.accept(this, position)) {
+                rows[first++] = row(position);
+            }
+        }
+        int next = first;
+        for (int position = 0; position < rows.length; position++) {
+            if (!filter.accept(this, position)) {
+                rows[next++] = row(position);
+            }
+        }
+        return withRows(rows);
+    }
+
+    /**
+     * Rough size of the catalogue on the heap, its shared columns included.
+     */
+    public long sizeInBytes() {
+        long bytes = 8L * mIds.length + 4L * (mPrices.length + mQuantities.length + mTitleStarts.length)
+                + 2L * mTitleChars.length + 4L * mAuthors.length;
+        Map<String, Boolean> authors = new HashMap<>();
+        for (String author : mAuthors) {
+            if (author != null && authors.put(author, Boolean.TRUE) == null) {
+                bytes += 40 + 2L * author.length();
+            }
+        }
+        return bytes + (mRows == null ? 0 : 4L * mRows.length);
+    }
+
+    private BookCatalog withRows(int[] rows) {
+        return new BookCatalog(mIds, mPrices, mQuantities, mTitleChars, mTitleStarts, mAuthors, rows);
+    }
+
+    private int row(int position) {
+        return mRows == null ? position : mRows[position];
+    }
+
+    private static int compareTitles(BookCatalog catalog, int row, BookCatalog other, int otherRow) {
+        int start = catalog.mTitleStarts[row];
+        int length = catalog.mTitleStarts[row + 1] - start;
+        int otherStart = other.mTitleStarts[otherRow];
+        int otherLength = other.mTitleStarts[otherRow + 1] - otherStart;
+        for (int i = 0; i < length && i < otherLength; i++) {
+            char c = catalog.mTitleChars[start + i];
+            char otherC = other.mTitleChars[otherStart + i];
+            if (c != otherC) {
+                return c - otherC;
+            }
+        }
+        return length - otherLength;
+    }
+
+    private static int compareLongs(long a, long b) {
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /**
+     * Stable merge sort of the given rows, without boxing them. Returns a sorted copy.
+     */
+    private static int[] sort(int[] rows, RowComparator comparator) {
+        int[] source = rows.clone();
+        int[] target = new int[rows.length];
+        for (int width = 1; width < rows.length; width *= 2) {
+            for (int low = 0; low < rows.length; low += 2 * width) {
+                int middle = Math.min(low + width, rows.length);
+                int high = Math.min(low + 2 * width, rows.length);
+                int i = low;
+                int j = middle;
+                int k = low;
+                while (i < middle && j < high) {
+                    // Take from the right run only when strictly smaller, to keep the order
+                    target[k++] = comparator.compare(source[j], source[i]) < 0 ? source[j++] : source[i++];
+                }
+                while (i < middle) {
+                    target[k++] = source[i++];
+                }
+                while (j < high) {
+                    target[k++] = source[j++];
+                }
+            }
+            int[] swap = source;
+            source = target;
+            target = swap;
+        }
+        return source;
+    }
+}
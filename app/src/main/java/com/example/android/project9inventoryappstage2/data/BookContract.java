@@ -1,6 +1,7 @@
 package com.example.android.project9inventoryappstage2.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -22,12 +23,167 @@ public final class BookContract {
 
     public static final String PATH_SELL = "sell";
 
+    public static final String PATH_SEARCH = "search";
+
+    public static final String PATH_SUPPLIERS = "suppliers";
+
+    public static final String PATH_STATS = "stats";
+
+    public static final String PATH_ALERTS = "alerts";
+
+    public static final String PATH_SALES = "sales";
+
+    public static final String PATH_ROLLUP = "rollup";
+
+    /**
+     * Method for {@link ContentResolver#call} that exports the books table to the file whose
+     * absolute path is passed as the argument. The extras may hold {@link #EXTRA_FORMAT};
+     * the result holds {@link #EXTRA_ROW_COUNT}.
+     */
+    public static final String METHOD_EXPORT = "export";
+
+    /**
+     * Name of a {@link BookImporter.Format}, CSV by default.
+     */
+    public static final String EXTRA_FORMAT = "format";
+
+    public static final String EXTRA_ROW_COUNT = "row_count";
+
+    /**
+     * Method for {@link ContentResolver#call} that returns how many changes the provider
+     * recorded ({@link #EXTRA_CHANGES_RECEIVED}) and how many notifications it actually sent
+     * to observers after coalescing them ({@link #EXTRA_NOTIFICATIONS_SENT}).
+     */
+    public static final String METHOD_NOTIFICATION_STATS = "notification_stats";
+
+    public static final String EXTRA_CHANGES_RECEIVED = "changes_received";
+
+    public static final String EXTRA_NOTIFICATIONS_SENT = "notifications_sent";
+
+    /**
+     * Method for {@link ContentResolver#call} that returns the hit, miss and eviction counts of
+     * the cache behind queries on a single book.
+     */
+    public static final String METHOD_CACHE_STATS = "cache_stats";
+
+    public static final String EXTRA_CACHE_HITS = "cache_hits";
+
+    public static final String EXTRA_CACHE_MISSES = "cache_misses";
+
+    public static final String EXTRA_CACHE_EVICTIONS = "cache_evictions";
+
+    /**
+     * Method for {@link ContentResolver#call} that recomputes the inventory statistics from the
+     * books and compares them with the maintained ones ({@link #EXTRA_STATS_CONSISTENT}).
+     * The recomputed values replace the maintained ones.
+     */
+    public static final String METHOD_CHECK_STATS = "check_stats";
+
+    public static final String EXTRA_STATS_CONSISTENT = "stats_consistent";
+
+    /**
+     * Method for {@link ContentResolver#call} that rolls the sales recorded since the last
+     * rollup up into their time buckets. The result holds {@link #EXTRA_ROW_COUNT}, the number
+     * of sales rolled up. Queries on {@link RollupEntry#CONTENT_URI} do this first anyway.
+     */
+    public static final String METHOD_ROLL_UP_SALES = "roll_up_sales";
+
+    /**
+     * Method for {@link ContentResolver#call} that synchronizes the books with the inventory
+     * server whose base URL is passed as the argument: the local changes are pushed, then the
+     * changes of the other devices are pulled. The result holds {@link #EXTRA_BOOKS_PUSHED},
+     * {@link #EXTRA_BOOKS_PULLED}, and {@link #EXTRA_SYNC_ERROR} if the sync stopped early; the
+     * next sync resumes where it stopped. The call blocks on the network and must not be made
+     * from the main thread.
+     */
+    public static final String METHOD_SYNC = "sync";
+
+    public static final String EXTRA_BOOKS_PUSHED = "books_pushed";
+
+    public static final String EXTRA_BOOKS_PULLED = "books_pulled";
+
+    public static final String EXTRA_SYNC_ERROR = "sync_error";
+
     public static final class BookEntry implements BaseColumns {
 
         public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_BOOKS);
 
         public static final Uri SELL_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SELL);
 
+        /**
+         * Full-text search over title and author. The search terms are passed in the
+         * {@link #QUERY_PARAMETER_SEARCH} query parameter and each one matches as a word prefix.
+         */
+        public static final Uri SEARCH_URI = Uri.withAppendedPath(CONTENT_URI, PATH_SEARCH);
+
+        public static final String QUERY_PARAMETER_SEARCH = "q";
+
+        /**
+         * Query parameters for keyset pagination on {@link #CONTENT_URI}: at most {@code limit}
+         * books whose {@link #_ID} is greater than {@code after}, ordered by {@link #_ID}.
+         * {@code after} defaults to 0, i.e. the first page.
+         */
+        public static final String QUERY_PARAMETER_LIMIT = "limit";
+
+        public static final String QUERY_PARAMETER_AFTER = "after";
+
+        /**
+         * Query parameter, repeated once per key of the sort order, with the values of the keys
+         * of the book {@code after}, e.g. {@code sort=price&after=12&after_key=8}. Pages of the
+         * orders other than {@link #SORT_ADDED} require it: they start after these values, so
+         * a page after a book that was changed or deleted meanwhile still starts in its place.
+         */
+        public static final String QUERY_PARAMETER_AFTER_KEY = "after_key";
+
+        /**
+         * Query parameter for the order of the books on {@link #CONTENT_URI}: one of
+         * {@link #SORT_ADDED} (the default), {@link #SORT_AUTHOR}, {@link #SORT_PRICE} or
+         * {@link #SORT_QUANTITY}. Each order is read from an index and ends with the
+         * {@link #_ID}, and pages then start after the book {@code after} in that order.
+         */
+        public static final String QUERY_PARAMETER_SORT = "sort";
+
+        /**
+         * In the order the books were added, i.e. by {@link #_ID}.
+         */
+        public static final String SORT_ADDED = "added";
+
+        /**
+         * By author, then by title: the keys of the order are the author and the title.
+         */
+        public static final String SORT_AUTHOR = "author";
+
+        /**
+         * Cheapest first.
+         */
+        public static final String SORT_PRICE = "price";
+
+        /**
+         * Lowest stock first.
+         */
+        public static final String SORT_QUANTITY = "quantity";
+
+        /**
+         * Query parameter to only return some of the books on {@link #CONTENT_URI}: one of
+         * {@link #FILTER_IN_STOCK} or {@link #FILTER_OUT_OF_STOCK}. Combines with any sort order.
+         */
+        public static final String QUERY_PARAMETER_FILTER = "filter";
+
+        public static final String FILTER_IN_STOCK = "in_stock";
+        public static final String FILTER_OUT_OF_STOCK = "out_of_stock";
+
+        /**
+         * Query parameter of the URI passed to observers when a single book changes, e.g.
+         * {@code books/5?change=update}. Its value is one of {@link #CHANGE_INSERT},
+         * {@link #CHANGE_UPDATE} or {@link #CHANGE_DELETE}. Changes to many books at once are
+         * notified on {@link #CONTENT_URI} without this parameter.
+         */
+        public static final String QUERY_PARAMETER_CHANGE = "change";
+
+        public static final String CHANGE_INSERT = "insert";
+        public static final String CHANGE_UPDATE = "update";
+        public static final String CHANGE_DELETE = "delete";
+
         public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
                 CONTENT_AUTHORITY + "/" + PATH_BOOKS;
 
@@ -35,14 +191,262 @@ public final class BookContract {
                 CONTENT_AUTHORITY + "/" + PATH_BOOKS;
 
 
+        /**
+         * Build the URI notified when the book with the given id changes.
+         */
+        public static Uri buildChangeUri(long id, String change) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_CHANGE, change)
+                    .build();
+        }
+
         public final static String TABLE_NAME = "books";
+
+        /**
+         * The books joined with their supplier, i.e. with the {@link #COLUMN_BOOK_SUPPLIER} and
+         * {@link #COLUMN_SUPPLIER_PHONE} columns. Queries only read it when they need those columns.
+         */
+        public final static String VIEW_NAME = "books_with_suppliers";
+
+        /**
+         * FTS4 index of the title and author columns, kept in sync by triggers.
+         * Its docid is the {@link #_ID} of the indexed book.
+         */
+        public final static String FTS_TABLE_NAME = "books_fts";
         public final static String _ID = BaseColumns._ID;
         public final static String COLUMN_BOOK_TITLE = "title";
         public final static String COLUMN_BOOK_AUTHOR = "author";
         public final static String COLUMN_BOOK_PRICE = "price";
         public final static String COLUMN_BOOK_QUANTITY = "quantity";
+        public final static String COLUMN_SUPPLIER_ID = "supplier_id";
+
+        /**
+         * Optional: the book is low on stock below this many units. When null,
+         * {@link StatsEntry#LOW_STOCK_THRESHOLD} applies.
+         */
+        public final static String COLUMN_LOW_STOCK_THRESHOLD = "low_stock_threshold";
+
+        /**
+         * Incremented by every write to the book, sales included. Maintained by the provider,
+         * it cannot be written.
+         */
+        public final static String COLUMN_VERSION = "version";
+
+        /**
+         * Name and phone of the supplier. They are stored once per supplier in the
+         * {@link SupplierEntry#TABLE_NAME} table; writes pass them as before and the provider
+         * looks up, or creates, the matching supplier.
+         */
         public final static String COLUMN_BOOK_SUPPLIER = "supplier_name";
         public final static String COLUMN_SUPPLIER_PHONE = "supplier_phone_number";
 
+        /**
+         * Optional key for the {@link android.content.ContentValues} passed to an update on {@link #SELL_URI}:
+         * the number of units sold. When it is missing a single unit is sold.
+         */
+        public final static String SELL_UNITS = "units";
+
+        /**
+         * Optional key for the {@link android.content.ContentValues} passed to an update of a
+         * single book: the {@link #COLUMN_VERSION} the values were based on. The book is only
+         * updated if it is still at this version, otherwise the update reports 0 rows.
+         */
+        public final static String EXPECTED_VERSION = "expected_version";
+
+        /**
+         * Prefix of the optional keys for the {@link android.content.ContentValues} passed to an
+         * update of a single book, see {@link #expected(String)}.
+         */
+        public final static String EXPECTED_PREFIX = "expected_";
+
+        /**
+         * Return the key of the value that the given column is expected to hold, e.g.
+         * {@code expected_price}. The book is only updated if each column given this way still
+         * holds its expected value, otherwise the update reports 0 rows. Unlike
+         * {@link #EXPECTED_VERSION}, a change to other columns, e.g. a sale, does not fail it.
+         */
+        public static String expected(String column) {
+            return EXPECTED_PREFIX + column;
+        }
+
+    }
+
+    /**
+     * Suppliers of the books, one row per distinct name and phone. Read only: suppliers are
+     * created by the book writes that name them.
+     */
+    public static final class SupplierEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SUPPLIERS);
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_SUPPLIERS;
+
+        /**
+         * Build the URI of all the books of the given supplier, e.g. {@code suppliers/3/books}.
+         */
+        public static Uri buildBooksUri(long supplierId) {
+            return ContentUris.withAppendedId(CONTENT_URI, supplierId).buildUpon()
+                    .appendPath(PATH_BOOKS)
+                    .build();
+        }
+
+        public final static String TABLE_NAME = "suppliers";
+        public final static String _ID = BaseColumns._ID;
+        public final static String COLUMN_SUPPLIER_NAME = "name";
+        public final static String COLUMN_SUPPLIER_PHONE = "phone";
+    }
+
+    /**
+     * Inventory statistics, maintained by triggers on every write to the books so that reading
+     * them costs a single row. {@link #CONTENT_URI} returns that row.
+     */
+    public static final class StatsEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BookEntry.CONTENT_URI, PATH_STATS);
+
+        public static final String CONTENT_ITEM_TYPE = ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_STATS;
+
+        /**
+         * Books with fewer units than this count as low on stock.
+         */
+        public static final int LOW_STOCK_THRESHOLD = 5;
+
+        public final static String TABLE_NAME = "book_stats";
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * Number of books, i.e. of titles.
+         */
+        public final static String COLUMN_TITLES = "titles";
+
+        /**
+         * Units in stock over all the books.
+         */
+        public final static String COLUMN_UNITS = "units";
+
+        /**
+         * Sum of price times quantity over all the books.
+         */
+        public final static String COLUMN_STOCK_VALUE = "stock_value";
+
+        /**
+         * Number of books with fewer units than their low-stock threshold, or than
+         * {@link #LOW_STOCK_THRESHOLD} for the books without one.
+         */
+        public final static String COLUMN_LOW_STOCK_TITLES = "low_stock_titles";
+    }
+
+    /**
+     * Stock alerts. When the stock level of a book changes, e.g. a sale takes it below its
+     * threshold, the provider notifies a URI like {@code alerts/5?level=low}. Subscribers
+     * register a {@link android.database.ContentObserver} on {@link #CONTENT_URI} with
+     * descendants, and receive the URI in {@code onChange(boolean, Uri)} on API 16 and above.
+     * Nothing is queried: the URI is the whole event.
+     */
+    public static final class AlertEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(BASE_CONTENT_URI, PATH_ALERTS);
+
+        public static final String QUERY_PARAMETER_LEVEL = "level";
+
+        /**
+         * Fewer units than the threshold of the book.
+         */
+        public static final String LEVEL_LOW = "low";
+
+        /**
+         * No units left.
+         */
+        public static final String LEVEL_OUT = "out";
+
+        /**
+         * Back to at least the threshold of the book.
+         */
+        public static final String LEVEL_RESTOCKED = "restocked";
+
+        /**
+         * Build the URI notified when the book with the given id reaches the given level.
+         */
+        public static Uri buildAlertUri(long bookId, String level) {
+            return ContentUris.withAppendedId(CONTENT_URI, bookId).buildUpon()
+                    .appendQueryParameter(QUERY_PARAMETER_LEVEL, level)
+                    .build();
+        }
+    }
+
+    /**
+     * Ledger of the sales, one row per sale made through {@link BookEntry#SELL_URI}, written in
+     * the same transaction as the sale. Rows are never updated; they are removed once rolled up
+     * and older than {@link #RETENTION_MILLIS}.
+     */
+    public static final class SaleEntry implements BaseColumns {
+
+        public static final long RETENTION_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+        public final static String TABLE_NAME = "sales";
+        public final static String _ID = BaseColumns._ID;
+        public final static String COLUMN_BOOK_ID = "book_id";
+        public final static String COLUMN_UNITS = "units";
+
+        /**
+         * Price of one unit at the time of the sale.
+         */
+        public final static String COLUMN_PRICE = "price";
+
+        /**
+         * Time of the sale, in milliseconds since the epoch.
+         */
+        public final static String COLUMN_SOLD_AT = "sold_at";
+    }
+
+    /**
+     * Sales summed per book and per minute, hour or day (UTC).
+     * <p>
+     * {@link #CONTENT_URI} returns one row per bucket, with the {@link #COLUMN_BUCKET_START},
+     * {@link #COLUMN_UNITS} and {@link #COLUMN_REVENUE} columns, ordered by time. Its query
+     * parameters are {@link #QUERY_PARAMETER_BUCKET} (required), the optional time range
+     * {@link #QUERY_PARAMETER_FROM} (inclusive) and {@link #QUERY_PARAMETER_TO} (exclusive),
+     * and {@link #QUERY_PARAMETER_BOOK} to only count one book.
+     */
+    public static final class RollupEntry {
+
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                Uri.withAppendedPath(BASE_CONTENT_URI, PATH_SALES), PATH_ROLLUP);
+
+        public static final String CONTENT_LIST_TYPE = ContentResolver.CURSOR_DIR_BASE_TYPE + "/" +
+                CONTENT_AUTHORITY + "/" + PATH_SALES + "/" + PATH_ROLLUP;
+
+        public static final String QUERY_PARAMETER_BUCKET = "bucket";
+        public static final String QUERY_PARAMETER_FROM = "from";
+        public static final String QUERY_PARAMETER_TO = "to";
+        public static final String QUERY_PARAMETER_BOOK = "book";
+
+        public static final String BUCKET_MINUTE = "minute";
+        public static final String BUCKET_HOUR = "hour";
+        public static final String BUCKET_DAY = "day";
+
+        public final static String TABLE_NAME = "sales_rollup";
+
+        /**
+         * One of {@link #BUCKET_MINUTE}, {@link #BUCKET_HOUR} or {@link #BUCKET_DAY}.
+         */
+        public final static String COLUMN_BUCKET = "bucket";
+
+        /**
+         * Start of the bucket, in milliseconds since the epoch.
+         */
+        public final static String COLUMN_BUCKET_START = "bucket_start";
+        public final static String COLUMN_BOOK_ID = "book_id";
+        public final static String COLUMN_UNITS = "units";
+
+        /**
+         * Sum of the units times their price.
+         */
+        public final static String COLUMN_REVENUE = "revenue";
     }
 }
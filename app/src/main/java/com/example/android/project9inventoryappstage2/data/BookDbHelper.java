@@ -1,27 +1,157 @@
 package com.example.android.project9inventoryappstage2.data;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+
+import java.util.Arrays;
 
 public class BookDbHelper extends SQLiteOpenHelper {
 
+    /**
+     * How the database is configured when it is opened.
+     */
+    public enum StorageProfile {
+
+        /**
+         * The platform defaults: rollback journal, so readers wait for the writer.
+         */
+        LEGACY(false, null, 0, 0, null),
+
+        /**
+         * Write-ahead logging, so readers run alongside the writer, with fewer syncs
+         * (still safe in WAL mode), an 8 MB page cache, memory-mapped reads and in-memory
+         * temporary tables.
+         */
+        TUNED(true, "NORMAL", -8 * 1024, 64 * 1024 * 1024, "MEMORY");
+
+        final boolean mWriteAheadLogging;
+        final String mSynchronous;
+        /**
+         * In pages if positive, in KB if negative, as for the cache_size pragma.
+         */
+        final int mCacheSize;
+        final long mMmapSize;
+        final String mTempStore;
+
+        StorageProfile(boolean writeAheadLogging, String synchronous, int cacheSize, long mmapSize,
+                       String tempStore) {
+            mWriteAheadLogging = writeAheadLogging;
+            mSynchronous = synchronous;
+            mCacheSize = cacheSize;
+            mMmapSize = mmapSize;
+            mTempStore = tempStore;
+        }
+    }
+
     /**
      * Database version. If you change the database schema, you must increment the database version.
+     * The {@link CatalogSnapshot} is rebuilt when it changes.
      */
-    private static final int DATABASE_VERSION = 1;
+    static final int DATABASE_VERSION = 11;
 
     private static final String DATABASE_NAME = "bookstore.db";
 
     public static final String LOG_TAG = BookDbHelper.class.getSimpleName();
 
+    /**
+     * Names of the CHECK constraints of the books and suppliers tables. SQLite names the constraint that
+     * failed in the message of its {@link android.database.sqlite.SQLiteConstraintException}.
+     */
+    static final String CHECK_TITLE = "title_required";
+    static final String CHECK_AUTHOR = "author_required";
+    static final String CHECK_PRICE = "price_valid";
+    static final String CHECK_QUANTITY = "quantity_valid";
+    static final String CHECK_SUPPLIER = "supplier_required";
+    static final String CHECK_PHONE = "phone_required";
+    static final String CHECK_THRESHOLD = "threshold_valid";
+
+    /**
+     * The threshold of the books before version 6, when they had none of their own.
+     */
+    private static final String DEFAULT_THRESHOLD = String.valueOf(BookContract.StatsEntry.LOW_STOCK_THRESHOLD);
+
+    /**
+     * The statistics computed from all the books, in the column order of the stats table.
+     */
+    private static final String STATS_AGGREGATES = statsAggregates(lowStockThreshold(null));
+
+    private final StorageProfile mProfile;
+
     /**
      * Constructs a new instance of {@link BookDbHelper}.
      *
      * @param context of the app
      */
     public BookDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, DATABASE_NAME, StorageProfile.TUNED);
+    }
+
+    /**
+     * Constructs a new instance of {@link BookDbHelper} for the given database file and profile.
+     *
+     * @param context of the app
+     * @param name    of the database file
+     * @param profile how the database is configured when it is opened
+     */
+    public BookDbHelper(Context context, String name, StorageProfile profile) {
+        super(context, name, null, DATABASE_VERSION);
+        mProfile = profile;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(profile.mWriteAheadLogging);
+        }
+    }
+
+    /**
+     * This is called before the database is created or upgraded, to enforce foreign keys.
+     */
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            db.setForeignKeyConstraintsEnabled(true);
+        }
+    }
+
+    /**
+     * This is called when the database has been opened, to apply the storage profile.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            // onConfigure is not called before Jelly Bean
+            db.execSQL("PRAGMA foreign_keys = ON;");
+            if (mProfile.mWriteAheadLogging) {
+                db.enableWriteAheadLogging();
+            }
+        }
+        if (mProfile.mSynchronous != null) {
+            setPragma(db, "synchronous", mProfile.mSynchronous);
+        }
+        if (mProfile.mCacheSize != 0) {
+            setPragma(db, "cache_size", String.valueOf(mProfile.mCacheSize));
+        }
+        if (mProfile.mMmapSize != 0) {
+            setPragma(db, "mmap_size", String.valueOf(mProfile.mMmapSize));
+        }
+        if (mProfile.mTempStore != null) {
+            setPragma(db, "temp_store", mProfile.mTempStore);
+        }
+    }
+
+    /**
+     * Some pragmas return the new value as a row, so they are run as queries.
+     */
+    private static void setPragma(SQLiteDatabase db, String name, String value) {
+        Cursor cursor = db.rawQuery("PRAGMA " + name + " = " + value, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
@@ -41,14 +171,535 @@ public class BookDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_BOOKS_TABLE);
+
+        // Bring the version 1 schema up to date
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. Each step migrates the schema
+     * from one version to the next, so a database can be upgraded from any older version.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        if (oldVersion < 2) {
+            createSearchIndex(db);
+        }
+        if (oldVersion < 3) {
+            addCheckConstraints(db);
+        }
+        if (oldVersion < 4) {
+            createSuppliersTable(db);
+        }
+        if (oldVersion < 5) {
+            createStatsTable(db);
+        }
+        if (oldVersion < 6) {
+            addLowStockThreshold(db);
+        }
+        if (oldVersion < 7) {
+            createSalesTables(db);
+        }
+        if (oldVersion < 8) {
+            addVersionColumn(db);
+        }
+        if (oldVersion < 9) {
+            createSyncTables(db);
+        }
+        if (oldVersion < 10) {
+            createSortIndexes(db);
+        }
+        if (oldVersion >= 6 && oldVersion < 11) {
+            fixLowStockStats(db);
+        }
+    }
+
+    /**
+     * Version 2: full-text index over the title and author of every book.
+     */
+    private void createSearchIndex(SQLiteDatabase db) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String fts = BookContract.BookEntry.FTS_TABLE_NAME;
+        String id = BookContract.BookEntry._ID;
+        String title = BookContract.BookEntry.COLUMN_BOOK_TITLE;
+        String author = BookContract.BookEntry.COLUMN_BOOK_AUTHOR;
+
+        db.execSQL("CREATE VIRTUAL TABLE " + fts + " USING fts4(" + title + ", " + author + ");");
+
+        createSearchTriggers(db);
+
+        // Index the books that already exist
+        db.execSQL("INSERT INTO " + fts + " (docid, " + title + ", " + author + ") "
+                + "SELECT " + id + ", " + title + ", " + author + " FROM " + table + ";");
+    }
+
+    /**
+     * Triggers that keep the full-text index in sync with the books table.
+     */
+    private void createSearchTriggers(SQLiteDatabase db) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String fts = BookContract.BookEntry.FTS_TABLE_NAME;
+        String id = BookContract.BookEntry._ID;
+        String title = BookContract.BookEntry.COLUMN_BOOK_TITLE;
+        String author = BookContract.BookEntry.COLUMN_BOOK_AUTHOR;
+
+        db.execSQL("CREATE TRIGGER " + fts + "_insert AFTER INSERT ON " + table + " BEGIN "
+                + "INSERT INTO " + fts + " (docid, " + title + ", " + author + ") "
+                + "VALUES (new." + id + ", new." + title + ", new." + author + "); END;");
+
+        db.execSQL("CREATE TRIGGER " + fts + "_update AFTER UPDATE OF " + title + ", " + author
+                + " ON " + table + " BEGIN "
+                + "UPDATE " + fts + " SET " + title + " = new." + title + ", "
+                + author + " = new." + author + " WHERE docid = old." + id + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + fts + "_delete AFTER DELETE ON " + table + " BEGIN "
+                + "DELETE FROM " + fts + " WHERE docid = old." + id + "; END;");
+    }
+
+    /**
+     * Version 3: the rules for a valid book move from the provider into CHECK constraints.
+     * SQLite cannot add constraints to an existing table, so the table is rebuilt with the
+     * same ids and its search triggers are created again.
+     */
+    private void addCheckConstraints(SQLiteDatabase db) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String newTable = table + "_new";
+        String title = BookContract.BookEntry.COLUMN_BOOK_TITLE;
+        String author = BookContract.BookEntry.COLUMN_BOOK_AUTHOR;
+        String price = BookContract.BookEntry.COLUMN_BOOK_PRICE;
+        String quantity = BookContract.BookEntry.COLUMN_BOOK_QUANTITY;
+        String supplier = BookContract.BookEntry.COLUMN_BOOK_SUPPLIER;
+        String phone = BookContract.BookEntry.COLUMN_SUPPLIER_PHONE;
+        String columns = BookContract.BookEntry._ID + ", " + title + ", " + author + ", " + price + ", "
+                + quantity + ", " + supplier;
+
+        // The checks replace NOT NULL, so that every rule reports its own constraint name.
+        // The CAST comparison rejects values that are not whole numbers, e.g. text.
+        db.execSQL("CREATE TABLE " + newTable + " ("
+                + BookContract.BookEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + title + " TEXT CONSTRAINT " + CHECK_TITLE + " CHECK (" + title + " IS NOT NULL), "
+                + author + " TEXT CONSTRAINT " + CHECK_AUTHOR + " CHECK (" + author + " IS NOT NULL), "
+                + price + " INTEGER CONSTRAINT " + CHECK_PRICE + " CHECK (" + price + " IS NOT NULL AND "
+                + price + " >= 0 AND CAST(" + price + " AS INTEGER) = " + price + "), "
+                + quantity + " INTEGER CONSTRAINT " + CHECK_QUANTITY + " CHECK (" + quantity + " IS NOT NULL AND "
+                + quantity + " >= 0 AND CAST(" + quantity + " AS INTEGER) = " + quantity + "), "
+                + supplier + " TEXT CONSTRAINT " + CHECK_SUPPLIER + " CHECK (" + supplier + " IS NOT NULL), "
+                + phone + " TEXT CONSTRAINT " + CHECK_PHONE + " CHECK (" + phone + " IS NOT NULL));");
+
+        // The phone used to be nullable in the schema
+        db.execSQL("INSERT INTO " + newTable + " (" + columns + ", " + phone + ") SELECT "
+                + columns + ", COALESCE(" + phone + ", '') FROM " + table + ";");
+
+        replaceBooksTable(db, newTable);
     }
 
-}
\ No newline at end of file
+    /**
+     * Version 4: suppliers move to their own table, referenced by an indexed supplier_id.
+     * The books keep their ids, and a view joins them back with their supplier.
+     */
+    private void createSuppliersTable(SQLiteDatabase db) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String newTable = table + "_new";
+        String suppliers = BookContract.SupplierEntry.TABLE_NAME;
+        String supplierId = BookContract.SupplierEntry._ID;
+        String name = BookContract.SupplierEntry.COLUMN_SUPPLIER_NAME;
+        String phone = BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE;
+        String id = BookContract.BookEntry._ID;
+        String title = BookContract.BookEntry.COLUMN_BOOK_TITLE;
+        String author = BookContract.BookEntry.COLUMN_BOOK_AUTHOR;
+        String price = BookContract.BookEntry.COLUMN_BOOK_PRICE;
+        String quantity = BookContract.BookEntry.COLUMN_BOOK_QUANTITY;
+        String bookSupplierId = BookContract.BookEntry.COLUMN_SUPPLIER_ID;
+        String bookSupplier = BookContract.BookEntry.COLUMN_BOOK_SUPPLIER;
+        String bookPhone = BookContract.BookEntry.COLUMN_SUPPLIER_PHONE;
+
+        // The unique index also serves the lookups by name and phone
+        db.execSQL("CREATE TABLE " + suppliers + " ("
+                + supplierId + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + name + " TEXT CONSTRAINT " + CHECK_SUPPLIER + " CHECK (" + name + " IS NOT NULL), "
+                + phone + " TEXT CONSTRAINT " + CHECK_PHONE + " CHECK (" + phone + " IS NOT NULL), "
+                + "UNIQUE (" + name + ", " + phone + "));");
+
+        db.execSQL("INSERT INTO " + suppliers + " (" + name + ", " + phone + ") SELECT DISTINCT "
+                + bookSupplier + ", " + bookPhone + " FROM " + table + ";");
+
+        db.execSQL("CREATE TABLE " + newTable + " ("
+                + id + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + title + " TEXT CONSTRAINT " + CHECK_TITLE + " CHECK (" + title + " IS NOT NULL), "
+                + author + " TEXT CONSTRAINT " + CHECK_AUTHOR + " CHECK (" + author + " IS NOT NULL), "
+                + price + " INTEGER CONSTRAINT " + CHECK_PRICE + " CHECK (" + price + " IS NOT NULL AND "
+                + price + " >= 0 AND CAST(" + price + " AS INTEGER) = " + price + "), "
+                + quantity + " INTEGER CONSTRAINT " + CHECK_QUANTITY + " CHECK (" + quantity + " IS NOT NULL AND "
+                + quantity + " >= 0 AND CAST(" + quantity + " AS INTEGER) = " + quantity + "), "
+                + bookSupplierId + " INTEGER NOT NULL REFERENCES " + suppliers + " (" + supplierId + "));");
+
+        db.execSQL("INSERT INTO " + newTable + " (" + id + ", " + title + ", " + author + ", " + price + ", "
+                + quantity + ", " + bookSupplierId + ") SELECT b." + id + ", b." + title + ", b." + author
+                + ", b." + price + ", b." + quantity + ", s." + supplierId + " FROM " + table + " b JOIN "
+                + suppliers + " s ON s." + name + " = b." + bookSupplier + " AND s." + phone + " = b."
+                + bookPhone + ";");
+
+        replaceBooksTable(db, newTable);
+
+        db.execSQL("CREATE INDEX " + table + "_" + bookSupplierId + " ON " + table + " ("
+                + bookSupplierId + ");");
+
+        createBooksView(db);
+    }
+
+    /**
+     * View of the books joined with their supplier, under the column names of the books
+     * table before version 4. The columns of the books are expanded whenever the view is read.
+     */
+    private void createBooksView(SQLiteDatabase db) {
+        db.execSQL("CREATE VIEW " + BookContract.BookEntry.VIEW_NAME + " AS SELECT b.*"
+                + ", s." + BookContract.SupplierEntry.COLUMN_SUPPLIER_NAME
+                + " AS " + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER
+                + ", s." + BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE
+                + " AS " + BookContract.BookEntry.COLUMN_SUPPLIER_PHONE
+                + " FROM " + BookContract.BookEntry.TABLE_NAME + " b JOIN "
+                + BookContract.SupplierEntry.TABLE_NAME + " s ON s." + BookContract.SupplierEntry._ID
+                + " = b." + BookContract.BookEntry.COLUMN_SUPPLIER_ID + ";");
+    }
+
+    /**
+     * Replace the books table with a rebuilt copy that has the same ids. The view over the
+     * books is dropped, as SQLite refuses to rename a table while a view is broken; the caller
+     * creates it again, and the triggers of the statistics, of the version and of the sync and
+     * the sort indexes if they exist.
+     */
+    private void replaceBooksTable(SQLiteDatabase db, String newTable) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+
+        db.execSQL("DROP VIEW IF EXISTS " + BookContract.BookEntry.VIEW_NAME + ";");
+
+        // Keep the ids of deleted books from being reused
+        db.execSQL("UPDATE sqlite_sequence SET seq = (SELECT MAX(seq) FROM sqlite_sequence WHERE name IN ('"
+                + table + "', '" + newTable + "')) WHERE name = '" + newTable + "';");
+
+        // Dropping the table also drops its triggers
+        db.execSQL("DROP TABLE " + table + ";");
+        db.execSQL("ALTER TABLE " + newTable + " RENAME TO " + table + ";");
+        createSearchTriggers(db);
+    }
+
+    /**
+     * Version 5: single-row table of inventory statistics, kept up to date by triggers.
+     */
+    private void createStatsTable(SQLiteDatabase db) {
+        String stats = BookContract.StatsEntry.TABLE_NAME;
+        db.execSQL("CREATE TABLE " + stats + " ("
+                + BookContract.StatsEntry._ID + " INTEGER PRIMARY KEY CHECK (" + BookContract.StatsEntry._ID + " = 1), "
+                + BookContract.StatsEntry.COLUMN_TITLES + " INTEGER NOT NULL, "
+                + BookContract.StatsEntry.COLUMN_UNITS + " INTEGER NOT NULL, "
+                + BookContract.StatsEntry.COLUMN_STOCK_VALUE + " INTEGER NOT NULL, "
+                + BookContract.StatsEntry.COLUMN_LOW_STOCK_TITLES + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + stats + " SELECT 1, " + statsAggregates(DEFAULT_THRESHOLD) + " FROM "
+                + BookContract.BookEntry.TABLE_NAME + ";");
+        createStatsTriggers(db, false);
+    }
+
+    /**
+     * Return the statistics computed from all the books, in the column order of the stats
+     * table, with the given expression as the low-stock threshold of each book.
+     */
+    private static String statsAggregates(String threshold) {
+        return "COUNT(*), "
+                + "IFNULL(SUM(" + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "), 0), "
+                + "IFNULL(SUM(" + BookContract.BookEntry.COLUMN_BOOK_PRICE + " * "
+                + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "), 0), "
+                + "IFNULL(SUM(" + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " < " + threshold + "), 0)";
+    }
+
+    /**
+     * Return the low-stock threshold of a book, its own or the default one, given as the new or
+     * old row of a trigger or as null for the row of a query.
+     */
+    private static String lowStockThreshold(String row) {
+        return "COALESCE(" + (row == null ? "" : row + ".") + BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD
+                + ", " + DEFAULT_THRESHOLD + ")";
+    }
+
+    /**
+     * Triggers that add each inserted book to the statistics, remove each deleted one, and
+     * replace the old values of an updated one by the new ones.
+     *
+     * @param ownThresholds true once the books have a threshold of their own, from version 6
+     */
+    private void createStatsTriggers(SQLiteDatabase db, boolean ownThresholds) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String stats = BookContract.StatsEntry.TABLE_NAME;
+
+        db.execSQL("CREATE TRIGGER " + stats + "_insert AFTER INSERT ON " + table + " BEGIN "
+                + "UPDATE " + stats + " SET " + statsDelta("+", "new", ownThresholds) + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + stats + "_update AFTER UPDATE OF "
+                + BookContract.BookEntry.COLUMN_BOOK_PRICE + ", " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY
+                + (ownThresholds ? ", " + BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD : "")
+                + " ON " + table + " BEGIN "
+                + "UPDATE " + stats + " SET " + statsDelta("-", "old", ownThresholds) + "; "
+                + "UPDATE " + stats + " SET " + statsDelta("+", "new", ownThresholds) + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + stats + "_delete AFTER DELETE ON " + table + " BEGIN "
+                + "UPDATE " + stats + " SET " + statsDelta("-", "old", ownThresholds) + "; END;");
+    }
+
+    /**
+     * Create the triggers of the statistics again, with the threshold of each book.
+     */
+    private void replaceStatsTriggers(SQLiteDatabase db) {
+        String stats = BookContract.StatsEntry.TABLE_NAME;
+        db.execSQL("DROP TRIGGER IF EXISTS " + stats + "_insert;");
+        db.execSQL("DROP TRIGGER IF EXISTS " + stats + "_update;");
+        db.execSQL("DROP TRIGGER IF EXISTS " + stats + "_delete;");
+        createStatsTriggers(db, true);
+    }
+
+    /**
+     * SET clause that adds or subtracts one book, given as the new or old row of a trigger.
+     */
+    private static String statsDelta(String sign, String row, boolean ownThreshold) {
+        String quantity = row + "." + BookContract.BookEntry.COLUMN_BOOK_QUANTITY;
+        String price = row + "." + BookContract.BookEntry.COLUMN_BOOK_PRICE;
+        String threshold = ownThreshold ? lowStockThreshold(row) : DEFAULT_THRESHOLD;
+        return BookContract.StatsEntry.COLUMN_TITLES + " = " + BookContract.StatsEntry.COLUMN_TITLES
+                + " " + sign + " 1, "
+                + BookContract.StatsEntry.COLUMN_UNITS + " = " + BookContract.StatsEntry.COLUMN_UNITS
+                + " " + sign + " " + quantity + ", "
+                + BookContract.StatsEntry.COLUMN_STOCK_VALUE + " = " + BookContract.StatsEntry.COLUMN_STOCK_VALUE
+                + " " + sign + " " + price + " * " + quantity + ", "
+                + BookContract.StatsEntry.COLUMN_LOW_STOCK_TITLES + " = "
+                + BookContract.StatsEntry.COLUMN_LOW_STOCK_TITLES + " " + sign + " (" + quantity + " < "
+                + threshold + ")";
+    }
+
+    /**
+     * Version 6: optional low-stock threshold of each book. The view is created again, as the
+     * one of version 4 listed the columns of the books, and so are the triggers of the
+     * statistics, to count the books low on stock with their own threshold.
+     */
+    private void addLowStockThreshold(SQLiteDatabase db) {
+        String threshold = BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD;
+        db.execSQL("ALTER TABLE " + BookContract.BookEntry.TABLE_NAME + " ADD COLUMN " + threshold
+                + " INTEGER CONSTRAINT " + CHECK_THRESHOLD + " CHECK (" + threshold + " IS NULL OR ("
+                + threshold + " >= 0 AND CAST(" + threshold + " AS INTEGER) = " + threshold + "));");
+        db.execSQL("DROP VIEW " + BookContract.BookEntry.VIEW_NAME + ";");
+        createBooksView(db);
+        replaceStatsTriggers(db);
+    }
+
+    /**
+     * Version 11: the databases upgraded to version 6 before it replaced the triggers of the
+     * statistics still counted the books low on stock with the default threshold. Their
+     * triggers are replaced, and the statistics computed again.
+     */
+    private void fixLowStockStats(SQLiteDatabase db) {
+        replaceStatsTriggers(db);
+        db.execSQL("INSERT OR REPLACE INTO " + BookContract.StatsEntry.TABLE_NAME + " SELECT 1, "
+                + STATS_AGGREGATES + " FROM " + BookContract.BookEntry.TABLE_NAME + ";");
+    }
+
+    /**
+     * Version 7: ledger of the sales, and their sums per time bucket.
+     */
+    private void createSalesTables(SQLiteDatabase db) {
+        // No foreign key: the sales of a deleted book stay in the history
+        db.execSQL("CREATE TABLE " + BookContract.SaleEntry.TABLE_NAME + " ("
+                + BookContract.SaleEntry._ID + " INTEGER PRIMARY KEY, "
+                + BookContract.SaleEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                + BookContract.SaleEntry.COLUMN_UNITS + " INTEGER NOT NULL, "
+                + BookContract.SaleEntry.COLUMN_PRICE + " INTEGER NOT NULL, "
+                + BookContract.SaleEntry.COLUMN_SOLD_AT + " INTEGER NOT NULL);");
+
+        db.execSQL("CREATE TABLE " + BookContract.RollupEntry.TABLE_NAME + " ("
+                + BookContract.RollupEntry.COLUMN_BUCKET + " TEXT NOT NULL, "
+                + BookContract.RollupEntry.COLUMN_BUCKET_START + " INTEGER NOT NULL, "
+                + BookContract.RollupEntry.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                + BookContract.RollupEntry.COLUMN_UNITS + " INTEGER NOT NULL, "
+                + BookContract.RollupEntry.COLUMN_REVENUE + " INTEGER NOT NULL, "
+                + "PRIMARY KEY (" + BookContract.RollupEntry.COLUMN_BUCKET + ", "
+                + BookContract.RollupEntry.COLUMN_BUCKET_START + ", "
+                + BookContract.RollupEntry.COLUMN_BOOK_ID + "));");
+
+        db.execSQL("CREATE TABLE " + SalesLedger.STATE_TABLE_NAME + " ("
+                + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                + SalesLedger.COLUMN_LAST_SALE_ID + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + SalesLedger.STATE_TABLE_NAME + " VALUES (1, 0);");
+    }
+
+    /**
+     * Recompute the statistics from all the books and store them.
+     * Return true if the maintained values were already right.
+     */
+    static boolean rebuildStats(SQLiteDatabase db) {
+        String stats = BookContract.StatsEntry.TABLE_NAME;
+        db.beginTransaction();
+        try {
+            long[] maintained = readStats(db, "SELECT " + BookContract.StatsEntry.COLUMN_TITLES + ", "
+                    + BookContract.StatsEntry.COLUMN_UNITS + ", " + BookContract.StatsEntry.COLUMN_STOCK_VALUE + ", "
+                    + BookContract.StatsEntry.COLUMN_LOW_STOCK_TITLES + " FROM " + stats);
+            long[] computed = readStats(db, "SELECT " + STATS_AGGREGATES + " FROM "
+                    + BookContract.BookEntry.TABLE_NAME);
+            boolean consistent = Arrays.equals(maintained, computed);
+            if (!consistent) {
+                db.execSQL("INSERT OR REPLACE INTO " + stats + " SELECT 1, " + STATS_AGGREGATES + " FROM "
+                        + BookContract.BookEntry.TABLE_NAME + ";");
+            }
+            db.setTransactionSuccessful();
+            return consistent;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Return the four statistics selected by the given query, or null if it has no row.
+     */
+    private static long[] readStats(SQLiteDatabase db, String sql) {
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            long[] values = new long[4];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = cursor.getLong(i);
+            }
+            return values;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Version 8: a version number on each book, for the compare-and-set updates of the editor.
+     * The provider's own statements increment it; the trigger covers the other updates and
+     * does nothing when the statement already did.
+     */
+    private void addVersionColumn(SQLiteDatabase db) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String version = BookContract.BookEntry.COLUMN_VERSION;
+
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + version + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("DROP VIEW " + BookContract.BookEntry.VIEW_NAME + ";");
+        createBooksView(db);
+        createVersionTrigger(db);
+    }
+
+    /**
+     * Increment the version of a book updated without it. The trigger only writes the version
+     * column, so it does not fire the triggers of the search index or of the statistics.
+     */
+    private void createVersionTrigger(SQLiteDatabase db) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String version = BookContract.BookEntry.COLUMN_VERSION;
+
+        db.execSQL("CREATE TRIGGER " + table + "_" + version + " AFTER UPDATE OF "
+                + BookContract.BookEntry.COLUMN_BOOK_TITLE + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_PRICE + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ", "
+                + BookContract.BookEntry.COLUMN_SUPPLIER_ID + ", "
+                + BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD
+                + " ON " + table + " WHEN new." + version + " = old." + version + " BEGIN "
+                + "UPDATE " + table + " SET " + version + " = old." + version + " + 1"
+                + " WHERE " + BookContract.BookEntry._ID + " = old." + BookContract.BookEntry._ID + "; END;");
+    }
+
+    /**
+     * Version 9: what the {@link SyncEngine} needs to push and pull deltas. Every book gets a
+     * sync id shared by all the devices, and the quantity last agreed with the server. The
+     * change log holds one row per book changed since the last push, numbered by a sequence
+     * that only grows. The books that exist at this point are all logged, for a first push.
+     */
+    private void createSyncTables(SQLiteDatabase db) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String id = BookContract.BookEntry._ID;
+        String syncId = SyncEngine.COLUMN_SYNC_ID;
+        String changes = SyncEngine.CHANGES_TABLE_NAME;
+        String newSyncId = "lower(hex(randomblob(16)))";
+
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + syncId + " TEXT;");
+        db.execSQL("ALTER TABLE " + table + " ADD COLUMN " + SyncEngine.COLUMN_SYNCED_QUANTITY
+                + " INTEGER NOT NULL DEFAULT 0;");
+        db.execSQL("UPDATE " + table + " SET " + syncId + " = " + newSyncId + ";");
+        db.execSQL("CREATE UNIQUE INDEX " + table + "_" + syncId + " ON " + table + " (" + syncId + ");");
+        db.execSQL("DROP VIEW " + BookContract.BookEntry.VIEW_NAME + ";");
+        createBooksView(db);
+
+        // AUTOINCREMENT: a replaced row gets a sequence number above every earlier one
+        db.execSQL("CREATE TABLE " + changes + " ("
+                + SyncEngine.COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + SyncEngine.COLUMN_BOOK_ID + " INTEGER NOT NULL, "
+                + syncId + " TEXT NOT NULL UNIQUE, "
+                + SyncEngine.COLUMN_DELETED + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + changes + " (" + SyncEngine.COLUMN_BOOK_ID + ", " + syncId + ", "
+                + SyncEngine.COLUMN_DELETED + ") SELECT " + id + ", " + syncId + ", 0 FROM " + table
+                + " ORDER BY " + id + ";");
+
+        db.execSQL("CREATE TABLE " + SyncEngine.STATE_TABLE_NAME + " ("
+                + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                + SyncEngine.COLUMN_DEVICE_ID + " TEXT NOT NULL, "
+                + SyncEngine.COLUMN_PULLED_SEQ + " INTEGER NOT NULL, "
+                + SyncEngine.COLUMN_OUTBOX + " TEXT, "
+                + SyncEngine.COLUMN_OUTBOX_SIZE + " INTEGER NOT NULL);");
+        db.execSQL("INSERT INTO " + SyncEngine.STATE_TABLE_NAME + " VALUES (1, " + newSyncId + ", 0, NULL, 0);");
+
+        createSyncTriggers(db);
+    }
+
+    /**
+     * Log every change to a book in the change log. A new book first gets its sync id, unless
+     * it was pulled from the server with one.
+     */
+    private void createSyncTriggers(SQLiteDatabase db) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String id = BookContract.BookEntry._ID;
+        String syncId = SyncEngine.COLUMN_SYNC_ID;
+        String logChange = "INSERT OR REPLACE INTO " + SyncEngine.CHANGES_TABLE_NAME + " ("
+                + SyncEngine.COLUMN_BOOK_ID + ", " + syncId + ", " + SyncEngine.COLUMN_DELETED + ") ";
+
+        db.execSQL("CREATE TRIGGER " + table + "_sync_insert AFTER INSERT ON " + table + " BEGIN "
+                + "UPDATE " + table + " SET " + syncId + " = lower(hex(randomblob(16)))"
+                + " WHERE " + id + " = new." + id + " AND new." + syncId + " IS NULL; "
+                + logChange + "SELECT " + id + ", " + syncId + ", 0 FROM " + table
+                + " WHERE " + id + " = new." + id + "; END;");
+
+        db.execSQL("CREATE TRIGGER " + table + "_sync_update AFTER UPDATE OF "
+                + BookContract.BookEntry.COLUMN_BOOK_TITLE + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_PRICE + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ", "
+                + BookContract.BookEntry.COLUMN_SUPPLIER_ID + ", "
+                + BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD
+                + " ON " + table + " BEGIN "
+                + logChange + "VALUES (new." + id + ", new." + syncId + ", 0); END;");
+
+        db.execSQL("CREATE TRIGGER " + table + "_sync_delete AFTER DELETE ON " + table + " BEGIN "
+                + logChange + "VALUES (old." + id + ", old." + syncId + ", 1); END;");
+    }
+
+    /**
+     * Version 10: an index for each sort order of the catalogue, so that a page in that order
+     * is a range of the index rather than a scan and a sort of the whole table. The row id
+     * ends every index entry, which makes the order total. The out of stock books are a range
+     * of the quantity, so they get an index of each sort order after the quantity; the in stock
+     * books are read along the index of the order.
+     */
+    private void createSortIndexes(SQLiteDatabase db) {
+        String table = BookContract.BookEntry.TABLE_NAME;
+        String title = BookContract.BookEntry.COLUMN_BOOK_TITLE;
+        String author = BookContract.BookEntry.COLUMN_BOOK_AUTHOR;
+        String price = BookContract.BookEntry.COLUMN_BOOK_PRICE;
+        String quantity = BookContract.BookEntry.COLUMN_BOOK_QUANTITY;
+
+        db.execSQL("CREATE INDEX " + table + "_" + author + "_" + title + " ON " + table + " ("
+                + author + ", " + title + ");");
+        db.execSQL("CREATE INDEX " + table + "_" + price + " ON " + table + " (" + price + ");");
+        db.execSQL("CREATE INDEX " + table + "_" + quantity + " ON " + table + " (" + quantity + ");");
+        db.execSQL("CREATE INDEX " + table + "_" + quantity + "_" + author + "_" + title + " ON " + table
+                + " (" + quantity + ", " + author + ", " + title + ");");
+        db.execSQL("CREATE INDEX " + table + "_" + quantity + "_" + price + " ON " + table + " ("
+                + quantity + ", " + price + ");");
+    }
+}
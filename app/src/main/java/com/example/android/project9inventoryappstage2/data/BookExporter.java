@@ -0,0 +1,227 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+
+/**
+ * Writes the whole books table to a CSV or JSON file.
+ * <p>
+ * Rows are read in fixed-size windows ordered by {@link BookContract.BookEntry#_ID}, each window
+ * starting after the last id of the previous one, and encoded into a single reusable direct
+ * buffer that is drained to a {@link FileChannel}. Memory use does not depend on the number of
+ * rows. The CSV output can be read back by {@link BookImporter}.
+ */
+public class BookExporter {
+
+    private static final int WINDOW_SIZE = 1000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String[] COLUMNS = {
+            BookContract.BookEntry._ID,
+            BookContract.BookEntry.COLUMN_BOOK_TITLE,
+            BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+            BookContract.BookEntry.COLUMN_BOOK_PRICE,
+            BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
+            BookContract.BookEntry.COLUMN_BOOK_SUPPLIER,
+            BookContract.BookEntry.COLUMN_SUPPLIER_PHONE};
+
+    private final SQLiteDatabase mDatabase;
+    private final BookImporter.Format mFormat;
+    private final CharsetEncoder mEncoder = Charset.forName("UTF-8").newEncoder();
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final StringBuilder mLine = new StringBuilder();
+    private FileChannel mChannel;
+
+    public BookExporter(SQLiteDatabase database, BookImporter.Format format) {
+        mDatabase = database;
+        mFormat = format;
+    }
+
+    /**
+     * Export every book to the given file, replacing its content. Return the number of rows written.
+     */
+    public int export(File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        int rowsWritten = 0;
+        try {
+            mChannel = out.getChannel();
+            mBuffer.clear();
+            writeHeader();
+
+            String selection = BookContract.BookEntry._ID + ">?";
+            String[] selectionArgs = new String[1];
+            long lastId = 0;
+            int windowRows;
+            do {
+                selectionArgs[0] = String.valueOf(lastId);
+                Cursor cursor = mDatabase.query(BookContract.BookEntry.VIEW_NAME, COLUMNS,
+                        selection, selectionArgs, null, null, BookContract.BookEntry._ID,
+                        String.valueOf(WINDOW_SIZE));
+                try {
+                    windowRows = cursor.getCount();
+                    while (cursor.moveToNext()) {
+                        lastId = cursor.getLong(0);
+                        writeRow(cursor, rowsWritten == 0);
+                        rowsWritten++;
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } while (windowRows == WINDOW_SIZE);
+
+            writeFooter();
+            drain();
+            mChannel.force(false);
+        } finally {
+            mChannel = null;
+            out.close();
+        }
+        return rowsWritten;
+    }
+
+    private void writeHeader() throws IOException {
+        mLine.setLength(0);
+        if (mFormat == BookImporter.Format.CSV) {
+            for (int i = 1; i < COLUMNS.length; i++) {
+                if (i > 1) {
+                    mLine.append(',');
+                }
+                mLine.append(COLUMNS[i]);
+            }
+            mLine.append('\n');
+        } else {
+            mLine.append('[');
+        }
+        write(mLine);
+    }
+
+    private void writeRow(Cursor cursor, boolean first) throws IOException {
+        mLine.setLength(0);
+        if (mFormat == BookImporter.Format.CSV) {
+            // The id is not exported, the importer assigns new ones
+            for (int i = 1; i < COLUMNS.length; i++) {
+                if (i > 1) {
+                    mLine.append(',');
+                }
+                appendCsvField(cursor.getString(i));
+            }
+            mLine.append('\n');
+        } else {
+            if (!first) {
+                mLine.append(',');
+            }
+            mLine.append("\n{");
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (i > 0) {
+                    mLine.append(',');
+                }
+                appendJsonString(COLUMNS[i]);
+                mLine.append(':');
+                if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
+                    mLine.append(cursor.getLong(i));
+                } else if (cursor.isNull(i)) {
+                    mLine.append("null");
+                } else {
+                    appendJsonString(cursor.getString(i));
+                }
+            }
+            mLine.append('}');
+        }
+        write(mLine);
+    }
+
+    private void writeFooter() throws IOException {
+        if (mFormat == BookImporter.Format.JSON) {
+            mLine.setLength(0);
+            mLine.append("\n]\n");
+            write(mLine);
+        }
+    }
+
+    private void appendCsvField(String value) {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1
+                && value.indexOf('\n') == -1 && value.indexOf('\r') == -1) {
+            mLine.append(value);
+            return;
+        }
+        mLine.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                mLine.append('"');
+            }
+            mLine.append(c);
+        }
+        mLine.append('"');
+    }
+
+    private void appendJsonString(String value) {
+        mLine.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    mLine.append("\\\"");
+                    break;
+                case '\\':
+                    mLine.append("\\\\");
+                    break;
+                case '\n':
+                    mLine.append("\\n");
+                    break;
+                case '\r':
+                    mLine.append("\\r");
+                    break;
+                case '\t':
+                    mLine.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        mLine.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        mLine.append(c);
+                    }
+            }
+        }
+        mLine.append('"');
+    }
+
+    /**
+     * Encode the given characters into the buffer, draining it to the file whenever it fills up.
+     */
+    private void write(CharSequence text) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(text);
+        mEncoder.reset();
+        while (true) {
+            CoderResult result = mEncoder.encode(chars, mBuffer, true);
+            if (result.isOverflow()) {
+                drain();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
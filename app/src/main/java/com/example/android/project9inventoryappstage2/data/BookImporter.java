@@ -0,0 +1,359 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.os.SystemClock;
+import android.util.JsonReader;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams a supplier catalogue (CSV or JSON) into the {@link BookProvider}.
+ * <p>
+ * Rows are parsed one at a time, validated with the provider's own rules and grouped in chunks.
+ * A writer thread takes the chunks from a bounded queue and inserts each one with
+ * {@link ContentResolver#bulkInsert}, i.e. in its own transaction. When the writer falls behind,
+ * the parser blocks on the queue, so memory use does not depend on the size of the file.
+ * <p>
+ * CSV input starts with a header line naming the {@link BookContract.BookEntry} columns.
+ * JSON input is an array of objects keyed by the same column names.
+ * This class does blocking I/O and must not be used from the main thread.
+ */
+public class BookImporter {
+
+    public static final String LOG_TAG = BookImporter.class.getSimpleName();
+
+    public enum Format {CSV, JSON}
+
+    /**
+     * Receives a progress report after each written chunk.
+     * Called from the thread that writes the chunks.
+     */
+    public interface ProgressListener {
+        void onProgress(Progress progress);
+    }
+
+    /**
+     * Snapshot of the state of an import.
+     */
+    public static final class Progress {
+        public final int rowsRead;
+        public final int rowsImported;
+        public final int rowsRejected;
+        public final long elapsedMillis;
+
+        Progress(int rowsRead, int rowsImported, int rowsRejected, long elapsedMillis) {
+            this.rowsRead = rowsRead;
+            this.rowsImported = rowsImported;
+            this.rowsRejected = rowsRejected;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * Number of rows written per second since the import started.
+         */
+        public double rowsPerSecond() {
+            return elapsedMillis == 0 ? 0 : rowsImported * 1000.0 / elapsedMillis;
+        }
+    }
+
+    private static final int DEFAULT_CHUNK_SIZE = 500;
+    private static final int DEFAULT_QUEUE_CAPACITY = 4;
+    private static final long QUEUE_POLL_MILLIS = 100;
+
+    /**
+     * Marks the end of the input in the queue.
+     */
+    private static final ContentValues[] END_OF_INPUT = new ContentValues[0];
+
+    private final ContentResolver mResolver;
+    private final int mChunkSize;
+    private final int mQueueCapacity;
+
+    public BookImporter(ContentResolver resolver) {
+        this(resolver, DEFAULT_CHUNK_SIZE, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param resolver      used to write the books
+     * @param chunkSize     number of rows inserted per transaction
+     * @param queueCapacity number of parsed chunks that may wait for the writer
+     */
+    public BookImporter(ContentResolver resolver, int chunkSize, int queueCapacity) {
+        if (chunkSize <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Chunk size and queue capacity must be positive");
+        }
+        mResolver = resolver;
+        mChunkSize = chunkSize;
+        mQueueCapacity = queueCapacity;
+    }
+
+    /**
+     * Import all the books of the given stream. The stream is read as UTF-8 and is not closed.
+     *
+     * @param listener may be null
+     * @return the final progress of the import
+     */
+    public Progress importBooks(InputStream in, Format format, ProgressListener listener)
+            throws IOException, InterruptedException {
+        Reader reader = new BufferedReader(new InputStreamReader(in, Charset.forName("UTF-8")));
+        ChunkWriter writer = new ChunkWriter(listener);
+        writer.start();
+
+        boolean finished = false;
+        try {
+            if (format == Format.CSV) {
+                readCsv(reader, writer);
+            } else {
+                readJson(reader, writer);
+            }
+            writer.flush();
+            finished = true;
+        } finally {
+            if (!finished) {
+                writer.interrupt();
+            }
+            writer.finish();
+        }
+        return writer.progress();
+    }
+
+    private void readCsv(Reader reader, ChunkWriter writer) throws IOException, InterruptedException {
+        List<String> header = readCsvRecord(reader);
+        if (header == null) {
+            return;
+        }
+        List<String> record;
+        while ((record = readCsvRecord(reader)) != null) {
+            if (record.size() != header.size()) {
+                writer.reject("Expected " + header.size() + " fields but found " + record.size());
+                continue;
+            }
+            ContentValues values = new ContentValues(header.size());
+            for (int i = 0; i < header.size(); i++) {
+                putColumn(values, header.get(i).trim(), record.get(i));
+            }
+            writer.add(values);
+        }
+    }
+
+    /**
+     * Read one RFC 4180 record: fields are separated by commas and may be enclosed in double
+     * quotes, in which case they can contain commas, line breaks and doubled quotes.
+     * Return null at the end of the input.
+     */
+    private static List<String> readCsvRecord(Reader reader) throws IOException {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        boolean empty = true;
+        int c;
+        while ((c = reader.read()) != -1) {
+            empty = false;
+            if (quoted) {
+                if (c == '"') {
+                    reader.mark(1);
+                    if (reader.read() == '"') {
+                        field.append('"');
+                    } else {
+                        reader.reset();
+                        quoted = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n') {
+                break;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+        }
+        if (empty) {
+            return null;
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private void readJson(Reader reader, ChunkWriter writer) throws IOException, InterruptedException {
+        JsonReader json = new JsonReader(reader);
+        json.beginArray();
+        while (json.hasNext()) {
+            ContentValues values = new ContentValues();
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                switch (json.peek()) {
+                    case STRING:
+                    case NUMBER:
+                        putColumn(values, name, json.nextString());
+                        break;
+                    default:
+                        // No column takes a null, a boolean, an array or an object
+                        json.skipValue();
+                        break;
+                }
+            }
+            json.endObject();
+            writer.add(values);
+        }
+        json.endArray();
+    }
+
+    /**
+     * Put a raw text value in the column it belongs to. Unknown columns are ignored.
+     */
+    private static void putColumn(ContentValues values, String column, String value) {
+        switch (column) {
+            case BookContract.BookEntry.COLUMN_BOOK_TITLE:
+            case BookContract.BookEntry.COLUMN_BOOK_AUTHOR:
+            case BookContract.BookEntry.COLUMN_BOOK_SUPPLIER:
+            case BookContract.BookEntry.COLUMN_SUPPLIER_PHONE:
+                values.put(column, value.trim());
+                break;
+            case BookContract.BookEntry.COLUMN_BOOK_PRICE:
+            case BookContract.BookEntry.COLUMN_BOOK_QUANTITY:
+            case BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD:
+                try {
+                    values.put(column, Integer.parseInt(value.trim()));
+                } catch (NumberFormatException e) {
+                    // Leave the column out, validation rejects the row if the column is required
+                }
+                break;
+        }
+    }
+
+    /**
+     * Collects validated rows in chunks and writes them on its own thread.
+     */
+    private class ChunkWriter extends Thread {
+
+        private final BlockingQueue<ContentValues[]> mQueue = new ArrayBlockingQueue<>(mQueueCapacity);
+        private final ProgressListener mListener;
+        private final long mStartTime = SystemClock.elapsedRealtime();
+
+        private ContentValues[] mChunk = new ContentValues[mChunkSize];
+        private int mChunkCount;
+
+        private volatile int mRowsRead;
+        private volatile int mRowsRejected;
+        private volatile int mRowsImported;
+        private volatile RuntimeException mError;
+
+        ChunkWriter(ProgressListener listener) {
+            super("BookImporter");
+            mListener = listener;
+        }
+
+        /**
+         * Validate a parsed row and queue it for writing. Blocks while the queue is full.
+         */
+        void add(ContentValues values) throws InterruptedException {
+            mRowsRead++;
+            try {
+                BookProvider.validateBook(values);
+            } catch (IllegalArgumentException e) {
+                mRowsRejected++;
+                Log.w(LOG_TAG, "Rejected row " + mRowsRead + ": " + e.getMessage());
+                return;
+            }
+            mChunk[mChunkCount++] = values;
+            if (mChunkCount == mChunkSize) {
+                flush();
+            }
+        }
+
+        /**
+         * Count a row that could not be parsed.
+         */
+        void reject(String reason) {
+            mRowsRead++;
+            mRowsRejected++;
+            Log.w(LOG_TAG, "Rejected row " + mRowsRead + ": " + reason);
+        }
+
+        void flush() throws InterruptedException {
+            checkError();
+            if (mChunkCount == 0) {
+                return;
+            }
+            ContentValues[] chunk = mChunk;
+            if (mChunkCount < mChunkSize) {
+                chunk = new ContentValues[mChunkCount];
+                System.arraycopy(mChunk, 0, chunk, 0, mChunkCount);
+            }
+            put(chunk);
+            mChunk = new ContentValues[mChunkSize];
+            mChunkCount = 0;
+        }
+
+        /**
+         * Wait until every queued chunk is written.
+         */
+        void finish() throws InterruptedException {
+            if (!isInterrupted()) {
+                put(END_OF_INPUT);
+            }
+            join();
+            checkError();
+        }
+
+        /**
+         * Queue a chunk, waiting for room as long as the writer is still running.
+         */
+        private void put(ContentValues[] chunk) throws InterruptedException {
+            while (!mQueue.offer(chunk, QUEUE_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkError();
+                if (!isAlive()) {
+                    return;
+                }
+            }
+        }
+
+        Progress progress() {
+            return new Progress(mRowsRead, mRowsImported, mRowsRejected,
+                    SystemClock.elapsedRealtime() - mStartTime);
+        }
+
+        private void checkError() {
+            if (mError != null) {
+                throw mError;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                ContentValues[] chunk;
+                while ((chunk = mQueue.take()) != END_OF_INPUT) {
+                    mRowsImported += mResolver.bulkInsert(BookContract.BookEntry.CONTENT_URI, chunk);
+                    if (mListener != null) {
+                        mListener.onProgress(progress());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Log.w(LOG_TAG, "Import interrupted");
+            } catch (RuntimeException e) {
+                Log.e(LOG_TAG, "Failed to write books", e);
+                mError = e;
+                mQueue.clear();
+            }
+        }
+    }
+}
@@ -1,16 +1,39 @@
 package com.example.android.project9inventoryappstage2.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 /**
  * {@link ContentProvider} for Bookstore app.
  */
@@ -20,6 +43,12 @@ public class BookProvider extends ContentProvider {
     private static final int BOOKS = 100;
     private static final int BOOK_ID = 101;
     private static final int BOOK_SELL = 102;
+    private static final int BOOK_SEARCH = 103;
+    private static final int BOOK_STATS = 104;
+    private static final int SUPPLIERS = 200;
+    private static final int SUPPLIER_ID = 201;
+    private static final int SUPPLIER_BOOKS = 202;
+    private static final int SALES_ROLLUP = 300;
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
     static {
@@ -28,13 +57,124 @@ public class BookProvider extends ContentProvider {
                 BOOK_ID);
         sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
                 BookContract.PATH_BOOKS + "/" + BookContract.PATH_SELL + "/#", BOOK_SELL);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_SEARCH, BOOK_SEARCH);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_BOOKS + "/" + BookContract.PATH_STATS, BOOK_STATS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_SUPPLIERS, SUPPLIERS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY, BookContract.PATH_SUPPLIERS + "/#",
+                SUPPLIER_ID);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_SUPPLIERS + "/#/" + BookContract.PATH_BOOKS, SUPPLIER_BOOKS);
+        sUriMatcher.addURI(BookContract.CONTENT_AUTHORITY,
+                BookContract.PATH_SALES + "/" + BookContract.PATH_ROLLUP, SALES_ROLLUP);
+    }
+
+    /**
+     * Columns of each sort order of the books, before the {@link BookContract.BookEntry#_ID}
+     * that ends them all. Each order has an index.
+     */
+    private static final Map<String, String[]> SORT_KEYS = new HashMap<>();
+
+    /**
+     * Selection of each filter of the books.
+     */
+    private static final Map<String, String> FILTERS = new HashMap<>();
+
+    static {
+        SORT_KEYS.put(BookContract.BookEntry.SORT_ADDED, new String[0]);
+        SORT_KEYS.put(BookContract.BookEntry.SORT_AUTHOR, new String[]{
+                BookContract.BookEntry.COLUMN_BOOK_AUTHOR, BookContract.BookEntry.COLUMN_BOOK_TITLE});
+        SORT_KEYS.put(BookContract.BookEntry.SORT_PRICE, new String[]{BookContract.BookEntry.COLUMN_BOOK_PRICE});
+        SORT_KEYS.put(BookContract.BookEntry.SORT_QUANTITY, new String[]{BookContract.BookEntry.COLUMN_BOOK_QUANTITY});
+
+        FILTERS.put(BookContract.BookEntry.FILTER_IN_STOCK, BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ">0");
+        FILTERS.put(BookContract.BookEntry.FILTER_OUT_OF_STOCK, BookContract.BookEntry.COLUMN_BOOK_QUANTITY + "=0");
     }
 
+    /**
+     * Changes are collected for this long before observers are notified.
+     */
+    private static final long NOTIFICATION_WINDOW_MILLIS = 32;
+
+    /**
+     * Columns of the books that the {@link BookCache} holds.
+     */
+    private static final List<String> CACHED_COLUMNS = Arrays.asList(
+            BookContract.BookEntry._ID,
+            BookContract.BookEntry.COLUMN_BOOK_TITLE,
+            BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+            BookContract.BookEntry.COLUMN_BOOK_PRICE,
+            BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
+            BookContract.BookEntry.COLUMN_BOOK_SUPPLIER,
+            BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
+
+    private static final int CACHE_MAX_ENTRIES = 500;
+    private static final int CACHE_MAX_BYTES = 256 * 1024;
+
+    /**
+     * The CHECK constraints of the books table: name, message of the exception reported when
+     * it fails, and the column it checks.
+     */
+    private static final String[][] CONSTRAINT_MESSAGES = {
+            {BookDbHelper.CHECK_TITLE, "Book title required", BookContract.BookEntry.COLUMN_BOOK_TITLE},
+            {BookDbHelper.CHECK_AUTHOR, "Author name required", BookContract.BookEntry.COLUMN_BOOK_AUTHOR},
+            {BookDbHelper.CHECK_PRICE, "Book requires valid price", BookContract.BookEntry.COLUMN_BOOK_PRICE},
+            {BookDbHelper.CHECK_QUANTITY, "Book requires a valid quantity", BookContract.BookEntry.COLUMN_BOOK_QUANTITY},
+            {BookDbHelper.CHECK_SUPPLIER, "Supplier name required", BookContract.BookEntry.COLUMN_BOOK_SUPPLIER},
+            {BookDbHelper.CHECK_PHONE, "Supplier phone required", BookContract.BookEntry.COLUMN_SUPPLIER_PHONE},
+            {BookDbHelper.CHECK_THRESHOLD, "Book requires a valid low stock threshold",
+                    BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD}
+    };
+
     /**
      * Database helper object
      */
     private BookDbHelper mDbHelper;
 
+    /**
+     * Compiled statements for the single-book writes.
+     */
+    private BookStatements mStatements;
+
+    /**
+     * Set on the calling thread while {@link #applyBatch(ArrayList)} runs.
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<>();
+
+    private ChangeNotifier mChangeNotifier;
+
+    /**
+     * Books read by id, invalidated by every write path.
+     */
+    private final BookCache mBookCache = new BookCache(CACHE_MAX_ENTRIES, CACHE_MAX_BYTES);
+
+    /**
+     * Cleared by the benchmarks, to read the books by id from the database.
+     */
+    private volatile boolean mBookCacheEnabled = true;
+
+    /**
+     * Stock levels of the books, to publish stock alerts. Its lock is held around every write
+     * that can change a quantity, before the database is entered.
+     */
+    private final StockMonitor mStockMonitor = new StockMonitor(BookContract.StatsEntry.LOW_STOCK_THRESHOLD);
+
+    /**
+     * Stock alerts of the calling thread, published once its write is complete.
+     */
+    private final ThreadLocal<List<Uri>> mPendingAlerts = new ThreadLocal<>();
+
+    /**
+     * Held for the whole of a sync, so that two syncs do not send the same outbox.
+     */
+    private final Object mSyncLock = new Object();
+
+    /**
+     * Binary copy of the catalogue for cold starts, patched after each write in the background.
+     */
+    private CatalogSnapshot mSnapshot;
+
 
     /**
      * Initialize the provider and the database helper object.
@@ -42,9 +182,68 @@ public class BookProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         mDbHelper = new BookDbHelper(getContext());
+        mStatements = new BookStatements(mDbHelper);
+        if (getContext() != null) {
+            mChangeNotifier = new ChangeNotifier(getContext().getContentResolver(),
+                    NOTIFICATION_WINDOW_MILLIS);
+            // A single refresh thread, stopped when idle
+            mSnapshot = new CatalogSnapshot(CatalogSnapshot.getFile(getContext()), mDbHelper, mStockMonitor,
+                    new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>()));
+        }
         return true;
     }
 
+    /**
+     * Close the compiled statements and the database. Only called by tests, as the platform
+     * never shuts a provider down.
+     */
+    @Override
+    public void shutdown() {
+        mStatements.close();
+        mDbHelper.close();
+        super.shutdown();
+    }
+
+    /**
+     * Return the snapshot of the catalogue kept by this provider, for tests.
+     */
+    CatalogSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Set whether books read by id go through the {@link BookCache}, for tests.
+     */
+    void setBookCacheEnabled(boolean enabled) {
+        mBookCacheEnabled = enabled;
+    }
+
+    /**
+     * Perform the query for the given URI and stop it early if the signal is cancelled. The
+     * searches, which the catalogue runs as the user types, and the lists and pages of books
+     * can be cancelled.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder,
+                        @Nullable CancellationSignal cancellationSignal) {
+        switch (sUriMatcher.match(uri)) {
+            case BOOK_SEARCH:
+                return searchBooks(uri, projection, selection, selectionArgs, sortOrder, cancellationSignal);
+            case BOOKS:
+                Cursor cursor = new BooksQuery(uri, projection, selection, selectionArgs, sortOrder)
+                        .query(mDbHelper.getReadableDatabase(), cancellationSignal);
+                if (getContext() != null) {
+                    cursor.setNotificationUri(getContext().getContentResolver(), uri);
+                }
+                return cursor;
+            default:
+                return query(uri, projection, selection, selectionArgs, sortOrder);
+        }
+    }
+
     /**
      * Perform the query for the given URI. Use the given projection, selection, selection arguments, and sort order.
      */
@@ -60,15 +259,35 @@ public class BookProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
-                cursor = database.query(BookContract.BookEntry.TABLE_NAME, projection, selection,
-                        selectionArgs, null, null, sortOrder);
+                cursor = new BooksQuery(uri, projection, selection, selectionArgs, sortOrder).query(database, null);
                 break;
             case BOOK_ID:
-                selection = BookContract.BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                cursor = database.query(BookContract.BookEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+                long id = ContentUris.parseId(uri);
+                if (mBookCacheEnabled && isCacheable(projection)) {
+                    cursor = queryCachedBook(database, id, projection);
+                    break;
+                }
+                selectionArgs = new String[]{String.valueOf(id)};
+                cursor = database.query(tableFor(projection, null, sortOrder), projection,
+                        BookStatements.SELECTION_BY_ID, selectionArgs, null, null, sortOrder);
                 break;
+            case BOOK_SEARCH:
+                return searchBooks(uri, projection, selection, selectionArgs, sortOrder, null);
+            case BOOK_STATS:
+                // A single row kept up to date by triggers
+                cursor = database.query(BookContract.StatsEntry.TABLE_NAME, projection, null, null,
+                        null, null, null);
+                if (getContext() != null) {
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            BookContract.BookEntry.CONTENT_URI);
+                }
+                return cursor;
+            case SUPPLIERS:
+            case SUPPLIER_ID:
+            case SUPPLIER_BOOKS:
+                return querySuppliers(uri, match, projection, selection, selectionArgs, sortOrder);
+            case SALES_ROLLUP:
+                return querySales(uri, projection);
             default:
                 throw new IllegalArgumentException("Cannot query unknown URI " + uri);
         }
@@ -80,6 +299,282 @@ public class BookProvider extends ContentProvider {
         return cursor;
     }
 
+    /**
+     * Return the books table, or the view that joins it with the suppliers when the query
+     * needs a supplier column. A null projection needs them all.
+     */
+    private static String tableFor(String[] projection, String selection, String sortOrder) {
+        boolean joined = projection == null || mentionsSupplier(selection) || mentionsSupplier(sortOrder);
+        for (int i = 0; !joined && i < projection.length; i++) {
+            joined = mentionsSupplier(projection[i]);
+        }
+        return joined ? BookContract.BookEntry.VIEW_NAME : BookContract.BookEntry.TABLE_NAME;
+    }
+
+    private static boolean mentionsSupplier(String sql) {
+        return sql != null && (sql.contains(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER)
+                || sql.contains(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE));
+    }
+
+    /**
+     * Query the sales summed per bucket. The sales recorded since the last rollup are rolled
+     * up first, so the result is up to date.
+     */
+    private Cursor querySales(Uri uri, String[] projection) {
+        String bucket = uri.getQueryParameter(BookContract.RollupEntry.QUERY_PARAMETER_BUCKET);
+        if (!SalesLedger.isBucket(bucket)) {
+            throw new IllegalArgumentException("Invalid bucket for " + uri);
+        }
+        Long from = longParameter(uri, BookContract.RollupEntry.QUERY_PARAMETER_FROM);
+        Long to = longParameter(uri, BookContract.RollupEntry.QUERY_PARAMETER_TO);
+        Long bookId = longParameter(uri, BookContract.RollupEntry.QUERY_PARAMETER_BOOK);
+
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        SalesLedger.rollUp(database);
+        Cursor cursor = SalesLedger.query(database, projection, bucket, from, to, bookId);
+
+        if (getContext() != null) {
+            // Sales are only recorded by the sell URI, which notifies this one
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    BookContract.BookEntry.CONTENT_URI);
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the value of a numeric query parameter of the given URI, or null if it has none.
+     */
+    private static Long longParameter(Uri uri, String name) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return null;
+        }
+        if (value.isEmpty() || !TextUtils.isDigitsOnly(value)) {
+            throw new IllegalArgumentException("Invalid " + name + " for " + uri);
+        }
+        return Long.parseLong(value);
+    }
+
+    /**
+     * Query the suppliers, one supplier, or the books of one supplier. The last one uses the
+     * index on the supplier id of the books.
+     */
+    private Cursor querySuppliers(Uri uri, int match, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder) {
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        Cursor cursor;
+        switch (match) {
+            case SUPPLIERS:
+                cursor = database.query(BookContract.SupplierEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+            case SUPPLIER_ID:
+                cursor = database.query(BookContract.SupplierEntry.TABLE_NAME, projection,
+                        BookContract.SupplierEntry._ID + "=?",
+                        new String[]{String.valueOf(ContentUris.parseId(uri))}, null, null, sortOrder);
+                break;
+            default:
+                String supplierId = uri.getPathSegments().get(1);
+                selection = appendSelection(selection, BookContract.BookEntry.COLUMN_SUPPLIER_ID + "=?");
+                selectionArgs = appendSelectionArg(selectionArgs, supplierId);
+                cursor = database.query(tableFor(projection, selection, sortOrder), projection, selection,
+                        selectionArgs, null, null, sortOrder);
+                break;
+        }
+
+        if (getContext() != null) {
+            // Suppliers are only created by the book writes, which notify this URI
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    BookContract.BookEntry.CONTENT_URI);
+        }
+        return cursor;
+    }
+
+    /**
+     * Return true if the projection only asks for columns held by the {@link BookCache}.
+     */
+    private static boolean isCacheable(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (!CACHED_COLUMNS.contains(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the book with the given id from the cache, reading it from the database and caching
+     * it on a miss.
+     */
+    private Cursor queryCachedBook(SQLiteDatabase database, long id, String[] projection) {
+        BookCache.Book book = mBookCache.get(id);
+        if (book == null) {
+            long generation = mBookCache.generation();
+            Cursor row = database.query(BookContract.BookEntry.VIEW_NAME,
+                    CACHED_COLUMNS.toArray(new String[CACHED_COLUMNS.size()]),
+                    BookStatements.SELECTION_BY_ID, new String[]{String.valueOf(id)},
+                    null, null, null);
+            try {
+                if (row.moveToFirst()) {
+                    book = new BookCache.Book(row);
+                    mBookCache.put(book, generation);
+                }
+            } finally {
+                row.close();
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection, 1);
+        if (book != null) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = book.get(projection[i]);
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    /**
+     * Return the selection of the books kept by the given filter.
+     */
+    static String filterSelection(String filter) {
+        String selection = FILTERS.get(filter);
+        if (selection == null) {
+            throw new IllegalArgumentException("Unknown filter " + filter);
+        }
+        return selection;
+    }
+
+    /**
+     * Return the order of the books for the given sort, which ends with the
+     * {@link BookContract.BookEntry#_ID} so that it is total.
+     */
+    static String orderBy(String sort) {
+        String[] keys = sortKeys(sort);
+        return TextUtils.join(", ", keys) + (keys.length > 0 ? ", " : "") + BookContract.BookEntry._ID;
+    }
+
+    /**
+     * Return the selection of the books that come after a given book in the order of the given
+     * sort. The row values comparison {@code (a, b, _id) > (?, ?, ?)} is expanded for older
+     * SQLite versions, with the first key as a range that the index of the order can seek to.
+     * The values of the keys are arguments rather than read from the given book, which may
+     * have changed or been deleted since the caller read it.
+     *
+     * @param firstArg number of the selection argument holding the value of the first key,
+     *                 followed by the other keys and the id of the given book
+     */
+    static String pageSelection(String sort, int firstArg) {
+        String[] keys = sortKeys(sort);
+        String condition = BookContract.BookEntry._ID + ">?" + (firstArg + keys.length);
+        for (int i = keys.length - 1; i >= 0; i--) {
+            String value = "?" + (firstArg + i);
+            if (i > 0) {
+                condition = keys[i] + ">" + value + " OR (" + keys[i] + "=" + value + " AND " + condition + ")";
+            } else {
+                condition = keys[i] + ">=" + value + " AND (" + keys[i] + ">" + value + " OR " + condition + ")";
+            }
+        }
+        return condition;
+    }
+
+    private static String[] sortKeys(String sort) {
+        String[] keys = SORT_KEYS.get(sort);
+        if (keys == null) {
+            throw new IllegalArgumentException("Unknown sort order " + sort);
+        }
+        return keys;
+    }
+
+    /**
+     * Combine the caller's selection with an extra condition.
+     */
+    private static String appendSelection(String selection, String condition) {
+        if (TextUtils.isEmpty(selection)) {
+            return condition;
+        }
+        return "(" + selection + ") AND " + condition;
+    }
+
+    private static String[] appendSelectionArg(String[] selectionArgs, String arg) {
+        if (selectionArgs == null) {
+            return new String[]{arg};
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        args[selectionArgs.length] = arg;
+        return args;
+    }
+
+    /**
+     * Return the books whose title or author contains a word starting with each of the search
+     * terms. Books whose title starts with the search text come first, then the others by title,
+     * unless the caller asks for another sort order. The caller's selection, if any, narrows
+     * the results further. The search stops with an OperationCanceledException if the signal
+     * is cancelled while it runs.
+     */
+    private Cursor searchBooks(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                               String sortOrder, CancellationSignal cancellationSignal) {
+        String text = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SEARCH);
+        String match = buildMatchQuery(text);
+        if (match == null) {
+            throw new IllegalArgumentException("Search requires a query for " + uri);
+        }
+
+        // The arguments of the selection come before the one of the sort order
+        selection = appendSelection(selection, BookContract.BookEntry._ID + " IN (SELECT docid FROM "
+                + BookContract.BookEntry.FTS_TABLE_NAME + " WHERE "
+                + BookContract.BookEntry.FTS_TABLE_NAME + " MATCH ?)");
+        selectionArgs = appendSelectionArg(selectionArgs, match);
+        if (sortOrder == null) {
+            sortOrder = BookContract.BookEntry.COLUMN_BOOK_TITLE + " LIKE ? DESC, "
+                    + BookContract.BookEntry.COLUMN_BOOK_TITLE;
+            selectionArgs = appendSelectionArg(selectionArgs, text.trim() + "%");
+        }
+
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        Cursor cursor;
+        if (cancellationSignal != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            cursor = database.query(false, tableFor(projection, selection, sortOrder), projection, selection,
+                    selectionArgs, null, null, sortOrder, null, cancellationSignal);
+        } else {
+            cursor = database.query(tableFor(projection, selection, sortOrder), projection, selection,
+                    selectionArgs, null, null, sortOrder);
+        }
+
+        if (getContext() != null) {
+            // Any change to the books can change the results
+            cursor.setNotificationUri(getContext().getContentResolver(),
+                    BookContract.BookEntry.CONTENT_URI);
+        }
+        return cursor;
+    }
+
+    /**
+     * Turn free text into an FTS prefix query, e.g. "roald da" into "roald* da*".
+     * Characters with a meaning in the FTS query syntax are dropped. Return null if no term is left.
+     */
+    private static String buildMatchQuery(String text) {
+        if (text == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String term : text.split("\\s+")) {
+            term = term.replaceAll("[\"*^():\\-]", "");
+            if (term.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append(term).append('*');
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
 
     /**
      * Returns the MIME type of data for the content URI.
@@ -90,9 +585,20 @@ public class BookProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
+            case BOOK_SEARCH:
                 return BookContract.BookEntry.CONTENT_LIST_TYPE;
             case BOOK_ID:
                 return BookContract.BookEntry.CONTENT_ITEM_TYPE;
+            case BOOK_STATS:
+                return BookContract.StatsEntry.CONTENT_ITEM_TYPE;
+            case SUPPLIERS:
+                return BookContract.SupplierEntry.CONTENT_LIST_TYPE;
+            case SUPPLIER_ID:
+                return BookContract.SupplierEntry.CONTENT_ITEM_TYPE;
+            case SUPPLIER_BOOKS:
+                return BookContract.BookEntry.CONTENT_LIST_TYPE;
+            case SALES_ROLLUP:
+                return BookContract.RollupEntry.CONTENT_LIST_TYPE;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri + " with match " + match);
         }
@@ -122,57 +628,425 @@ public class BookProvider extends ContentProvider {
      * for that specific row in the database.
      */
     private Uri insertBook(Uri uri, ContentValues values) {
-        // Check that the title is not null
-        String title = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_TITLE);
-        if (title == null) {
-            throw new IllegalArgumentException("Book title required");
+        long id = insertRow(values);
+        publishAlerts();
+
+        if (id == -1) {
+            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+            return null;
+        }
+
+        notifyChange(BookContract.BookEntry.buildChangeUri(id, BookContract.BookEntry.CHANGE_INSERT));
+
+        return ContentUris.withAppendedId(uri, id);
+    }
+
+    /**
+     * Insert a book, through the compiled insert statement when the values have its shape.
+     * The schema checks the values. Return the new id, or -1 if the insert failed.
+     */
+    private long insertRow(ContentValues values) {
+        synchronized (mStockMonitor) {
+            loadStock();
+            long id;
+            try {
+                if (BookStatements.isCompleteBook(values)) {
+                    id = mStatements.insert(values);
+                } else {
+                    if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER)
+                            != values.containsKey(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE)) {
+                        // A new book needs both, report the missing one as the schema would
+                        validateBook(values);
+                    }
+                    id = mDbHelper.getWritableDatabase().insertOrThrow(BookContract.BookEntry.TABLE_NAME, null,
+                            toBookRow(values, -1));
+                }
+            } catch (SQLiteConstraintException e) {
+                throw invalidBook(e, values, false);
+            } catch (SQLException e) {
+                Log.e(LOG_TAG, "Error inserting " + values, e);
+                return -1;
+            }
+
+            invalidateBook(id);
+            addAlert(id, mStockMonitor.onInsert(id,
+                    values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY),
+                    values.getAsInteger(BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD)));
+            return id;
+        }
+    }
+
+    /**
+     * Return the given values for the books table, with the supplier name and phone replaced
+     * by the id of the supplier. When an update gives only one of them, the other is read from
+     * the book with the given id; it cannot be guessed for an update of many books. An insert
+     * must give both.
+     */
+    private ContentValues toBookRow(ContentValues values, long id) {
+        boolean hasName = values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER);
+        boolean hasPhone = values.containsKey(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
+        if (!hasName && !hasPhone) {
+            return values;
         }
 
-        // Check that the author name is not null
-        String author = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
-        if (author == null) {
-            throw new IllegalArgumentException("Author name required");
+        String name = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER);
+        String phone = values.getAsString(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
+        if (hasName != hasPhone && id != -1) {
+            Cursor cursor = mDbHelper.getReadableDatabase().query(BookContract.BookEntry.VIEW_NAME,
+                    new String[]{BookContract.BookEntry.COLUMN_BOOK_SUPPLIER,
+                            BookContract.BookEntry.COLUMN_SUPPLIER_PHONE},
+                    BookStatements.SELECTION_BY_ID, new String[]{String.valueOf(id)}, null, null, null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    // No such book, the update changes nothing
+                    return values;
+                }
+                name = hasName ? name : cursor.getString(0);
+                phone = hasPhone ? phone : cursor.getString(1);
+            } finally {
+                cursor.close();
+            }
+        } else if (hasName != hasPhone) {
+            throw new IllegalArgumentException("Supplier name and phone must be updated together");
         }
 
-        // Check that the price is not null
-        Integer price = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_PRICE);
-        if (price == null || price < 0) {
-            throw new IllegalArgumentException("Book requires valid price");
+        ContentValues row = new ContentValues(values);
+        row.remove(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER);
+        row.remove(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
+        row.put(BookContract.BookEntry.COLUMN_SUPPLIER_ID, mStatements.supplierId(name, phone));
+        return row;
+    }
+
+    /**
+     * Turn a CHECK constraint failure into the exception reported for an invalid book.
+     *
+     * @param partial true for an update, which only writes some of the columns; an insert
+     *                needs them all, so a missing column is reported
+     */
+    private static IllegalArgumentException invalidBook(SQLiteConstraintException e, ContentValues values,
+                                                        boolean partial) {
+        String message = e.getMessage();
+        if (message != null) {
+            for (String[] constraint : CONSTRAINT_MESSAGES) {
+                if (message.contains(constraint[0])) {
+                    return new IllegalArgumentException(constraint[1], e);
+                }
+            }
         }
 
-        // Check that the quantity is not null
-        Integer quantity = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
-        if (quantity != null && quantity < 0) {
-            throw new IllegalArgumentException("Book requires a valid quantity");
+        // Older SQLite versions do not name the failed constraint, and a missing supplier fails
+        // on its id, which has no CHECK: look for the invalid column here instead
+        try {
+            validateBook(values, partial);
+        } catch (IllegalArgumentException invalid) {
+            return invalid;
         }
+        return new IllegalArgumentException("Invalid book " + values, e);
+    }
+
+    /**
+     * Check that the given content values describe a complete, valid book, with the same rules
+     * as the CHECK constraints of the books and suppliers tables.
+     * Used by {@link BookImporter} to reject rows before they reach the provider.
+     */
+    static void validateBook(ContentValues values) {
+        validateBook(values, false);
+    }
 
-        // Check that the supplier name is not null
-        String supplier = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER);
-        if (supplier == null) {
-            throw new IllegalArgumentException("Supplier name required");
+    /**
+     * Check the given content values in Java. When partial, only the columns present are checked.
+     */
+    private static void validateBook(ContentValues values, boolean partial) {
+        for (String[] constraint : CONSTRAINT_MESSAGES) {
+            String column = constraint[2];
+            if (partial && !values.containsKey(column)) {
+                continue;
+            }
+            boolean valid;
+            if (column.equals(BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD)) {
+                // Optional, null stands for the default threshold
+                Integer threshold = values.getAsInteger(column);
+                valid = values.get(column) == null || (threshold != null && threshold >= 0);
+            } else if (column.equals(BookContract.BookEntry.COLUMN_BOOK_PRICE)
+                    || column.equals(BookContract.BookEntry.COLUMN_BOOK_QUANTITY)) {
+                Integer number = values.getAsInteger(column);
+                valid = number != null && number >= 0;
+            } else {
+                valid = values.getAsString(column) != null;
+            }
+            if (!valid) {
+                throw new IllegalArgumentException(constraint[1]);
+            }
         }
+    }
 
-        // Check that the supplier phone number is not null
-        String phone = values.getAsString(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
-        if (phone == null) {
-            throw new IllegalArgumentException("Supplier phone required");
+    /**
+     * Insert all the given books in a single transaction, reusing the compiled insert statement.
+     * A row that fails the schema checks aborts the whole batch. Return the number of inserted rows.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        final int match = sUriMatcher.match(uri);
+        if (match != BOOKS) {
+            throw new IllegalArgumentException("Insertion is not supported for " + uri);
         }
 
-        // Get writable database
         SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        int rowsInserted = 0;
+        boolean successful = false;
+        synchronized (mStockMonitor) {
+            database.beginTransaction();
+            try {
+                for (ContentValues book : values) {
+                    if (insertRow(book) != -1) {
+                        rowsInserted++;
+                    } else {
+                        Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                    }
+                }
+                database.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                database.endTransaction();
+                if (!successful) {
+                    // Suppliers and stock levels recorded by the batch were rolled back with it
+                    mStatements.clearSupplierIds();
+                    mStockMonitor.invalidate();
+                    mPendingAlerts.remove();
+                }
+            }
+        }
+        publishAlerts();
 
-        long id = database.insert(BookContract.BookEntry.TABLE_NAME, null, values);
+        if (rowsInserted > 0) {
+            notifyChange(uri);
+            flushChanges();
+        }
+        return rowsInserted;
+    }
 
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
-            return null;
+    /**
+     * Apply all the operations in a single transaction. Change notifications are held back
+     * while the batch runs and replaced by one notification on {@link BookContract.BookEntry#CONTENT_URI}.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        ContentProviderResult[] results = null;
+        synchronized (mStockMonitor) {
+            mApplyingBatch.set(Boolean.TRUE);
+            database.beginTransaction();
+            try {
+                results = super.applyBatch(operations);
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+                mApplyingBatch.set(Boolean.FALSE);
+                if (results == null) {
+                    // Suppliers and stock levels recorded by the batch were rolled back with it
+                    mStatements.clearSupplierIds();
+                    mStockMonitor.invalidate();
+                    mPendingAlerts.remove();
+                }
+                // Readers may have cached books before the batch was committed
+                invalidateAllBooks();
+            }
         }
+        publishAlerts();
 
-        if (getContext() != null) {
-            getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(BookContract.BookEntry.CONTENT_URI);
+        flushChanges();
+        return results;
+    }
+
+    /**
+     * Handle the provider methods declared in {@link BookContract}.
+     */
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (BookContract.METHOD_EXPORT.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Export requires a file path");
+            }
+            BookImporter.Format format = BookImporter.Format.CSV;
+            if (extras != null && extras.getString(BookContract.EXTRA_FORMAT) != null) {
+                format = BookImporter.Format.valueOf(extras.getString(BookContract.EXTRA_FORMAT));
+            }
+            BookExporter exporter = new BookExporter(mDbHelper.getReadableDatabase(), format);
+            Bundle result = new Bundle();
+            try {
+                result.putInt(BookContract.EXTRA_ROW_COUNT, exporter.export(new File(arg)));
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Failed to export books to " + arg, e);
+                return null;
+            }
+            return result;
         }
+        if (BookContract.METHOD_NOTIFICATION_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            if (mChangeNotifier != null) {
+                result.putLong(BookContract.EXTRA_CHANGES_RECEIVED, mChangeNotifier.getChangesReceived());
+                result.putLong(BookContract.EXTRA_NOTIFICATIONS_SENT, mChangeNotifier.getNotificationsSent());
+            }
+            return result;
+        }
+        if (BookContract.METHOD_CACHE_STATS.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(BookContract.EXTRA_CACHE_HITS, mBookCache.getHitCount());
+            result.putLong(BookContract.EXTRA_CACHE_MISSES, mBookCache.getMissCount());
+            result.putLong(BookContract.EXTRA_CACHE_EVICTIONS, mBookCache.getEvictionCount());
+            return result;
+        }
+        if (BookContract.METHOD_CHECK_STATS.equals(method)) {
+            boolean consistent = BookDbHelper.rebuildStats(mDbHelper.getWritableDatabase());
+            if (!consistent) {
+                Log.e(LOG_TAG, "Inventory statistics were out of date and have been rebuilt");
+                notifyChange(BookContract.BookEntry.CONTENT_URI);
+            }
+            Bundle result = new Bundle();
+            result.putBoolean(BookContract.EXTRA_STATS_CONSISTENT, consistent);
+            return result;
+        }
+        if (BookContract.METHOD_SYNC.equals(method)) {
+            if (arg == null) {
+                throw new IllegalArgumentException("Sync requires the URL of the server");
+            }
+            return sync(new SyncEngine.HttpTransport(arg));
+        }
+        if (BookContract.METHOD_ROLL_UP_SALES.equals(method)) {
+            Bundle result = new Bundle();
+            result.putInt(BookContract.EXTRA_ROW_COUNT, SalesLedger.rollUp(mDbHelper.getWritableDatabase()));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
 
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Synchronize the books with the server behind the given transport. The engine takes the
+     * lock of the {@link StockMonitor} around its writes; the books it pulled are then read
+     * again by the monitor and the cache.
+     */
+    Bundle sync(SyncEngine.Transport transport) {
+        Bundle result = new Bundle();
+        synchronized (mSyncLock) {
+            SyncEngine engine = new SyncEngine(mDbHelper, mStatements, mStockMonitor, transport);
+            try {
+                engine.sync();
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Sync stopped, it resumes from here next time", e);
+                result.putString(BookContract.EXTRA_SYNC_ERROR, e.toString());
+            } finally {
+                if (engine.getBooksPulled() > 0) {
+                    synchronized (mStockMonitor) {
+                        mStockMonitor.invalidate();
+                    }
+                    invalidateAllBooks();
+                    notifyChange(BookContract.BookEntry.CONTENT_URI);
+                }
+            }
+            result.putInt(BookContract.EXTRA_BOOKS_PUSHED, engine.getBooksPushed());
+            result.putInt(BookContract.EXTRA_BOOKS_PULLED, engine.getBooksPulled());
+        }
+        return result;
+    }
+
+    /**
+     * Notify the observers of the given URI, unless the change is part of a batch that
+     * notifies once when it finishes. The notification is coalesced with the other changes
+     * of the same window by the {@link ChangeNotifier}.
+     */
+    private void notifyChange(Uri uri) {
+        if (mChangeNotifier == null || mApplyingBatch.get() == Boolean.TRUE) {
+            return;
+        }
+        mChangeNotifier.notifyChange(uri);
+    }
+
+    /**
+     * Notify the pending changes right away, at the end of a transaction.
+     */
+    private void flushChanges() {
+        if (mChangeNotifier != null) {
+            mChangeNotifier.flush();
+        }
+    }
+
+    /**
+     * Drop the copies of a written book, from the cache and from the snapshot.
+     */
+    private void invalidateBook(long id) {
+        mBookCache.invalidate(id);
+        if (mSnapshot != null) {
+            mSnapshot.invalidate(id);
+        }
+    }
+
+    /**
+     * Drop the copies of every book, after a write that may have changed any of them.
+     */
+    private void invalidateAllBooks() {
+        mBookCache.invalidateAll();
+        if (mSnapshot != null) {
+            mSnapshot.invalidateAll();
+        }
+    }
+
+    /**
+     * Read the stock levels of the books if they are not known. The caller holds the lock of
+     * the {@link StockMonitor}.
+     */
+    private void loadStock() {
+        if (!mStockMonitor.isLoaded()) {
+            mStockMonitor.load(mDbHelper.getWritableDatabase());
+        }
+    }
+
+    /**
+     * Record the alert for a change of the stock level of a book, if there was one.
+     */
+    private void addAlert(long id, int level) {
+        String name;
+        switch (level) {
+            case StockMonitor.LEVEL_OK:
+                name = BookContract.AlertEntry.LEVEL_RESTOCKED;
+                break;
+            case StockMonitor.LEVEL_LOW:
+                name = BookContract.AlertEntry.LEVEL_LOW;
+                break;
+            case StockMonitor.LEVEL_OUT:
+                name = BookContract.AlertEntry.LEVEL_OUT;
+                break;
+            default:
+                return;
+        }
+        List<Uri> alerts = mPendingAlerts.get();
+        if (alerts == null) {
+            alerts = new ArrayList<>();
+            mPendingAlerts.set(alerts);
+        }
+        alerts.add(BookContract.AlertEntry.buildAlertUri(id, name));
+    }
+
+    /**
+     * Publish the alerts recorded by the calling thread, unless it is in a batch that
+     * publishes them once committed. Alerts are rare and each one matters, so they are not
+     * coalesced with the other changes.
+     */
+    private void publishAlerts() {
+        List<Uri> alerts = mPendingAlerts.get();
+        if (alerts == null || alerts.isEmpty() || mApplyingBatch.get() == Boolean.TRUE) {
+            return;
+        }
+        mPendingAlerts.remove();
+        if (getContext() == null) {
+            return;
+        }
+        for (Uri alert : alerts) {
+            getContext().getContentResolver().notifyChange(alert, null);
+        }
     }
 
     /**
@@ -187,21 +1061,32 @@ public class BookProvider extends ContentProvider {
         final int match = sUriMatcher.match(uri);
         switch (match) {
             case BOOKS:
-                rowsDeleted = database.delete(BookContract.BookEntry.TABLE_NAME, null, null);
+                synchronized (mStockMonitor) {
+                    rowsDeleted = database.delete(BookContract.BookEntry.TABLE_NAME, null, null);
+                    if (mStockMonitor.isLoaded()) {
+                        mStockMonitor.onDeleteAll();
+                    }
+                }
+                invalidateAllBooks();
                 break;
             case BOOK_ID:
-                selection = BookContract.BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                rowsDeleted = database.delete(BookContract.BookEntry.TABLE_NAME, selection, selectionArgs);
+                long id = ContentUris.parseId(uri);
+                synchronized (mStockMonitor) {
+                    rowsDeleted = mStatements.delete(id);
+                    if (mStockMonitor.isLoaded()) {
+                        mStockMonitor.onDelete(id);
+                    }
+                }
+                invalidateBook(id);
+                // Only this book changed
+                uri = BookContract.BookEntry.buildChangeUri(id, BookContract.BookEntry.CHANGE_DELETE);
                 break;
             default:
                 throw new IllegalArgumentException("Deletion is not supported for " + uri);
         }
 
         if (rowsDeleted > 0) {
-            if (getContext() != null) {
-                getContext().getContentResolver().notifyChange(uri, null);
-            }
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
@@ -216,91 +1101,278 @@ public class BookProvider extends ContentProvider {
                 if (contentValues == null) {
                     throw new IllegalArgumentException("No values provided");
                 }
-                return updateBook(uri, contentValues, selection, selectionArgs);
+                int rowsUpdated = updateBook(uri, contentValues, -1, selection, selectionArgs);
+                invalidateAllBooks();
+                publishAlerts();
+                return rowsUpdated;
             case BOOK_ID:
                 if (contentValues == null) {
                     throw new IllegalArgumentException("No values provided");
                 }
-                selection = BookContract.BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updateBook(uri, contentValues, selection, selectionArgs);
+                long id = ContentUris.parseId(uri);
+                rowsUpdated = updateBook(BookContract.BookEntry.buildChangeUri(id, BookContract.BookEntry.CHANGE_UPDATE),
+                        contentValues, id, null, null);
+                invalidateBook(id);
+                publishAlerts();
+                return rowsUpdated;
             case BOOK_SELL:
-                if (contentValues == null) {
-                    throw new IllegalArgumentException("No values provided");
-                }
-                int quantity = contentValues.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
-                ContentValues quantityValues = new ContentValues();
-                quantityValues.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, quantity);
-                selection = BookContract.BookEntry._ID + "=?";
-                selectionArgs = new String[]{String.valueOf(ContentUris.parseId(uri))};
-                return updateBook(uri, quantityValues, selection, selectionArgs);
+                rowsUpdated = sellBook(uri, contentValues);
+                publishAlerts();
+                return rowsUpdated;
             default:
                 throw new IllegalArgumentException("Update is not supported for " + uri);
         }
     }
 
     /**
-     * Update books in the database with the given content values. Apply the changes to the rows
-     * specified in the selection and selection arguments (which could be 0 or 1 or more books).
+     * Sell units of the book identified by the URI. The stock is decremented in a single
+     * UPDATE statement, so concurrent sales never overwrite each other. Return 0 if the book
+     * does not exist or there are not enough units left, 1 otherwise.
+     */
+    private int sellBook(Uri uri, ContentValues values) {
+        int units = 1;
+        if (values != null && values.containsKey(BookContract.BookEntry.SELL_UNITS)) {
+            Integer requested = values.getAsInteger(BookContract.BookEntry.SELL_UNITS);
+            if (requested == null || requested <= 0) {
+                throw new IllegalArgumentException("Sale requires a positive number of units");
+            }
+            units = requested;
+        }
+
+        long id = ContentUris.parseId(uri);
+        int rowsUpdated;
+        synchronized (mStockMonitor) {
+            loadStock();
+            rowsUpdated = mStatements.sell(id, units);
+            if (rowsUpdated > 0) {
+                addAlert(id, mStockMonitor.onSell(id, units));
+            }
+        }
+        invalidateBook(id);
+
+        if (rowsUpdated > 0) {
+            notifyChange(BookContract.BookEntry.buildChangeUri(id, BookContract.BookEntry.CHANGE_UPDATE));
+        }
+        return rowsUpdated;
+    }
+
+    /**
+     * Update books in the database with the given content values. Apply the changes to the book
+     * with the given id, or if it is -1 to the rows specified in the selection and selection
+     * arguments (which could be 0 or 1 or more books).
+     * Observers of the given URI are notified of the change.
+     * With {@link BookContract.BookEntry#EXPECTED_VERSION}, the book is only updated if it is
+     * still at that version, and with {@link BookContract.BookEntry#expected(String)} values if
+     * its columns still hold them, in the same statement.
      * Return the number of rows that were successfully updated.
      */
-    private int updateBook(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+    private int updateBook(Uri uri, ContentValues values, long id, String selection, String[] selectionArgs) {
+
+        if (values.containsKey(BookContract.BookEntry.COLUMN_VERSION)) {
+            throw new IllegalArgumentException("The version of a book cannot be written");
+        }
+        Long expectedVersion = null;
+        if (values.containsKey(BookContract.BookEntry.EXPECTED_VERSION)) {
+            expectedVersion = values.getAsLong(BookContract.BookEntry.EXPECTED_VERSION);
+            if (expectedVersion == null || id == -1) {
+                throw new IllegalArgumentException("An expected version requires a single book and a number");
+            }
+            values = new ContentValues(values);
+            values.remove(BookContract.BookEntry.EXPECTED_VERSION);
+        }
+        // The values of the columns the caller based its changes on
+        String expected = null;
+        List<String> expectedArgs = new ArrayList<>();
+        ContentValues expectedValues = values;
+        for (String key : expectedValues.keySet()) {
+            if (!key.startsWith(BookContract.BookEntry.EXPECTED_PREFIX)) {
+                continue;
+            }
+            if (id == -1) {
+                throw new IllegalArgumentException("Expected values require a single book");
+            }
+            if (values == expectedValues) {
+                values = new ContentValues(expectedValues);
+            }
+            values.remove(key);
+            String value = expectedValues.getAsString(key);
+            expected = appendSelection(expected, expectedSelection(
+                    key.substring(BookContract.BookEntry.EXPECTED_PREFIX.length()), value == null));
+            if (value != null) {
+                expectedArgs.add(value);
+            }
+        }
 
         if (values.size() == 0) {
             return 0;
         }
 
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_TITLE)) {
-            String title = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_TITLE);
-            if (title == null) {
-                throw new IllegalArgumentException("Book title required");
+        boolean stockChanged = values.containsKey(BookContract.BookEntry.COLUMN_BOOK_QUANTITY)
+                || values.containsKey(BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD);
+
+        // The schema checks the values
+        int rowsUpdated;
+        synchronized (mStockMonitor) {
+            if (stockChanged && id != -1) {
+                loadStock();
+            }
+            try {
+                if (id != -1 && expectedVersion == null && expected == null
+                        && BookStatements.isCompleteBook(values)) {
+                    rowsUpdated = mStatements.update(id, values);
+                } else {
+                    ContentValues row = toBookRow(values, id);
+                    if (id != -1) {
+                        selection = BookStatements.SELECTION_BY_ID;
+                        selectionArgs = new String[]{String.valueOf(id)};
+                    }
+                    if (expectedVersion != null) {
+                        // Compare and set: the version only moves on from the expected one.
+                        // The values are a copy made above, so they can be changed
+                        row.put(BookContract.BookEntry.COLUMN_VERSION, expectedVersion + 1);
+                        selection = appendSelection(selection, BookContract.BookEntry.COLUMN_VERSION + "=?");
+                        selectionArgs = appendSelectionArg(selectionArgs, String.valueOf(expectedVersion));
+                    }
+                    if (expected != null) {
+                        selection = appendSelection(selection, expected);
+                        for (String arg : expectedArgs) {
+                            selectionArgs = appendSelectionArg(selectionArgs, arg);
+                        }
+                    }
+                    SQLiteDatabase database = mDbHelper.getWritableDatabase();
+                    rowsUpdated = database.update(BookContract.BookEntry.TABLE_NAME, row,
+                            selection, selectionArgs);
+                }
+            } catch (SQLiteConstraintException e) {
+                throw invalidBook(e, values, true);
             }
-        }
 
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_AUTHOR)) {
-            String author = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_AUTHOR);
-            if (author == null) {
-                throw new IllegalArgumentException("Author name required");
+            if (stockChanged && rowsUpdated > 0) {
+                if (id != -1) {
+                    addAlert(id, mStockMonitor.onUpdate(id,
+                            values.containsKey(BookContract.BookEntry.COLUMN_BOOK_QUANTITY),
+                            values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY),
+                            values.containsKey(BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD),
+                            values.getAsInteger(BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD)));
+                } else {
+                    // Which books changed is not known, read them again on the next write
+                    mStockMonitor.invalidate();
+                }
             }
         }
 
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_PRICE)) {
-            Integer price = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_PRICE);
-            if (price != null && price < 0) {
-                throw new IllegalArgumentException("Book requires valid price");
-            }
+        if (rowsUpdated > 0) {
+            notifyChange(uri);
         }
+        return rowsUpdated;
+    }
 
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_QUANTITY)) {
-            Integer quantity = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
-            if (quantity != null && quantity < 0) {
-                throw new IllegalArgumentException("Book requires valid quantity");
-            }
+    /**
+     * Return the condition that a column of a book still holds its expected value, given as
+     * the next selection argument unless it is null.
+     */
+    private static String expectedSelection(String column, boolean isNull) {
+        String supplierColumn;
+        switch (column) {
+            case BookContract.BookEntry.COLUMN_BOOK_TITLE:
+            case BookContract.BookEntry.COLUMN_BOOK_AUTHOR:
+            case BookContract.BookEntry.COLUMN_BOOK_PRICE:
+            case BookContract.BookEntry.COLUMN_BOOK_QUANTITY:
+            case BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD:
+                return column + (isNull ? " IS NULL" : "=?");
+            case BookContract.BookEntry.COLUMN_BOOK_SUPPLIER:
+                supplierColumn = BookContract.SupplierEntry.COLUMN_SUPPLIER_NAME;
+                break;
+            case BookContract.BookEntry.COLUMN_SUPPLIER_PHONE:
+                supplierColumn = BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE;
+                break;
+            default:
+                throw new IllegalArgumentException("Cannot expect a value of " + column);
         }
+        if (isNull) {
+            return BookContract.BookEntry.COLUMN_SUPPLIER_ID + " IS NULL";
+        }
+        return BookContract.BookEntry.COLUMN_SUPPLIER_ID + " IN (SELECT " + BookContract.SupplierEntry._ID
+                + " FROM " + BookContract.SupplierEntry.TABLE_NAME + " WHERE " + supplierColumn + "=?)";
+    }
+
+    /**
+     * Query of the {@link #BOOKS} uri: the caller's selection and sort order with the filter,
+     * the sort and the page of the uri applied. Tests read its SQL to check the plan of the
+     * queries the provider actually runs.
+     */
+    static final class BooksQuery {
+
+        final String mTable;
+        final String[] mProjection;
+        final String mSelection;
+        final String[] mSelectionArgs;
+        final String mSortOrder;
+        final String mLimit;
 
-        if (values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER)) {
-            String supplier = values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER);
-            if (supplier == null) {
-                throw new IllegalArgumentException("Supplier name required");
+        BooksQuery(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                   String sortOrder) {
+            String filter = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_FILTER);
+            if (filter != null) {
+                selection = appendSelection(selection, filterSelection(filter));
             }
+            String sort = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SORT);
+            String limit = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_LIMIT);
+            if (sort == null && limit != null) {
+                sort = BookContract.BookEntry.SORT_ADDED;
+            }
+            if (sort != null) {
+                sortOrder = orderBy(sort);
+            }
+            if (limit != null) {
+                // Keyset pagination: the page starts right after the last book of the previous one
+                String after = uri.getQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER);
+                if (!TextUtils.isDigitsOnly(limit) || limit.isEmpty()
+                        || (after != null && (!TextUtils.isDigitsOnly(after) || after.isEmpty()))) {
+                    throw new IllegalArgumentException("Invalid page for " + uri);
+                }
+                // The first page of the other orders needs no anchor
+                if (sort.equals(BookContract.BookEntry.SORT_ADDED)
+                        || (after != null && Long.parseLong(after) > 0)) {
+                    List<String> keys = uri.getQueryParameters(BookContract.BookEntry.QUERY_PARAMETER_AFTER_KEY);
+                    if (keys.size() != sortKeys(sort).length) {
+                        throw new IllegalArgumentException("Invalid page for " + uri);
+                    }
+                    int firstArg = (selectionArgs == null ? 0 : selectionArgs.length) + 1;
+                    for (String key : keys) {
+                        selectionArgs = appendSelectionArg(selectionArgs, key);
+                    }
+                    selectionArgs = appendSelectionArg(selectionArgs, after == null ? "0" : after);
+                    selection = appendSelection(selection, pageSelection(sort, firstArg));
+                }
+            }
+            mTable = tableFor(projection, selection, sortOrder);
+            mProjection = projection;
+            mSelection = selection;
+            mSelectionArgs = selectionArgs;
+            mSortOrder = sortOrder;
+            mLimit = limit;
         }
 
-        if (values.containsKey(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE)) {
-            String phone = values.getAsString(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
-            if (phone == null) {
-                throw new IllegalArgumentException("Supplier phone required");
+        /**
+         * Run the query, and stop it early if the signal, when given, is cancelled.
+         */
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        Cursor query(SQLiteDatabase database, CancellationSignal cancellationSignal) {
+            if (cancellationSignal != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                return database.query(false, mTable, mProjection, mSelection, mSelectionArgs, null, null,
+                        mSortOrder, mLimit, cancellationSignal);
             }
+            return database.query(mTable, mProjection, mSelection, mSelectionArgs, null, null,
+                    mSortOrder, mLimit);
         }
 
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
-
-        int rowsUpdated = database.update(BookContract.BookEntry.TABLE_NAME, values, selection, selectionArgs);
-
-        if (rowsUpdated > 0) {
-            if (getContext() != null) {
-                getContext().getContentResolver().notifyChange(uri, null);
-            }
+        /**
+         * Return the SQL of the query, as {@link #query(SQLiteDatabase, CancellationSignal)} runs it.
+         */
+        String toSql() {
+            return SQLiteQueryBuilder.buildQueryString(false, mTable, mProjection, mSelection,
+                    null, null, mSortOrder, mLimit);
         }
-        return rowsUpdated;
     }
-}
\ No newline at end of file
+}
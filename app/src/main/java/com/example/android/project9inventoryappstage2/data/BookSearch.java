@@ -0,0 +1,174 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.support.v4.content.ContentResolverCompat;
+import android.support.v4.os.CancellationSignal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The books found for a search text, kept so that a longer text can narrow them in memory
+ * rather than search the database again.
+ * <p>
+ * Narrowing mirrors the full-text search of the {@link BookProvider}: each term of the text
+ * must start a word of the title or of the author, where words are the runs of ASCII letters
+ * and digits and of non-ASCII characters, compared regardless of ASCII case. The books whose
+ * title starts with the text come first, then the others by title.
+ */
+public class BookSearch {
+
+    private final String mText;
+    private final BookCatalog mBooks;
+
+    public BookSearch(String text, BookCatalog books) {
+        mText = text;
+        mBooks = books;
+    }
+
+    /**
+     * Search the books through the provider.
+     *
+     * @param projection The columns read by {@link BookCatalog#from(android.database.Cursor)}
+     * @return the books found, or null if the signal was cancelled
+     */
+    public static BookSearch query(ContentResolver resolver, String text, String[] projection,
+                                   CancellationSignal cancellationSignal) {
+        Uri uri = BookContract.BookEntry.SEARCH_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SEARCH, text)
+                .build();
+        Cursor cursor = null;
+        try {
+            cursor = ContentResolverCompat.query(resolver, uri, projection, null, null, null,
+                    cancellationSignal);
+            return cursor == null ? null : new BookSearch(text, BookCatalog.from(cursor));
+        } catch (RuntimeException e) {
+            // Either OperationCanceledException, depending on whether the query or the
+            // reading of the rows was stopped
+            if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                return null;
+            }
+            throw e;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    public String getText() {
+        return mText;
+    }
+
+    public BookCatalog getBooks() {
+        return mBooks;
+    }
+
+    /**
+     * Return true if the books of the given text are a subset of these books, which
+     * {@link #narrow(String)} can find without the database: the text extends the text of this
+     * search, and holds only word characters and spaces.
+     */
+    public boolean canNarrow(String text) {
+        if (!text.startsWith(mText) || terms(mText).length == 0) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (!isWordChar(c) && !isSpace(c)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the books of the given text, found among these books.
+     *
+     * @return null if {@link #canNarrow(String)} is false for the text
+     */
+    public BookSearch narrow(String text) {
+        if (!canNarrow(text)) {
+            return null;
+        }
+        final String[] terms = terms(text);
+        final String prefix = text.trim();
+        BookCatalog books = mBooks.filter(new BookCatalog.Filter() {
+            @Override
+            public boolean accept(BookCatalog catalog, int position) {
+                String title = catalog.getTitle(position);
+                String author = catalog.getAuthor(position);
+                for (String term : terms) {
+                    if (!hasWordStartingWith(title, term) && !hasWordStartingWith(author, term)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        books = books.sortedBy(BookContract.BookEntry.COLUMN_BOOK_TITLE, false)
+                .sortedFirst(new BookCatalog.Filter() {
+                    @Override
+                    public boolean accept(BookCatalog catalog, int position) {
+                        return startsWithIgnoreCase(catalog.getTitle(position), 0, prefix);
+                    }
+                });
+        return new BookSearch(text, books);
+    }
+
+    private static String[] terms(String text) {
+        List<String> terms = new ArrayList<>();
+        for (String term : text.split("\\s+")) {
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms.toArray(new String[terms.size()]);
+    }
+
+    private static boolean hasWordStartingWith(String text, String term) {
+        if (text == null) {
+            return false;
+        }
+        for (int i = 0; i <= text.length() - term.length(); i++) {
+            if (isWordChar(text.charAt(i)) && (i == 0 || !isWordChar(text.charAt(i - 1)))
+                    && startsWithIgnoreCase(text, i, term)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if the text has the prefix at the given offset, ignoring the case of the
+     * ASCII letters only, as SQLite does.
+     */
+    private static boolean startsWithIgnoreCase(String text, int offset, String prefix) {
+        if (text == null || text.length() - offset < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (toLowerCase(text.charAt(offset + i)) != toLowerCase(prefix.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Characters of the words of the simple tokenizer of the full-text index.
+     */
+    private static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c >= 0x80;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -0,0 +1,306 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentValues;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compiled statements for the fixed-shape writes of {@link BookProvider}: insert a book,
+ * update all the columns of a book, sell a book (and record the sale) and delete a book.
+ * <p>
+ * Each statement is compiled once for the open database and then reused with new bindings.
+ * The statements are shared by all the threads, which only use them while holding the write
+ * lock of the provider: the lock of this object is then never awaited by a thread in a
+ * transaction, which could deadlock. When the helper opens a new database, the statements of
+ * the old one are closed, and {@link #close()} closes them for good.
+ * Reads by id do not need a statement here: they use a constant selection, and SQLite reuses
+ * the prepared statement from the connection's own cache.
+ * <p>
+ * Books refer to their supplier by id. The name and phone given for a book are interned: the
+ * supplier is looked up, or created, once and its id is remembered.
+ */
+class BookStatements {
+
+    /**
+     * Selection for a single book, shared so that its SQL is identical on every query.
+     */
+    static final String SELECTION_BY_ID = BookContract.BookEntry._ID + "=?";
+
+    private static final String SQL_INSERT_BOOK = "INSERT INTO " + BookContract.BookEntry.TABLE_NAME
+            + " (" + BookContract.BookEntry.COLUMN_BOOK_TITLE + ", "
+            + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + ", "
+            + BookContract.BookEntry.COLUMN_BOOK_PRICE + ", "
+            + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ", "
+            + BookContract.BookEntry.COLUMN_SUPPLIER_ID + ") VALUES (?, ?, ?, ?, ?)";
+
+    private static final String SQL_UPDATE_BOOK = "UPDATE " + BookContract.BookEntry.TABLE_NAME
+            + " SET " + BookContract.BookEntry.COLUMN_BOOK_TITLE + " = ?, "
+            + BookContract.BookEntry.COLUMN_BOOK_AUTHOR + " = ?, "
+            + BookContract.BookEntry.COLUMN_BOOK_PRICE + " = ?, "
+            + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " = ?, "
+            + BookContract.BookEntry.COLUMN_SUPPLIER_ID + " = ?, "
+            + BookContract.BookEntry.COLUMN_VERSION + " = " + BookContract.BookEntry.COLUMN_VERSION + " + 1"
+            + " WHERE " + BookContract.BookEntry._ID + " = ?";
+
+    /**
+     * Decrements the stock of one book, but only if there are enough units left. The benchmark
+     * runs it alone, as a sale was before the ledger.
+     */
+    static final String SQL_SELL_BOOK = "UPDATE " + BookContract.BookEntry.TABLE_NAME
+            + " SET " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " = "
+            + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " - ?, "
+            + BookContract.BookEntry.COLUMN_VERSION + " = " + BookContract.BookEntry.COLUMN_VERSION + " + 1"
+            + " WHERE " + BookContract.BookEntry._ID + " = ?"
+            + " AND " + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " >= ?";
+
+    /**
+     * Records a sale in the ledger, at the current price of the book.
+     */
+    private static final String SQL_RECORD_SALE = "INSERT INTO " + BookContract.SaleEntry.TABLE_NAME
+            + " (" + BookContract.SaleEntry.COLUMN_BOOK_ID + ", "
+            + BookContract.SaleEntry.COLUMN_UNITS + ", "
+            + BookContract.SaleEntry.COLUMN_PRICE + ", "
+            + BookContract.SaleEntry.COLUMN_SOLD_AT + ") SELECT "
+            + BookContract.BookEntry._ID + ", ?1, " + BookContract.BookEntry.COLUMN_BOOK_PRICE + ", ?2"
+            + " FROM " + BookContract.BookEntry.TABLE_NAME
+            + " WHERE " + BookContract.BookEntry._ID + " = ?3";
+
+    private static final String SQL_DELETE_BOOK = "DELETE FROM " + BookContract.BookEntry.TABLE_NAME
+            + " WHERE " + BookContract.BookEntry._ID + " = ?";
+
+    private static final String SQL_FIND_SUPPLIER = "SELECT " + BookContract.SupplierEntry._ID
+            + " FROM " + BookContract.SupplierEntry.TABLE_NAME
+            + " WHERE " + BookContract.SupplierEntry.COLUMN_SUPPLIER_NAME + " = ?"
+            + " AND " + BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE + " = ?";
+
+    /**
+     * Creates a supplier unless it already exists, in a single statement so that two threads
+     * cannot both create it.
+     */
+    private static final String SQL_CREATE_SUPPLIER = "INSERT INTO " + BookContract.SupplierEntry.TABLE_NAME
+            + " (" + BookContract.SupplierEntry.COLUMN_SUPPLIER_NAME + ", "
+            + BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE + ") SELECT ?1, ?2 WHERE NOT EXISTS (SELECT 1"
+            + " FROM " + BookContract.SupplierEntry.TABLE_NAME
+            + " WHERE " + BookContract.SupplierEntry.COLUMN_SUPPLIER_NAME + " = ?1"
+            + " AND " + BookContract.SupplierEntry.COLUMN_SUPPLIER_PHONE + " = ?2)";
+
+    /**
+     * Interned suppliers are forgotten all at once past this number.
+     */
+    private static final int MAX_SUPPLIER_IDS = 1000;
+
+    private final SQLiteOpenHelper mDbHelper;
+
+    /**
+     * The compiled statements by SQL, and the database they were compiled for. Guarded by this.
+     */
+    private final Map<String, SQLiteStatement> mStatements = new HashMap<>();
+    private SQLiteDatabase mDatabase;
+
+    /**
+     * Supplier ids by name and phone. Guarded by itself.
+     */
+    private final Map<String, Long> mSupplierIds = new HashMap<>();
+
+    BookStatements(SQLiteOpenHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Return true if the values hold exactly the six columns of a book, which is the shape the
+     * insert and update statements bind.
+     */
+    static boolean isCompleteBook(ContentValues values) {
+        return values.size() == 6
+                && values.containsKey(BookContract.BookEntry.COLUMN_BOOK_TITLE)
+                && values.containsKey(BookContract.BookEntry.COLUMN_BOOK_AUTHOR)
+                && values.containsKey(BookContract.BookEntry.COLUMN_BOOK_PRICE)
+                && values.containsKey(BookContract.BookEntry.COLUMN_BOOK_QUANTITY)
+                && values.containsKey(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER)
+                && values.containsKey(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
+    }
+
+    /**
+     * Insert a book, given as values with exactly the six book columns.
+     * Return the id of the new book.
+     */
+    synchronized long insert(ContentValues values) {
+        SQLiteStatement statement = statement(SQL_INSERT_BOOK);
+        bindBook(statement, values);
+        return statement.executeInsert();
+    }
+
+    /**
+     * Replace all the columns of a book with values holding exactly the six book columns.
+     * Return the number of updated rows.
+     */
+    synchronized int update(long id, ContentValues values) {
+        SQLiteStatement statement = statement(SQL_UPDATE_BOOK);
+        bindBook(statement, values);
+        statement.bindLong(6, id);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Sell units of a book if there are enough of them, and record the sale in the ledger in
+     * the same transaction. Return the number of updated rows.
+     */
+    synchronized int sell(long id, int units) {
+        SQLiteStatement statement = statement(SQL_SELL_BOOK);
+        SQLiteStatement record = statement(SQL_RECORD_SALE);
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        database.beginTransactionNonExclusive();
+        try {
+            statement.bindLong(1, units);
+            statement.bindLong(2, id);
+            statement.bindLong(3, units);
+            int rowsUpdated = statement.executeUpdateDelete();
+            if (rowsUpdated > 0) {
+                record.bindLong(1, units);
+                record.bindLong(2, System.currentTimeMillis());
+                record.bindLong(3, id);
+                record.executeInsert();
+            }
+            database.setTransactionSuccessful();
+            return rowsUpdated;
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Delete a book. Return the number of deleted rows.
+     */
+    synchronized int delete(long id) {
+        SQLiteStatement statement = statement(SQL_DELETE_BOOK);
+        statement.bindLong(1, id);
+        return statement.executeUpdateDelete();
+    }
+
+    /**
+     * Return the id of the supplier with the given name and phone, creating it if needed.
+     * Throws {@link android.database.sqlite.SQLiteConstraintException} if either is null.
+     */
+    synchronized long supplierId(String name, String phone) {
+        String key = name == null || phone == null ? null : name + '\n' + phone;
+        if (key != null) {
+            synchronized (mSupplierIds) {
+                Long id = mSupplierIds.get(key);
+                if (id != null) {
+                    return id;
+                }
+            }
+        }
+
+        long id = findSupplier(name, phone);
+        if (id == -1) {
+            SQLiteStatement create = statement(SQL_CREATE_SUPPLIER);
+            create.clearBindings();
+            bindString(create, 1, name);
+            bindString(create, 2, phone);
+            id = create.executeInsert();
+            if (id == -1) {
+                // Created by another thread in the meantime
+                id = findSupplier(name, phone);
+            }
+        }
+
+        synchronized (mSupplierIds) {
+            if (mSupplierIds.size() >= MAX_SUPPLIER_IDS) {
+                mSupplierIds.clear();
+            }
+            mSupplierIds.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * Forget the interned suppliers, after a transaction that may have created some of them
+     * was rolled back.
+     */
+    void clearSupplierIds() {
+        synchronized (mSupplierIds) {
+            mSupplierIds.clear();
+        }
+    }
+
+    private synchronized long findSupplier(String name, String phone) {
+        SQLiteStatement find = statement(SQL_FIND_SUPPLIER);
+        find.clearBindings();
+        bindString(find, 1, name);
+        bindString(find, 2, phone);
+        try {
+            return find.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Close the compiled statements. They are compiled again if the statements are used after.
+     */
+    synchronized void close() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mDatabase = null;
+    }
+
+    /**
+     * Return the compiled statement for the given SQL, compiled for the database currently
+     * open. Called with the lock of this object.
+     */
+    private SQLiteStatement statement(String sql) {
+        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        if (database != mDatabase) {
+            close();
+            mDatabase = database;
+        }
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = database.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Bind the book columns of the given values to parameters 1 to 5 of the statement.
+     * Missing values are bound as null, and rejected by the CHECK constraints of the tables.
+     */
+    private void bindBook(SQLiteStatement statement, ContentValues values) {
+        // Look up the supplier first, it runs statements of its own
+        long supplierId = supplierId(values.getAsString(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER),
+                values.getAsString(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE));
+
+        statement.clearBindings();
+        bindString(statement, 1, values.getAsString(BookContract.BookEntry.COLUMN_BOOK_TITLE));
+        bindString(statement, 2, values.getAsString(BookContract.BookEntry.COLUMN_BOOK_AUTHOR));
+        Integer price = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_PRICE);
+        if (price != null) {
+            statement.bindLong(3, price);
+        }
+        Integer quantity = values.getAsInteger(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+        if (quantity != null) {
+            statement.bindLong(4, quantity);
+        }
+        statement.bindLong(5, supplierId);
+    }
+
+    /**
+     * {@link SQLiteStatement#bindString} does not accept null.
+     */
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+}
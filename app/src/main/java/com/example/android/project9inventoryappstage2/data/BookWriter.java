@@ -0,0 +1,339 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Applies the writes of the UI to the {@link BookProvider} on a single background thread, so
+ * that the main thread never waits for the disk.
+ * <p>
+ * Writes are applied in the order they are queued. A write that is still queued absorbs the
+ * following writes of the same kind to the same book: sales add up their units, and updates
+ * merge their values, the later ones winning. Ten quick sales of a book thus become a single
+ * sale of ten units. A write to the whole table, e.g. deleting all the books, is never merged
+ * across, and an insert never merges. Neither does an update that expects a version or values
+ * of the book, which must fail or succeed on its own values.
+ * <p>
+ * Each write reports its result to an optional {@link Callback} on the main thread.
+ */
+public class BookWriter {
+
+    public static final String LOG_TAG = BookWriter.class.getSimpleName();
+
+    /**
+     * Receives the result of a write, on the main thread: the URI of the new book for an
+     * insert, or the number of updated or deleted rows. A failed write reports null or 0.
+     */
+    public interface Callback<T> {
+        void onComplete(T result);
+    }
+
+    private static final int INSERT = 0;
+    private static final int UPDATE = 1;
+    private static final int DELETE = 2;
+    private static final int SELL = 3;
+
+    /**
+     * A queued write and the callers it stands for.
+     */
+    private static final class Write {
+
+        final int mKind;
+        final Uri mUri;
+        final ContentValues mValues;
+
+        /**
+         * URI of the only book written, or null if the write may change any book.
+         */
+        Uri mBook;
+
+        /**
+         * Units of each sale merged into this write, in the order of {@link #mCallbacks}.
+         */
+        final List<Integer> mUnits = new ArrayList<>(1);
+        final List<Callback<?>> mCallbacks = new ArrayList<>(1);
+
+        Write(int kind, Uri uri, ContentValues values) {
+            mKind = kind;
+            mUri = uri;
+            mValues = values;
+        }
+    }
+
+    private static BookWriter sInstance;
+
+    private final ContentResolver mResolver;
+    private final Executor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final ArrayDeque<Write> mQueue = new ArrayDeque<>();
+
+    /**
+     * Last queued write of each book, by book URI, while it can still absorb other writes.
+     */
+    private final Map<Uri, Write> mLastWrites = new HashMap<>();
+    private boolean mDraining;
+
+    private long mWritesSubmitted;
+    private long mWritesApplied;
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Return the writer of the application.
+     */
+    public static synchronized BookWriter getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BookWriter(context.getApplicationContext().getContentResolver(),
+                    Executors.newSingleThreadExecutor());
+        }
+        return sInstance;
+    }
+
+    /**
+     * @param executor runs the writes, one at a time
+     */
+    BookWriter(ContentResolver resolver, Executor executor) {
+        mResolver = resolver;
+        mExecutor = executor;
+    }
+
+    /**
+     * Insert a book.
+     *
+     * @param callback may be null
+     */
+    public void insert(ContentValues values, Callback<Uri> callback) {
+        Write write = new Write(INSERT, BookContract.BookEntry.CONTENT_URI, new ContentValues(values));
+        synchronized (this) {
+            write.mCallbacks.add(callback);
+            enqueue(write, null);
+        }
+    }
+
+    /**
+     * Update a book, or all the books for {@link BookContract.BookEntry#CONTENT_URI}.
+     *
+     * @param callback may be null
+     */
+    public void update(Uri uri, ContentValues values, Callback<Integer> callback) {
+        Uri book = bookUri(uri);
+        synchronized (this) {
+            Write write = book == null ? null : mLastWrites.get(book);
+            if (write != null && write.mKind == UPDATE && !isConditional(write.mValues)
+                    && !isConditional(values)) {
+                write.mValues.putAll(values);
+                write.mCallbacks.add(callback);
+                mWritesSubmitted++;
+                return;
+            }
+            write = new Write(UPDATE, uri, new ContentValues(values));
+            write.mCallbacks.add(callback);
+            enqueue(write, book);
+        }
+    }
+
+    /**
+     * Return true if the update only applies to a book that is still at an expected version or
+     * still holds expected values.
+     */
+    private static boolean isConditional(ContentValues values) {
+        for (String key : values.keySet()) {
+            if (key.equals(BookContract.BookEntry.EXPECTED_VERSION)
+                    || key.startsWith(BookContract.BookEntry.EXPECTED_PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Delete a book, or all the books for {@link BookContract.BookEntry#CONTENT_URI}.
+     *
+     * @param callback may be null
+     */
+    public void delete(Uri uri, Callback<Integer> callback) {
+        Write write = new Write(DELETE, uri, null);
+        synchronized (this) {
+            write.mCallbacks.add(callback);
+            enqueue(write, bookUri(uri));
+        }
+    }
+
+    /**
+     * Sell units of a book. The callback receives 0 if there were not enough of them.
+     *
+     * @param callback may be null
+     */
+    public void sell(long id, int units, Callback<Integer> callback) {
+        if (units <= 0) {
+            throw new IllegalArgumentException("Sale requires a positive number of units");
+        }
+        Uri book = ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, id);
+        synchronized (this) {
+            Write write = mLastWrites.get(book);
+            if (write != null && write.mKind == SELL) {
+                write.mUnits.add(units);
+                write.mCallbacks.add(callback);
+                mWritesSubmitted++;
+                return;
+            }
+            write = new Write(SELL, ContentUris.withAppendedId(BookContract.BookEntry.SELL_URI, id), null);
+            write.mUnits.add(units);
+            write.mCallbacks.add(callback);
+            enqueue(write, book);
+        }
+    }
+
+    /**
+     * Number of writes submitted, and number of writes actually made to the provider once
+     * the queued ones were merged.
+     */
+    public synchronized long getWritesSubmitted() {
+        return mWritesSubmitted;
+    }
+
+    public synchronized long getWritesApplied() {
+        return mWritesApplied;
+    }
+
+    /**
+     * Queue a new write, and start the writer thread if it is idle. The caller holds the lock.
+     *
+     * @param book URI of the only book written, or null if the write may change any book
+     */
+    private void enqueue(Write write, Uri book) {
+        mWritesSubmitted++;
+        mQueue.add(write);
+        write.mBook = book;
+        if (book != null) {
+            mLastWrites.put(book, write);
+        } else if (write.mKind != INSERT) {
+            mLastWrites.clear();
+        }
+        if (!mDraining) {
+            mDraining = true;
+            mExecutor.execute(mDrainRunnable);
+        }
+    }
+
+    /**
+     * Apply the queued writes until there are none left. Runs on the writer thread.
+     */
+    private void drain() {
+        while (true) {
+            Write write;
+            synchronized (this) {
+                write = mQueue.poll();
+                if (write == null) {
+                    mDraining = false;
+                    return;
+                }
+                // Past this point the write can no longer absorb others
+                if (write.mBook != null && mLastWrites.get(write.mBook) == write) {
+                    mLastWrites.remove(write.mBook);
+                }
+                mWritesApplied++;
+            }
+            apply(write);
+        }
+    }
+
+    private void apply(Write write) {
+        try {
+            switch (write.mKind) {
+                case INSERT:
+                    deliver(write.mCallbacks, mResolver.insert(write.mUri, write.mValues));
+                    break;
+                case UPDATE:
+                    deliver(write.mCallbacks, mResolver.update(write.mUri, write.mValues, null, null));
+                    break;
+                case DELETE:
+                    deliver(write.mCallbacks, mResolver.delete(write.mUri, null, null));
+                    break;
+                default:
+                    applySell(write);
+                    break;
+            }
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to write " + write.mUri, e);
+            deliver(write.mCallbacks, write.mKind == INSERT ? null : 0);
+        }
+    }
+
+    /**
+     * Sell the units of all the merged sales at once. When there are not enough of them for
+     * all the sales, sell them one sale at a time, in order, as if they had not been merged.
+     */
+    private void applySell(Write write) {
+        int units = 0;
+        for (int sale : write.mUnits) {
+            units += sale;
+        }
+        int rowsUpdated = sell(write.mUri, units);
+        if (rowsUpdated > 0 || write.mUnits.size() == 1) {
+            deliver(write.mCallbacks, rowsUpdated);
+            return;
+        }
+        for (int i = 0; i < write.mUnits.size(); i++) {
+            deliver(write.mCallbacks.subList(i, i + 1), sell(write.mUri, write.mUnits.get(i)));
+        }
+    }
+
+    private int sell(Uri uri, int units) {
+        ContentValues values = new ContentValues(1);
+        values.put(BookContract.BookEntry.SELL_UNITS, units);
+        return mResolver.update(uri, values, null, null);
+    }
+
+    /**
+     * Post the result to each callback on the main thread.
+     */
+    @SuppressWarnings("unchecked")
+    private void deliver(List<Callback<?>> callbacks, final Object result) {
+        for (final Callback<?> callback : callbacks) {
+            if (callback == null) {
+                continue;
+            }
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    ((Callback<Object>) callback).onComplete(result);
+                }
+            });
+        }
+    }
+
+    /**
+     * Return the URI of the book written through the given URI, or null if it is not the URI
+     * of a single book.
+     */
+    private static Uri bookUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() == 2 && BookContract.PATH_BOOKS.equals(segments.get(0))
+                && TextUtils.isDigitsOnly(segments.get(1)) && !segments.get(1).isEmpty()) {
+            return uri;
+        }
+        return null;
+    }
+}
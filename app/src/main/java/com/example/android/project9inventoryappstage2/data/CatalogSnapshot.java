@@ -0,0 +1,713 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * Compact binary copy of the catalogue, i.e. of the {@link #COLUMNS} of every book in id order,
+ * so that the catalogue can show its first screen from a memory-mapped file while SQLite is
+ * still opening. See {@link #read(Context, String[], int)}.
+ * <p>
+ * The {@link BookProvider} marks the books it writes, and a background thread reads them again
+ * and patches them into the file in place. A write that may change any book rebuilds the file.
+ * <p>
+ * The file is big-endian: a header, a fixed-size record per book sorted by id, with room for
+ * more books, and a pool of length-prefixed UTF-8 strings that the records point into.
+ * <pre>
+ * header   magic, format version, database version, generation, pending, count, capacity,
+ *          pool end, garbage (int each)
+ * record   id (long), price, quantity, title offset, author offset (int each)
+ * string   length (int), bytes
+ * </pre>
+ * The generation is odd while records are being patched, and pending is 1 while written books
+ * are not patched yet. Readers ignore the file in both cases.
+ */
+public class CatalogSnapshot {
+
+    public static final String LOG_TAG = CatalogSnapshot.class.getSimpleName();
+
+    /**
+     * Columns held by the snapshot.
+     */
+    public static final List<String> COLUMNS = Arrays.asList(
+            BookContract.BookEntry._ID,
+            BookContract.BookEntry.COLUMN_BOOK_TITLE,
+            BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+            BookContract.BookEntry.COLUMN_BOOK_PRICE,
+            BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+
+    private static final String FILE_NAME = "catalog.snapshot";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x424b534e;
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_FORMAT_VERSION = 4;
+    private static final int OFFSET_DATABASE_VERSION = 8;
+    private static final int OFFSET_GENERATION = 12;
+    private static final int OFFSET_PENDING = 16;
+    private static final int OFFSET_COUNT = 20;
+    private static final int OFFSET_CAPACITY = 24;
+    private static final int OFFSET_POOL_END = 28;
+    private static final int OFFSET_GARBAGE = 32;
+    private static final int HEADER_SIZE = 36;
+
+    private static final int RECORD_ID = 0;
+    private static final int RECORD_PRICE = 8;
+    private static final int RECORD_QUANTITY = 12;
+    private static final int RECORD_TITLE = 16;
+    private static final int RECORD_AUTHOR = 20;
+    private static final int RECORD_SIZE = 24;
+
+    /**
+     * Free record slots and pool bytes left by a rebuild, for the books patched in afterwards.
+     */
+    private static final int MIN_FREE_RECORDS = 64;
+    private static final int MIN_FREE_POOL = 16 * 1024;
+
+    /**
+     * Written books are read again by chunks of this many ids.
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    /**
+     * More written books than this are not patched under the write lock, the file is rebuilt.
+     */
+    private static final int MAX_PATCHED_IDS = 4 * MAX_IDS_PER_QUERY;
+
+    /**
+     * A rebuild reads the books by chunks of this many rows.
+     */
+    private static final int ROWS_PER_QUERY = 1000;
+
+    private static final String[] BOOK_COLUMNS = COLUMNS.toArray(new String[COLUMNS.size()]);
+
+    private final File mFile;
+    private final SQLiteOpenHelper mDbHelper;
+    private final Object mWriteLock;
+    private final Executor mExecutor;
+
+    /**
+     * Mapping of the file, or null until it is rebuilt. Records are only patched by
+     * {@link #refresh()}, under the write lock.
+     */
+    private MappedByteBuffer mBuffer;
+
+    private final TreeSet<Long> mDirtyIds = new TreeSet<>();
+    private boolean mAllDirty;
+    private boolean mPending;
+    private boolean mScheduled;
+
+    private long mPatchCount;
+    private long mRebuildCount;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    /**
+     * Return the snapshot file of the application.
+     */
+    static File getFile(Context context) {
+        return new File(context.getCacheDir(), FILE_NAME);
+    }
+
+    /**
+     * Map the existing file, or schedule a rebuild if it is missing or out of date.
+     *
+     * @param writeLock held by every write to the books until it is committed, so that the
+     *                  books read under it are the committed ones
+     * @param executor  runs the refreshes, one at a time
+     */
+    CatalogSnapshot(File file, SQLiteOpenHelper dbHelper, Object writeLock, Executor executor) {
+        mFile = file;
+        mDbHelper = dbHelper;
+        mWriteLock = writeLock;
+        mExecutor = executor;
+        try {
+            MappedByteBuffer buffer = map(file, FileChannel.MapMode.READ_WRITE);
+            if (isValid(buffer) && buffer.getInt(OFFSET_PENDING) == 0
+                    && buffer.getInt(OFFSET_GENERATION) % 2 == 0) {
+                mBuffer = buffer;
+                return;
+            }
+        } catch (IOException e) {
+            // Missing or unreadable, rebuilt below
+        }
+        invalidateAll();
+    }
+
+    /**
+     * Mark a book as written. It is read again and patched in the background.
+     */
+    synchronized void invalidate(long id) {
+        mDirtyIds.add(id);
+        markPending();
+    }
+
+    /**
+     * Mark every book as written, after a write that may have changed any of them.
+     */
+    synchronized void invalidateAll() {
+        mAllDirty = true;
+        mDirtyIds.clear();
+        markPending();
+    }
+
+    /**
+     * Flag the file until the written books are patched, so that a process killed before then
+     * does not leave a stale snapshot behind, and schedule the refresh. The caller holds the lock.
+     */
+    private void markPending() {
+        if (!mPending && mBuffer != null) {
+            mBuffer.putInt(OFFSET_PENDING, 1);
+        }
+        mPending = true;
+        if (!mScheduled) {
+            mScheduled = true;
+            mExecutor.execute(mRefreshRunnable);
+        }
+    }
+
+    /**
+     * Patch the written books into the file, or rebuild it. Runs on the executor, and from tests.
+     * <p>
+     * Patches read only the written books, under the write lock. A rebuild reads every book
+     * without the lock, then takes it to patch in the books written meanwhile and swap in the
+     * new file, so that writes do not wait for the whole catalogue to be read. Readers that
+     * mapped the old file keep reading it.
+     */
+    void refresh() {
+        synchronized (mWriteLock) {
+            long[] ids;
+            synchronized (this) {
+                mScheduled = false;
+                ids = mBuffer == null ? null : takeDirtyIds();
+                if (ids == null || ids.length > MAX_PATCHED_IDS) {
+                    // The rebuild reads every book again
+                    mAllDirty = false;
+                    mDirtyIds.clear();
+                    ids = null;
+                }
+            }
+            if (ids != null) {
+                try {
+                    if (patch(mDbHelper.getReadableDatabase(), mBuffer, ids)) {
+                        synchronized (this) {
+                            mPatchCount++;
+                        }
+                        clearPending();
+                        return;
+                    }
+                } catch (SQLException e) {
+                    discard(e);
+                    return;
+                }
+            }
+        }
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        MappedByteBuffer buffer;
+        try {
+            buffer = rebuild(mDbHelper.getReadableDatabase(), tempFile);
+        } catch (IOException e) {
+            discard(e);
+            return;
+        } catch (SQLException e) {
+            discard(e);
+            return;
+        }
+
+        synchronized (mWriteLock) {
+            long[] ids;
+            synchronized (this) {
+                ids = takeDirtyIds();
+            }
+            try {
+                // Rebuild again if a write may have changed any book, or if the books written
+                // meanwhile do not fit
+                if (ids == null || !patch(mDbHelper.getReadableDatabase(), buffer, ids)) {
+                    invalidateAll();
+                    deleteTempFile(tempFile);
+                    return;
+                }
+                if (!tempFile.renameTo(mFile)) {
+                    throw new IOException("Failed to replace " + mFile);
+                }
+            } catch (IOException e) {
+                discard(e);
+                return;
+            } catch (SQLException e) {
+                discard(e);
+                return;
+            }
+            synchronized (this) {
+                mBuffer = buffer;
+                mRebuildCount++;
+            }
+            clearPending();
+        }
+    }
+
+    /**
+     * Return the ids of the books written since the last refresh and forget them, or null if
+     * any book may have been written. The caller holds the lock.
+     */
+    private long[] takeDirtyIds() {
+        if (mAllDirty) {
+            return null;
+        }
+        long[] ids = new long[mDirtyIds.size()];
+        int i = 0;
+        for (long id : mDirtyIds) {
+            ids[i++] = id;
+        }
+        mDirtyIds.clear();
+        return ids;
+    }
+
+    /**
+     * Clear the pending flag of the file once no written book is left to patch.
+     */
+    private synchronized void clearPending() {
+        if (!mAllDirty && mDirtyIds.isEmpty()) {
+            mBuffer.putInt(OFFSET_PENDING, 0);
+            mPending = false;
+        }
+    }
+
+    private static void deleteTempFile(File tempFile) {
+        if (!tempFile.delete() && tempFile.exists()) {
+            Log.e(LOG_TAG, "Failed to delete " + tempFile);
+        }
+    }
+
+    /**
+     * Delete the file after a failed refresh. The next write rebuilds it.
+     */
+    private void discard(Exception e) {
+        Log.e(LOG_TAG, "Failed to write the catalogue snapshot", e);
+        synchronized (this) {
+            mBuffer = null;
+        }
+        if (!mFile.delete() && mFile.exists()) {
+            Log.e(LOG_TAG, "Failed to delete the catalogue snapshot");
+        }
+    }
+
+    /**
+     * Number of refreshes that patched the file in place, and that rebuilt it.
+     */
+    synchronized long getPatchCount() {
+        return mPatchCount;
+    }
+
+    synchronized long getRebuildCount() {
+        return mRebuildCount;
+    }
+
+    /**
+     * Read the given books again and patch them into the file. Return false if they do not fit
+     * or if the pool holds too many dead strings, in which case the file needs a rebuild.
+     */
+    private static boolean patch(SQLiteDatabase database, ByteBuffer buffer, long[] ids) {
+        int generation = buffer.getInt(OFFSET_GENERATION);
+        buffer.putInt(OFFSET_GENERATION, generation + 1);
+
+        for (int start = 0; start < ids.length; start += MAX_IDS_PER_QUERY) {
+            long[] chunk = Arrays.copyOfRange(ids, start, Math.min(ids.length, start + MAX_IDS_PER_QUERY));
+            Cursor cursor = database.query(BookContract.BookEntry.TABLE_NAME, BOOK_COLUMNS,
+                    BookContract.BookEntry._ID + " IN (" + join(chunk) + ")", null, null, null,
+                    BookContract.BookEntry._ID);
+            try {
+                // Both the ids and the rows are in id order
+                boolean hasRow = cursor.moveToFirst();
+                for (long id : chunk) {
+                    boolean found = hasRow && cursor.getLong(0) == id;
+                    if (!(found ? putBook(buffer, cursor) : removeBook(buffer, id))) {
+                        return false;
+                    }
+                    if (found) {
+                        hasRow = cursor.moveToNext();
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        int poolStart = poolStart(buffer.getInt(OFFSET_CAPACITY));
+        int poolUsed = buffer.getInt(OFFSET_POOL_END) - poolStart;
+        if (buffer.getInt(OFFSET_GARBAGE) > Math.max(MIN_FREE_POOL, poolUsed) / 2) {
+            return false;
+        }
+        buffer.putInt(OFFSET_GENERATION, generation + 2);
+        return true;
+    }
+
+    /**
+     * Write the book under the cursor into its record, adding the record if it is new.
+     */
+    private static boolean putBook(ByteBuffer buffer, Cursor cursor) {
+        long id = cursor.getLong(0);
+        int count = buffer.getInt(OFFSET_COUNT);
+        int index = search(buffer, count, id);
+        int record;
+        if (index >= 0) {
+            record = recordOffset(index);
+        } else {
+            if (count == buffer.getInt(OFFSET_CAPACITY)) {
+                return false;
+            }
+            index = -index - 1;
+            record = recordOffset(index);
+            moveRecords(buffer, index, index + 1, count - index);
+            buffer.putInt(OFFSET_COUNT, count + 1);
+            buffer.putLong(record + RECORD_ID, id);
+            buffer.putInt(record + RECORD_TITLE, -1);
+            buffer.putInt(record + RECORD_AUTHOR, -1);
+        }
+        buffer.putInt(record + RECORD_PRICE, cursor.getInt(3));
+        buffer.putInt(record + RECORD_QUANTITY, cursor.getInt(4));
+        return putString(buffer, record + RECORD_TITLE, cursor.getString(1))
+                && putString(buffer, record + RECORD_AUTHOR, cursor.getString(2));
+    }
+
+    private static boolean removeBook(ByteBuffer buffer, long id) {
+        int count = buffer.getInt(OFFSET_COUNT);
+        int index = search(buffer, count, id);
+        if (index < 0) {
+            return true;
+        }
+        int record = recordOffset(index);
+        addGarbage(buffer, buffer.getInt(record + RECORD_TITLE));
+        addGarbage(buffer, buffer.getInt(record + RECORD_AUTHOR));
+        moveRecords(buffer, index + 1, index, count - index - 1);
+        buffer.putInt(OFFSET_COUNT, count - 1);
+        return true;
+    }
+
+    /**
+     * Point the field at the given offset to the given string, appending it to the pool unless
+     * the field already holds it.
+     */
+    private static boolean putString(ByteBuffer buffer, int field, String value) {
+        int offset = buffer.getInt(field);
+        byte[] bytes = value == null ? null : value.getBytes(UTF_8);
+        if (offset == -1 ? bytes == null : Arrays.equals(bytes, stringBytes(buffer, offset))) {
+            return true;
+        }
+        int newOffset = -1;
+        if (bytes != null) {
+            newOffset = buffer.getInt(OFFSET_POOL_END);
+            if (newOffset + 4 + bytes.length > buffer.capacity()) {
+                return false;
+            }
+            buffer.putInt(newOffset, bytes.length);
+            for (int i = 0; i < bytes.length; i++) {
+                buffer.put(newOffset + 4 + i, bytes[i]);
+            }
+            buffer.putInt(OFFSET_POOL_END, newOffset + 4 + bytes.length);
+        }
+        addGarbage(buffer, offset);
+        buffer.putInt(field, newOffset);
+        return true;
+    }
+
+    private static void addGarbage(ByteBuffer buffer, int offset) {
+        if (offset != -1) {
+            buffer.putInt(OFFSET_GARBAGE, buffer.getInt(OFFSET_GARBAGE) + 4 + buffer.getInt(offset));
+        }
+    }
+
+    /**
+     * Write every book to the given file, with room for more, and map it. The books are read by
+     * chunks in id order, each chunk after the last id of the previous one, so that a book
+     * written meanwhile does not shift the others: it is read either before or after the write,
+     * and patched by {@link #refresh()} once the rebuild is done.
+     */
+    private static MappedByteBuffer rebuild(SQLiteDatabase database, File tempFile) throws IOException {
+        int count = 0;
+        long[] ids = new long[ROWS_PER_QUERY];
+        int[] prices = new int[ROWS_PER_QUERY];
+        int[] quantities = new int[ROWS_PER_QUERY];
+        byte[][] strings = new byte[2 * ROWS_PER_QUERY][];
+        int poolSize = 0;
+        long lastId = Long.MIN_VALUE;
+        String selection = BookContract.BookEntry._ID + ">?";
+        String limit = String.valueOf(ROWS_PER_QUERY);
+        while (true) {
+            Cursor cursor = database.query(BookContract.BookEntry.TABLE_NAME, BOOK_COLUMNS, selection,
+                    new String[]{String.valueOf(lastId)}, null, null, BookContract.BookEntry._ID, limit);
+            int rows;
+            try {
+                rows = cursor.getCount();
+                if (count + rows > ids.length) {
+                    int length = Math.max(count + rows, ids.length * 2);
+                    ids = Arrays.copyOf(ids, length);
+                    prices = Arrays.copyOf(prices, length);
+                    quantities = Arrays.copyOf(quantities, length);
+                    strings = Arrays.copyOf(strings, 2 * length);
+                }
+                // Encode the strings first, to size the pool
+                while (cursor.moveToNext()) {
+                    ids[count] = cursor.getLong(0);
+                    prices[count] = cursor.getInt(3);
+                    quantities[count] = cursor.getInt(4);
+                    for (int column = 1; column <= 2; column++) {
+                        String value = cursor.getString(column);
+                        byte[] bytes = value == null ? null : value.getBytes(UTF_8);
+                        strings[2 * count + column - 1] = bytes;
+                        poolSize += bytes == null ? 0 : 4 + bytes.length;
+                    }
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rows < ROWS_PER_QUERY) {
+                break;
+            }
+            lastId = ids[count - 1];
+        }
+
+        int capacity = count + Math.max(MIN_FREE_RECORDS, count / 2);
+        RandomAccessFile file = new RandomAccessFile(tempFile, "rw");
+        MappedByteBuffer buffer;
+        try {
+            int poolStart = poolStart(capacity);
+            file.setLength(poolStart + poolSize + Math.max(MIN_FREE_POOL, poolSize / 2));
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, file.length());
+
+            int poolEnd = poolStart;
+            for (int i = 0; i < count; i++) {
+                int record = recordOffset(i);
+                buffer.putLong(record + RECORD_ID, ids[i]);
+                buffer.putInt(record + RECORD_PRICE, prices[i]);
+                buffer.putInt(record + RECORD_QUANTITY, quantities[i]);
+                for (int column = 1; column <= 2; column++) {
+                    byte[] bytes = strings[2 * i + column - 1];
+                    buffer.putInt(record + (column == 1 ? RECORD_TITLE : RECORD_AUTHOR),
+                            bytes == null ? -1 : poolEnd);
+                    if (bytes != null) {
+                        buffer.putInt(poolEnd, bytes.length);
+                        buffer.position(poolEnd + 4);
+                        buffer.put(bytes);
+                        poolEnd += 4 + bytes.length;
+                    }
+                }
+            }
+
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+            buffer.putInt(OFFSET_FORMAT_VERSION, FORMAT_VERSION);
+            buffer.putInt(OFFSET_DATABASE_VERSION, BookDbHelper.DATABASE_VERSION);
+            buffer.putInt(OFFSET_GENERATION, 0);
+            buffer.putInt(OFFSET_PENDING, 1);
+            buffer.putInt(OFFSET_COUNT, count);
+            buffer.putInt(OFFSET_CAPACITY, capacity);
+            buffer.putInt(OFFSET_POOL_END, poolEnd);
+            buffer.putInt(OFFSET_GARBAGE, 0);
+            buffer.force();
+        } finally {
+            file.close();
+        }
+        return buffer;
+    }
+
+    /**
+     * Return the first books of the catalogue in a cursor, with the given columns, read from
+     * the snapshot of the application. Return null if there is no up-to-date snapshot; the
+     * books must then be queried from the {@link BookProvider}.
+     * <p>
+     * Only maps the file and decodes the rows returned, so it can run on the main thread.
+     *
+     * @param projection columns among {@link #COLUMNS}
+     * @param limit      maximum number of books
+     */
+    public static Cursor read(Context context, String[] projection, int limit) {
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = COLUMNS.indexOf(projection[i]);
+            if (columns[i] == -1) {
+                throw new IllegalArgumentException("Column " + projection[i] + " is not in the snapshot");
+            }
+        }
+
+        File file = getFile(context);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = map(file, FileChannel.MapMode.READ_ONLY);
+            if (!isValid(buffer)) {
+                return null;
+            }
+            // A refresh may patch the file meanwhile: retry, then give up
+            for (int attempt = 0; attempt < 3; attempt++) {
+                Cursor cursor = readBooks(buffer, projection, columns, limit);
+                if (cursor != null) {
+                    return cursor;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Failed to read the catalogue snapshot", e);
+        } catch (IndexOutOfBoundsException e) {
+            Log.e(LOG_TAG, "Corrupt catalogue snapshot", e);
+        }
+        return null;
+    }
+
+    /**
+     * Copy the first books into a cursor, or return null if the file is being patched.
+     */
+    private static Cursor readBooks(ByteBuffer buffer, String[] projection, int[] columns, int limit) {
+        int generation = buffer.getInt(OFFSET_GENERATION);
+        if (generation % 2 != 0 || buffer.getInt(OFFSET_PENDING) != 0) {
+            return null;
+        }
+        int count = Math.min(limit, buffer.getInt(OFFSET_COUNT));
+        MatrixCursor cursor = new MatrixCursor(projection, count);
+        Object[] row = new Object[projection.length];
+        for (int i = 0; i < count; i++) {
+            int record = recordOffset(i);
+            for (int j = 0; j < columns.length; j++) {
+                switch (columns[j]) {
+                    case 0:
+                        row[j] = buffer.getLong(record + RECORD_ID);
+                        break;
+                    case 1:
+                        row[j] = readString(buffer, buffer.getInt(record + RECORD_TITLE));
+                        break;
+                    case 2:
+                        row[j] = readString(buffer, buffer.getInt(record + RECORD_AUTHOR));
+                        break;
+                    case 3:
+                        row[j] = buffer.getInt(record + RECORD_PRICE);
+                        break;
+                    default:
+                        row[j] = buffer.getInt(record + RECORD_QUANTITY);
+                        break;
+                }
+            }
+            cursor.addRow(row);
+        }
+        if (buffer.getInt(OFFSET_GENERATION) != generation) {
+            cursor.close();
+            return null;
+        }
+        return cursor;
+    }
+
+    private static String readString(ByteBuffer buffer, int offset) {
+        byte[] bytes = offset == -1 ? null : stringBytes(buffer, offset);
+        return bytes == null ? null : new String(bytes, UTF_8);
+    }
+
+    private static byte[] stringBytes(ByteBuffer buffer, int offset) {
+        int length = buffer.getInt(offset);
+        if (length < 0 || offset + 4 + length > buffer.capacity()) {
+            throw new IndexOutOfBoundsException("String of " + length + " bytes at " + offset);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + 4 + i);
+        }
+        return bytes;
+    }
+
+    private static MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file,
+                mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            // The mapping stays valid once the file is closed
+            return randomAccessFile.getChannel().map(mode, 0, randomAccessFile.length());
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Return true if the buffer holds a snapshot of this format and of the current schema.
+     */
+    private static boolean isValid(ByteBuffer buffer) {
+        return buffer.capacity() >= HEADER_SIZE
+                && buffer.getInt(OFFSET_MAGIC) == MAGIC
+                && buffer.getInt(OFFSET_FORMAT_VERSION) == FORMAT_VERSION
+                && buffer.getInt(OFFSET_DATABASE_VERSION) == BookDbHelper.DATABASE_VERSION
+                && poolStart(buffer.getInt(OFFSET_CAPACITY)) <= buffer.capacity();
+    }
+
+    /**
+     * Return the index of the record of the given book, or (-(insertion point) - 1).
+     */
+    private static int search(ByteBuffer buffer, int count, long id) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = buffer.getLong(recordOffset(middle) + RECORD_ID);
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static void moveRecords(ByteBuffer buffer, int from, int to, int records) {
+        if (records <= 0) {
+            return;
+        }
+        ByteBuffer source = buffer.duplicate();
+        source.limit(recordOffset(from + records));
+        source.position(recordOffset(from));
+        byte[] bytes = new byte[records * RECORD_SIZE];
+        source.get(bytes);
+        ByteBuffer target = buffer.duplicate();
+        target.position(recordOffset(to));
+        target.put(bytes);
+    }
+
+    private static int recordOffset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private static int poolStart(int capacity) {
+        return recordOffset(capacity);
+    }
+
+    private static String join(long[] ids) {
+        StringBuilder builder = new StringBuilder();
+        for (long id : ids) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(id);
+        }
+        return builder.toString();
+    }
+}
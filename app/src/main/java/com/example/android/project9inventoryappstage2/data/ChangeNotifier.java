@@ -0,0 +1,113 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Coalesces the change notifications of {@link BookProvider}.
+ * <p>
+ * Changed URIs are collected for a short window and then notified together, each URI once.
+ * When a window collects too many distinct books, or a change to the whole table, a single
+ * notification on {@link BookContract.BookEntry#CONTENT_URI} is sent instead.
+ * A burst of writes therefore costs observers one reload per window rather than one per write.
+ */
+class ChangeNotifier {
+
+    /**
+     * Above this number of changed books in one window, the whole table is notified.
+     */
+    private static final int MAX_ROW_NOTIFICATIONS = 16;
+
+    private final ContentResolver mResolver;
+    private final long mWindowMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Set<Uri> mPendingUris = new LinkedHashSet<>();
+    private boolean mTableChanged;
+    private boolean mScheduled;
+
+    private long mChangesReceived;
+    private long mNotificationsSent;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param windowMillis how long changes are collected before they are notified
+     */
+    ChangeNotifier(ContentResolver resolver, long windowMillis) {
+        mResolver = resolver;
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Record a change, to be notified at the end of the current window.
+     */
+    synchronized void notifyChange(Uri uri) {
+        mChangesReceived++;
+        if (BookContract.BookEntry.CONTENT_URI.equals(uri)) {
+            mTableChanged = true;
+        } else {
+            mPendingUris.add(uri);
+            if (mPendingUris.size() > MAX_ROW_NOTIFICATIONS) {
+                mTableChanged = true;
+            }
+        }
+        if (mTableChanged) {
+            mPendingUris.clear();
+        }
+
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.postAtTime(mFlushRunnable, this, SystemClock.uptimeMillis() + mWindowMillis);
+        }
+    }
+
+    /**
+     * Notify all the pending changes now, e.g. at the end of a transaction.
+     */
+    void flush() {
+        Uri[] uris;
+        synchronized (this) {
+            mHandler.removeCallbacksAndMessages(this);
+            mScheduled = false;
+            if (mTableChanged) {
+                uris = new Uri[]{BookContract.BookEntry.CONTENT_URI};
+            } else {
+                uris = mPendingUris.toArray(new Uri[mPendingUris.size()]);
+            }
+            mTableChanged = false;
+            mPendingUris.clear();
+            mNotificationsSent += uris.length;
+        }
+
+        // Notify outside of the lock, observers may call back into the provider
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Number of changes recorded since the provider was created.
+     */
+    synchronized long getChangesReceived() {
+        return mChangesReceived;
+    }
+
+    /**
+     * Number of notifications actually sent, i.e. of reloads triggered in the observers.
+     */
+    synchronized long getNotificationsSent() {
+        return mNotificationsSent;
+    }
+}
@@ -0,0 +1,210 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Rolls the sales ledger up into per-minute, per-hour and per-day sums, and reads them.
+ * <p>
+ * The sales are written by {@link BookStatements#sell} alone, so the sell path only pays for
+ * one more insert. The rollup is incremental: it remembers the id of the last sale it
+ * counted and only reads the sales after it, a bounded number at a time. Sales that were
+ * rolled up are removed once they are older than {@link BookContract.SaleEntry#RETENTION_MILLIS}.
+ */
+class SalesLedger {
+
+    static final String STATE_TABLE_NAME = "sales_rollup_state";
+    static final String COLUMN_LAST_SALE_ID = "last_sale_id";
+
+    /**
+     * Sales read by one step of the rollup, in one transaction.
+     */
+    private static final int ROLLUP_STEP = 10000;
+
+    /**
+     * Old sales removed by one statement of the pruning. A step of the rollup runs it until the
+     * sales left are recent, so the pruning keeps up with the rollup.
+     */
+    private static final int PRUNE_STEP = 1000;
+
+    private static final String[] BUCKETS = {
+            BookContract.RollupEntry.BUCKET_MINUTE,
+            BookContract.RollupEntry.BUCKET_HOUR,
+            BookContract.RollupEntry.BUCKET_DAY};
+
+    private static final long[] BUCKET_MILLIS = {60 * 1000L, 60 * 60 * 1000L, 24 * 60 * 60 * 1000L};
+
+    /**
+     * The rollup columns returned by queries, summed over the books.
+     */
+    private static final Map<String, String> PROJECTION_MAP = new HashMap<>();
+
+    static {
+        PROJECTION_MAP.put(BookContract.RollupEntry.COLUMN_BUCKET_START,
+                BookContract.RollupEntry.COLUMN_BUCKET_START);
+        PROJECTION_MAP.put(BookContract.RollupEntry.COLUMN_UNITS,
+                "SUM(" + BookContract.RollupEntry.COLUMN_UNITS + ") AS " + BookContract.RollupEntry.COLUMN_UNITS);
+        PROJECTION_MAP.put(BookContract.RollupEntry.COLUMN_REVENUE,
+                "SUM(" + BookContract.RollupEntry.COLUMN_REVENUE + ") AS " + BookContract.RollupEntry.COLUMN_REVENUE);
+    }
+
+    private static final String[] DEFAULT_PROJECTION = {
+            BookContract.RollupEntry.COLUMN_BUCKET_START,
+            BookContract.RollupEntry.COLUMN_UNITS,
+            BookContract.RollupEntry.COLUMN_REVENUE};
+
+    private SalesLedger() {
+    }
+
+    /**
+     * Roll up all the sales recorded since the last rollup. Return how many there were.
+     */
+    static int rollUp(SQLiteDatabase db) {
+        int total = 0;
+        int rolledUp;
+        do {
+            rolledUp = rollUpStep(db, System.currentTimeMillis());
+            total += rolledUp;
+        } while (rolledUp == ROLLUP_STEP);
+        return total;
+    }
+
+    /**
+     * Roll up at most {@link #ROLLUP_STEP} sales in one transaction.
+     */
+    private static int rollUpStep(SQLiteDatabase db, long now) {
+        String sales = BookContract.SaleEntry.TABLE_NAME;
+        String id = BookContract.SaleEntry._ID;
+        db.beginTransaction();
+        try {
+            long lastId = DatabaseUtils.longForQuery(db,
+                    "SELECT " + COLUMN_LAST_SALE_ID + " FROM " + STATE_TABLE_NAME, null);
+            Cursor range = db.rawQuery("SELECT COUNT(*), MAX(" + id + ") FROM (SELECT " + id + " FROM "
+                            + sales + " WHERE " + id + " > ? ORDER BY " + id + " LIMIT " + ROLLUP_STEP + ")",
+                    new String[]{String.valueOf(lastId)});
+            int count;
+            long endId;
+            try {
+                range.moveToFirst();
+                count = range.getInt(0);
+                endId = range.getLong(1);
+            } finally {
+                range.close();
+            }
+            if (count == 0) {
+                db.setTransactionSuccessful();
+                return 0;
+            }
+
+            String[] idRange = {String.valueOf(lastId), String.valueOf(endId)};
+            for (int i = 0; i < BUCKETS.length; i++) {
+                addToBuckets(db, BUCKETS[i], BUCKET_MILLIS[i], idRange);
+            }
+
+            db.execSQL("UPDATE " + STATE_TABLE_NAME + " SET " + COLUMN_LAST_SALE_ID + " = ?",
+                    new Object[]{endId});
+
+            // The oldest sales come first, so each statement only looks at a bounded number of
+            // them, and stops the loop once it reaches sales that are kept
+            SQLiteStatement prune = db.compileStatement("DELETE FROM " + sales + " WHERE " + id
+                    + " IN (SELECT " + id + " FROM " + sales + " WHERE " + id + " <= ? ORDER BY " + id
+                    + " LIMIT " + PRUNE_STEP + ") AND " + BookContract.SaleEntry.COLUMN_SOLD_AT + " < ?");
+            try {
+                prune.bindLong(1, endId);
+                prune.bindLong(2, now - BookContract.SaleEntry.RETENTION_MILLIS);
+                while (prune.executeUpdateDelete() == PRUNE_STEP) {
+                    // Every sale looked at was old: the next ones may be too
+                }
+            } finally {
+                prune.close();
+            }
+
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Add the sales with an id in the given range (exclusive, inclusive) to the buckets of
+     * the given size.
+     */
+    private static void addToBuckets(SQLiteDatabase db, String bucket, long bucketMillis, String[] idRange) {
+        String start = "(" + BookContract.SaleEntry.COLUMN_SOLD_AT + " / " + bucketMillis + ") * " + bucketMillis;
+        Cursor sums = db.rawQuery("SELECT " + start + ", " + BookContract.SaleEntry.COLUMN_BOOK_ID + ", SUM("
+                + BookContract.SaleEntry.COLUMN_UNITS + "), SUM(" + BookContract.SaleEntry.COLUMN_UNITS + " * "
+                + BookContract.SaleEntry.COLUMN_PRICE + ") FROM " + BookContract.SaleEntry.TABLE_NAME
+                + " WHERE " + BookContract.SaleEntry._ID + " > ? AND " + BookContract.SaleEntry._ID + " <= ?"
+                + " GROUP BY 1, 2", idRange);
+        try {
+            while (sums.moveToNext()) {
+                Object[] key = {bucket, sums.getLong(0), sums.getLong(1)};
+                db.execSQL("INSERT OR IGNORE INTO " + BookContract.RollupEntry.TABLE_NAME + " VALUES (?, ?, ?, 0, 0)",
+                        key);
+                db.execSQL("UPDATE " + BookContract.RollupEntry.TABLE_NAME + " SET "
+                                + BookContract.RollupEntry.COLUMN_UNITS + " = " + BookContract.RollupEntry.COLUMN_UNITS
+                                + " + ?, " + BookContract.RollupEntry.COLUMN_REVENUE + " = "
+                                + BookContract.RollupEntry.COLUMN_REVENUE + " + ? WHERE "
+                                + BookContract.RollupEntry.COLUMN_BUCKET + " = ? AND "
+                                + BookContract.RollupEntry.COLUMN_BUCKET_START + " = ? AND "
+                                + BookContract.RollupEntry.COLUMN_BOOK_ID + " = ?",
+                        new Object[]{sums.getLong(2), sums.getLong(3), key[0], key[1], key[2]});
+            }
+        } finally {
+            sums.close();
+        }
+    }
+
+    /**
+     * Return the sums per bucket of the given size, in the given time range, for all books or
+     * only the given one. Null bounds and book mean no restriction.
+     */
+    static Cursor query(SQLiteDatabase db, String[] projection, String bucket, Long from, Long to, Long bookId) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(BookContract.RollupEntry.TABLE_NAME);
+        builder.setProjectionMap(PROJECTION_MAP);
+        builder.setStrict(true);
+
+        StringBuilder selection = new StringBuilder(BookContract.RollupEntry.COLUMN_BUCKET + " = ?");
+        String[] selectionArgs = new String[4];
+        int argCount = 0;
+        selectionArgs[argCount++] = bucket;
+        if (from != null) {
+            selection.append(" AND ").append(BookContract.RollupEntry.COLUMN_BUCKET_START).append(" >= ?");
+            selectionArgs[argCount++] = String.valueOf(from);
+        }
+        if (to != null) {
+            selection.append(" AND ").append(BookContract.RollupEntry.COLUMN_BUCKET_START).append(" < ?");
+            selectionArgs[argCount++] = String.valueOf(to);
+        }
+        if (bookId != null) {
+            selection.append(" AND ").append(BookContract.RollupEntry.COLUMN_BOOK_ID).append(" = ?");
+            selectionArgs[argCount++] = String.valueOf(bookId);
+        }
+        String[] usedArgs = new String[argCount];
+        System.arraycopy(selectionArgs, 0, usedArgs, 0, argCount);
+
+        return builder.query(db, projection == null ? DEFAULT_PROJECTION : projection, selection.toString(),
+                usedArgs, BookContract.RollupEntry.COLUMN_BUCKET_START, null,
+                BookContract.RollupEntry.COLUMN_BUCKET_START);
+    }
+
+    /**
+     * Return true if the given bucket size is one of the rollup's.
+     */
+    static boolean isBucket(String bucket) {
+        for (String known : BUCKETS) {
+            if (known.equals(bucket)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Follows the quantity of every book to detect when its stock level changes, e.g. when a sale
+ * takes it below its low-stock threshold or to 0.
+ * <p>
+ * The quantities and thresholds are read once, then kept up to date from the write paths of
+ * {@link BookProvider}, which know the change they made. Each write is then evaluated with a
+ * map lookup and without querying the database. A write whose effect is not known, e.g. an
+ * update of many books, calls {@link #invalidate()} and the next write reads them again.
+ * <p>
+ * This class is not thread safe: the provider holds its lock around each write to the
+ * database and the matching call here, so the two cannot be reordered.
+ */
+class StockMonitor {
+
+    static final int LEVEL_OK = 0;
+    static final int LEVEL_LOW = 1;
+    static final int LEVEL_OUT = 2;
+
+    /**
+     * Returned when the stock level of a book did not change.
+     */
+    static final int NO_CHANGE = -1;
+
+    /**
+     * Mutable, so that a sale does not allocate.
+     */
+    private static final class Stock {
+        int mQuantity;
+        /**
+         * Threshold of the book, or -1 for the default one.
+         */
+        int mThreshold;
+    }
+
+    private final int mDefaultThreshold;
+
+    /**
+     * Stock of every book by id, or null until it is loaded.
+     */
+    private Map<Long, Stock> mStock;
+
+    /**
+     * @param defaultThreshold threshold of the books that do not have one
+     */
+    StockMonitor(int defaultThreshold) {
+        mDefaultThreshold = defaultThreshold;
+    }
+
+    boolean isLoaded() {
+        return mStock != null;
+    }
+
+    /**
+     * Read the quantity and threshold of every book.
+     */
+    void load(SQLiteDatabase db) {
+        Cursor cursor = db.query(BookContract.BookEntry.TABLE_NAME, new String[]{
+                        BookContract.BookEntry._ID,
+                        BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
+                        BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD},
+                null, null, null, null, null);
+        try {
+            Map<Long, Stock> stock = new HashMap<>(Math.max(16, cursor.getCount() * 4 / 3 + 1));
+            while (cursor.moveToNext()) {
+                Stock book = new Stock();
+                book.mQuantity = cursor.getInt(1);
+                book.mThreshold = cursor.isNull(2) ? -1 : cursor.getInt(2);
+                stock.put(cursor.getLong(0), book);
+            }
+            mStock = stock;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Forget every book, after a write whose effect on them is not known.
+     */
+    void invalidate() {
+        mStock = null;
+    }
+
+    /**
+     * Record a new book. Return its level if it is already low or out of stock.
+     * A quantity that is not an integer, but that SQLite converted, is read again later.
+     */
+    int onInsert(long id, Integer quantity, Integer threshold) {
+        if (quantity == null) {
+            invalidate();
+            return NO_CHANGE;
+        }
+        Stock book = new Stock();
+        book.mQuantity = quantity;
+        book.mThreshold = threshold == null ? -1 : threshold;
+        mStock.put(id, book);
+        int level = level(book);
+        return level == LEVEL_OK ? NO_CHANGE : level;
+    }
+
+    /**
+     * Record the new quantity and/or threshold of a book. A null threshold stands for the
+     * default one. Return the new level, or {@link #NO_CHANGE}.
+     */
+    int onUpdate(long id, boolean hasQuantity, Integer quantity, boolean hasThreshold, Integer threshold) {
+        Stock book = mStock.get(id);
+        if (book == null) {
+            return NO_CHANGE;
+        }
+        if (hasQuantity && quantity == null) {
+            invalidate();
+            return NO_CHANGE;
+        }
+        int oldLevel = level(book);
+        if (hasQuantity) {
+            book.mQuantity = quantity;
+        }
+        if (hasThreshold) {
+            book.mThreshold = threshold == null ? -1 : threshold;
+        }
+        int level = level(book);
+        return level == oldLevel ? NO_CHANGE : level;
+    }
+
+    /**
+     * Record the sale of units of a book. Return the new level, or {@link #NO_CHANGE}.
+     */
+    int onSell(long id, int units) {
+        Stock book = mStock.get(id);
+        if (book == null) {
+            return NO_CHANGE;
+        }
+        int oldLevel = level(book);
+        book.mQuantity -= units;
+        int level = level(book);
+        return level == oldLevel ? NO_CHANGE : level;
+    }
+
+    void onDelete(long id) {
+        mStock.remove(id);
+    }
+
+    void onDeleteAll() {
+        mStock.clear();
+    }
+
+    private int level(Stock book) {
+        if (book.mQuantity <= 0) {
+            return LEVEL_OUT;
+        }
+        int threshold = book.mThreshold == -1 ? mDefaultThreshold : book.mThreshold;
+        return book.mQuantity < threshold ? LEVEL_LOW : LEVEL_OK;
+    }
+}
@@ -0,0 +1,507 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synchronizes the books with a central inventory server by exchanging deltas only.
+ * <p>
+ * Triggers log every changed book in a change log, under a sequence number that only grows.
+ * A push sends the logged books in batches. For the quantity it sends the change since the
+ * last sync rather than the value, so the server adds up the sales of all the devices instead
+ * of keeping the last write. A pull then fetches the books the server changed after the last
+ * page it returned, and adds the local changes not pushed yet to the server quantities.
+ * <p>
+ * The sync resumes where it stopped. A batch is written to an outbox, in the same
+ * transaction that removes its books from the change log. It is sent again until the server
+ * acknowledges it, and the server ignores a batch it already applied. Each pulled page is
+ * applied in one transaction together with the position of the next page.
+ * <p>
+ * The engine writes to the database directly. {@link BookProvider} runs it while holding the
+ * lock of its writes, and refreshes its caches afterwards.
+ */
+class SyncEngine {
+
+    static final String CHANGES_TABLE_NAME = "book_changes";
+    static final String STATE_TABLE_NAME = "sync_state";
+
+    /**
+     * Columns of the books: the id of the book on all devices, and its quantity as last
+     * agreed with the server.
+     */
+    static final String COLUMN_SYNC_ID = "sync_id";
+    static final String COLUMN_SYNCED_QUANTITY = "synced_quantity";
+
+    static final String COLUMN_SEQ = "seq";
+    static final String COLUMN_BOOK_ID = "book_id";
+    static final String COLUMN_DELETED = "deleted";
+
+    static final String COLUMN_DEVICE_ID = "device_id";
+    static final String COLUMN_PULLED_SEQ = "pulled_seq";
+    static final String COLUMN_OUTBOX = "outbox";
+    static final String COLUMN_OUTBOX_SIZE = "outbox_size";
+
+    static final String PATH_PUSH = "/push";
+    static final String PATH_PULL = "/pull";
+
+    /**
+     * Keys of the payloads that are not book columns.
+     */
+    static final String KEY_DEVICE = "device";
+    static final String KEY_BATCH = "batch";
+    static final String KEY_BOOKS = "books";
+    static final String KEY_DELTA = "delta";
+    static final String KEY_SEQ = "seq";
+    static final String KEY_MORE = "more";
+
+    /**
+     * Books per pushed batch and per pulled page.
+     */
+    static final int BATCH_SIZE = 200;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Sends the payloads to the server and returns its responses.
+     */
+    interface Transport {
+        String post(String path, String body) throws IOException;
+
+        String get(String path) throws IOException;
+    }
+
+    /**
+     * A book as the server sends it.
+     */
+    private static final class RemoteBook {
+        String mSyncId;
+        boolean mDeleted;
+        String mTitle;
+        String mAuthor;
+        int mPrice;
+        int mQuantity;
+        String mSupplier;
+        String mPhone;
+        Integer mThreshold;
+    }
+
+    private final SQLiteOpenHelper mDbHelper;
+    private final BookStatements mStatements;
+    private final Object mWriteLock;
+    private final Transport mTransport;
+
+    private int mBooksPushed;
+    private int mBooksPulled;
+
+    /**
+     * @param statements used to find or create the suppliers of the pulled books
+     * @param writeLock  held around each local transaction
+     */
+    SyncEngine(SQLiteOpenHelper dbHelper, BookStatements statements, Object writeLock, Transport transport) {
+        mDbHelper = dbHelper;
+        mStatements = statements;
+        mWriteLock = writeLock;
+        mTransport = transport;
+    }
+
+    /**
+     * Push all the local changes, then pull all the changes of the server. The quantities are
+     * only merged right once every local delta reached the server, so nothing is pulled if
+     * the push fails.
+     */
+    void sync() throws IOException {
+        push();
+        pull();
+    }
+
+    /**
+     * Number of books sent to and received from the server so far, including those of a sync
+     * that failed half-way.
+     */
+    int getBooksPushed() {
+        return mBooksPushed;
+    }
+
+    int getBooksPulled() {
+        return mBooksPulled;
+    }
+
+    private void push() throws IOException {
+        while (true) {
+            String batch;
+            int size;
+            Cursor state = mDbHelper.getReadableDatabase().rawQuery("SELECT " + COLUMN_OUTBOX + ", "
+                    + COLUMN_OUTBOX_SIZE + " FROM " + STATE_TABLE_NAME, null);
+            try {
+                state.moveToFirst();
+                batch = state.getString(0);
+                size = state.getInt(1);
+            } finally {
+                state.close();
+            }
+
+            if (batch == null) {
+                if (!prepareBatch()) {
+                    return;
+                }
+                continue;
+            }
+
+            mTransport.post(PATH_PUSH, batch);
+            mDbHelper.getWritableDatabase().execSQL("UPDATE " + STATE_TABLE_NAME + " SET "
+                    + COLUMN_OUTBOX + " = NULL, " + COLUMN_OUTBOX_SIZE + " = 0;");
+            mBooksPushed += size;
+        }
+    }
+
+    /**
+     * Move the next books of the change log to the outbox. Their quantity is then considered
+     * synced, as the batch will reach the server sooner or later. Return false if there are
+     * no changes left.
+     */
+    private boolean prepareBatch() throws IOException {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        synchronized (mWriteLock) {
+            db.beginTransaction();
+            try {
+                Cursor changes = db.rawQuery("SELECT c." + COLUMN_SEQ + ", c." + COLUMN_BOOK_ID + ", c."
+                        + COLUMN_SYNC_ID + ", c." + COLUMN_DELETED + ", b." + BookContract.BookEntry._ID
+                        + ", b." + BookContract.BookEntry.COLUMN_BOOK_TITLE
+                        + ", b." + BookContract.BookEntry.COLUMN_BOOK_AUTHOR
+                        + ", b." + BookContract.BookEntry.COLUMN_BOOK_PRICE
+                        + ", b." + BookContract.BookEntry.COLUMN_BOOK_QUANTITY
+                        + ", b." + COLUMN_SYNCED_QUANTITY
+                        + ", b." + BookContract.BookEntry.COLUMN_BOOK_SUPPLIER
+                        + ", b." + BookContract.BookEntry.COLUMN_SUPPLIER_PHONE
+                        + ", b." + BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD
+                        + " FROM " + CHANGES_TABLE_NAME + " c LEFT JOIN " + BookContract.BookEntry.VIEW_NAME
+                        + " b ON b." + BookContract.BookEntry._ID + " = c." + COLUMN_BOOK_ID
+                        + " ORDER BY c." + COLUMN_SEQ + " LIMIT " + BATCH_SIZE, null);
+                long lastSeq;
+                int size;
+                String batch;
+                try {
+                    if (!changes.moveToLast()) {
+                        db.setTransactionSuccessful();
+                        return false;
+                    }
+                    lastSeq = changes.getLong(0);
+                    size = changes.getCount();
+                    batch = writeBatch(db, changes, lastSeq);
+                } finally {
+                    changes.close();
+                }
+
+                db.execSQL("DELETE FROM " + CHANGES_TABLE_NAME + " WHERE " + COLUMN_SEQ + " <= ?",
+                        new Object[]{lastSeq});
+                db.execSQL("UPDATE " + STATE_TABLE_NAME + " SET " + COLUMN_OUTBOX + " = ?, "
+                        + COLUMN_OUTBOX_SIZE + " = ?", new Object[]{batch, size});
+                db.setTransactionSuccessful();
+                return true;
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Write the changed books as a push payload, and record their quantity as synced.
+     */
+    private String writeBatch(SQLiteDatabase db, Cursor changes, long lastSeq) throws IOException {
+        String deviceId = DatabaseUtils.stringForQuery(db,
+                "SELECT " + COLUMN_DEVICE_ID + " FROM " + STATE_TABLE_NAME, null);
+        StringWriter out = new StringWriter();
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name(KEY_DEVICE).value(deviceId);
+        json.name(KEY_BATCH).value(lastSeq);
+        json.name(KEY_BOOKS).beginArray();
+        for (changes.moveToFirst(); !changes.isAfterLast(); changes.moveToNext()) {
+            json.beginObject();
+            json.name(COLUMN_SYNC_ID).value(changes.getString(2));
+            if (changes.getInt(3) != 0 || changes.isNull(4)) {
+                json.name(COLUMN_DELETED).value(true);
+            } else {
+                int quantity = changes.getInt(8);
+                json.name(BookContract.BookEntry.COLUMN_BOOK_TITLE).value(changes.getString(5));
+                json.name(BookContract.BookEntry.COLUMN_BOOK_AUTHOR).value(changes.getString(6));
+                json.name(BookContract.BookEntry.COLUMN_BOOK_PRICE).value(changes.getInt(7));
+                json.name(KEY_DELTA).value(quantity - changes.getInt(9));
+                json.name(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER).value(changes.getString(10));
+                json.name(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE).value(changes.getString(11));
+                if (!changes.isNull(12)) {
+                    json.name(BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD).value(changes.getInt(12));
+                }
+                db.execSQL("UPDATE " + BookContract.BookEntry.TABLE_NAME + " SET " + COLUMN_SYNCED_QUANTITY
+                                + " = ? WHERE " + BookContract.BookEntry._ID + " = ?",
+                        new Object[]{quantity, changes.getLong(1)});
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.close();
+        return out.toString();
+    }
+
+    private void pull() throws IOException {
+        boolean more = true;
+        while (more) {
+            long pulledSeq = DatabaseUtils.longForQuery(mDbHelper.getReadableDatabase(),
+                    "SELECT " + COLUMN_PULLED_SEQ + " FROM " + STATE_TABLE_NAME, null);
+            String page = mTransport.get(PATH_PULL + "?since=" + pulledSeq + "&limit=" + BATCH_SIZE);
+
+            List<RemoteBook> books = new ArrayList<>();
+            long seq = pulledSeq;
+            JsonReader json = new JsonReader(new StringReader(page));
+            more = false;
+            json.beginObject();
+            while (json.hasNext()) {
+                String name = json.nextName();
+                if (KEY_SEQ.equals(name)) {
+                    seq = json.nextLong();
+                } else if (KEY_MORE.equals(name)) {
+                    more = json.nextBoolean();
+                } else if (KEY_BOOKS.equals(name)) {
+                    json.beginArray();
+                    while (json.hasNext()) {
+                        books.add(readBook(json));
+                    }
+                    json.endArray();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+
+            applyPage(books, seq);
+            mBooksPulled += books.size();
+        }
+    }
+
+    private static RemoteBook readBook(JsonReader json) throws IOException {
+        RemoteBook book = new RemoteBook();
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if (json.peek() == JsonToken.NULL) {
+                json.skipValue();
+                continue;
+            }
+            switch (name) {
+                case COLUMN_SYNC_ID:
+                    book.mSyncId = json.nextString();
+                    break;
+                case COLUMN_DELETED:
+                    book.mDeleted = json.nextBoolean();
+                    break;
+                case BookContract.BookEntry.COLUMN_BOOK_TITLE:
+                    book.mTitle = json.nextString();
+                    break;
+                case BookContract.BookEntry.COLUMN_BOOK_AUTHOR:
+                    book.mAuthor = json.nextString();
+                    break;
+                case BookContract.BookEntry.COLUMN_BOOK_PRICE:
+                    book.mPrice = json.nextInt();
+                    break;
+                case BookContract.BookEntry.COLUMN_BOOK_QUANTITY:
+                    book.mQuantity = json.nextInt();
+                    break;
+                case BookContract.BookEntry.COLUMN_BOOK_SUPPLIER:
+                    book.mSupplier = json.nextString();
+                    break;
+                case BookContract.BookEntry.COLUMN_SUPPLIER_PHONE:
+                    book.mPhone = json.nextString();
+                    break;
+                case BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD:
+                    book.mThreshold = json.nextInt();
+                    break;
+                default:
+                    json.skipValue();
+                    break;
+            }
+        }
+        json.endObject();
+        if (book.mSyncId == null) {
+            throw new IOException("Pulled a book without a sync id");
+        }
+        return book;
+    }
+
+    /**
+     * Apply a page of pulled books, and move the pull position past it, in one transaction.
+     */
+    private void applyPage(List<RemoteBook> books, long seq) {
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        synchronized (mWriteLock) {
+            db.beginTransaction();
+            try {
+                for (RemoteBook book : books) {
+                    applyBook(db, book);
+                }
+                db.execSQL("UPDATE " + STATE_TABLE_NAME + " SET " + COLUMN_PULLED_SEQ + " = ?",
+                        new Object[]{seq});
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Apply a pulled book. A book changed locally since the last push keeps its own values,
+     * except for the quantity: the local delta is added to the quantity of the server.
+     * A deletion on the server wins over local changes.
+     */
+    private void applyBook(SQLiteDatabase db, RemoteBook book) {
+        String[] syncIdArgs = {book.mSyncId};
+        long id = -1;
+        int unsynced = 0;
+        Cursor local = db.rawQuery("SELECT " + BookContract.BookEntry._ID + ", "
+                + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ", " + COLUMN_SYNCED_QUANTITY + " FROM "
+                + BookContract.BookEntry.TABLE_NAME + " WHERE " + COLUMN_SYNC_ID + " = ?", syncIdArgs);
+        try {
+            if (local.moveToFirst()) {
+                id = local.getLong(0);
+                unsynced = local.getInt(1) - local.getInt(2);
+            }
+        } finally {
+            local.close();
+        }
+        boolean pending = DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + CHANGES_TABLE_NAME
+                + " WHERE " + COLUMN_SYNC_ID + " = ?", syncIdArgs) > 0;
+
+        String[] idArgs = {String.valueOf(id)};
+        if (id == -1 && pending) {
+            // Deleted here and not pushed yet: the deletion is pushed next
+            return;
+        }
+        if (book.mDeleted) {
+            if (id != -1) {
+                db.delete(BookContract.BookEntry.TABLE_NAME, BookStatements.SELECTION_BY_ID, idArgs);
+            }
+            pending = false;
+        } else {
+            ContentValues row = new ContentValues();
+            row.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, Math.max(0, book.mQuantity + unsynced));
+            row.put(COLUMN_SYNCED_QUANTITY, book.mQuantity);
+            if (!pending) {
+                row.put(BookContract.BookEntry.COLUMN_BOOK_TITLE, book.mTitle);
+                row.put(BookContract.BookEntry.COLUMN_BOOK_AUTHOR, book.mAuthor);
+                row.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, book.mPrice);
+                row.put(BookContract.BookEntry.COLUMN_SUPPLIER_ID, mStatements.supplierId(book.mSupplier, book.mPhone));
+                row.put(BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD, book.mThreshold);
+            }
+            if (id == -1) {
+                row.put(COLUMN_SYNC_ID, book.mSyncId);
+                db.insertOrThrow(BookContract.BookEntry.TABLE_NAME, null, row);
+            } else {
+                db.update(BookContract.BookEntry.TABLE_NAME, row, BookStatements.SELECTION_BY_ID, idArgs);
+            }
+        }
+
+        if (!pending) {
+            // The triggers logged the change just pulled, it must not be pushed back
+            db.delete(CHANGES_TABLE_NAME, COLUMN_SYNC_ID + " = ?", syncIdArgs);
+        }
+    }
+
+    /**
+     * Talks to the server over HTTP. The payloads are JSON, gzipped both ways.
+     */
+    static final class HttpTransport implements Transport {
+
+        private static final int TIMEOUT_MILLIS = 15000;
+
+        private final String mBaseUrl;
+
+        /**
+         * @param baseUrl URL of the server, without a trailing slash
+         */
+        HttpTransport(String baseUrl) {
+            mBaseUrl = baseUrl;
+        }
+
+        @Override
+        public String post(String path, String body) throws IOException {
+            HttpURLConnection connection = open(path);
+            try {
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/json");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                OutputStream out = new GZIPOutputStream(connection.getOutputStream());
+                try {
+                    out.write(body.getBytes(UTF_8));
+                } finally {
+                    out.close();
+                }
+                return read(connection);
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        @Override
+        public String get(String path) throws IOException {
+            HttpURLConnection connection = open(path);
+            try {
+                return read(connection);
+            } finally {
+                connection.disconnect();
+            }
+        }
+
+        private HttpURLConnection open(String path) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) new URL(mBaseUrl + path).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            // Set explicitly, so the response is not decompressed behind our back on some
+            // versions and not on others
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            return connection;
+        }
+
+        private static String read(HttpURLConnection connection) throws IOException {
+            int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                throw new IOException("HTTP " + code + " from " + connection.getURL());
+            }
+            InputStream in = connection.getInputStream();
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+                in = new GZIPInputStream(in);
+            }
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, count);
+                }
+                return new String(bytes.toByteArray(), UTF_8);
+            } finally {
+                in.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.android.project9inventoryappstage2;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.widget.FrameLayout;
+
+import com.example.android.project9inventoryappstage2.data.BookCatalog;
+import com.example.android.project9inventoryappstage2.data.BookContract;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Tests of the binding of the rows of the {@link BookAdapter}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BookAdapterTest {
+
+    private static final String[] PROJECTION = {
+            BookContract.BookEntry._ID,
+            BookContract.BookEntry.COLUMN_BOOK_TITLE,
+            BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+            BookContract.BookEntry.COLUMN_BOOK_PRICE,
+            BookContract.BookEntry.COLUMN_BOOK_QUANTITY};
+
+    private static final int BOOKS = 100;
+    private static final int BINDS = 10000;
+
+    @Test
+    public void bindDoesNotAllocate() {
+        BookAdapter adapter = new BookAdapter(null);
+        adapter.swapCursor(books(0, BOOKS));
+        BookAdapter.BookViewHolder holder = adapter.onCreateViewHolder(
+                new FrameLayout(RuntimeEnvironment.application), 0);
+
+        // The first binds format the prices and grow the buffers of the holder and its views
+        for (int position = 0; position < BOOKS; position++) {
+            adapter.onBindViewHolder(holder, position);
+        }
+
+        long start = allocatedBytes();
+        assumeTrue(start >= 0);
+        for (int i = 0; i < BINDS; i++) {
+            adapter.onBindViewHolder(holder, i % BOOKS);
+        }
+        long allocated = allocatedBytes() - start;
+        // Any allocation per bind would take at least 16 bytes
+        assertTrue(allocated + " bytes allocated by " + BINDS + " binds", allocated < BINDS);
+
+        // The sell button shows whether the book is in stock
+        adapter.onBindViewHolder(holder, 0);
+        assertEquals(0, holder.mSellImageView.getDrawable().getLevel());
+        adapter.onBindViewHolder(holder, 1);
+        assertEquals(1, holder.mSellImageView.getDrawable().getLevel());
+    }
+
+    @Test
+    public void quantityIsFormattedInPlace() {
+        CharArrayBuffer buffer = new CharArrayBuffer(2);
+        int[] quantities = {0, 7, 42, 1000000, -15, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (int quantity : quantities) {
+            BookAdapter.formatQuantity(quantity, buffer);
+            assertEquals(String.valueOf(quantity), new String(buffer.data, 0, buffer.sizeCopied));
+        }
+    }
+
+    @Test
+    public void soldBookKeepsItsQuantityWhenTheNextPageLoads() {
+        BookAdapter adapter = new BookAdapter(null);
+        MatrixCursor firstPage = books(0, BOOKS);
+        adapter.swapCursor(firstPage);
+        BookAdapter.BookViewHolder holder = adapter.onCreateViewHolder(
+                new FrameLayout(RuntimeEnvironment.application), 0);
+
+        // A sale is patched in place
+        MatrixCursor sold = new MatrixCursor(PROJECTION);
+        sold.addRow(book(2, quantity(2) - 1));
+        assertTrue(sold.moveToFirst());
+        assertTrue(adapter.updateBook(3, sold));
+        assertQuantity(adapter, holder, 2, quantity(2) - 1);
+
+        // The next page is appended to the first page as it was read before the sale
+        adapter.swapCursor(new MergeCursor(new Cursor[]{firstPage, books(BOOKS, 2 * BOOKS)}));
+        assertEquals(2 * BOOKS, adapter.getItemCount());
+        assertQuantity(adapter, holder, 2, quantity(2) - 1);
+
+        // Pages read again since hold the latest quantity, here after two more sales
+        MatrixCursor reloaded = new MatrixCursor(PROJECTION);
+        for (int i = 0; i < BOOKS; i++) {
+            reloaded.addRow(book(i, i == 2 ? quantity(2) - 3 : quantity(i)));
+        }
+        adapter.swapCursor(reloaded);
+        assertQuantity(adapter, holder, 2, quantity(2) - 3);
+    }
+
+    @Test
+    public void appendedPageKeepsTheShownBooks() {
+        BookAdapter adapter = new BookAdapter(null);
+        adapter.swapBooks(BookCatalog.from(books(0, BOOKS)));
+        BookAdapter.BookViewHolder holder = adapter.onCreateViewHolder(
+                new FrameLayout(RuntimeEnvironment.application), 0);
+
+        MatrixCursor sold = new MatrixCursor(PROJECTION);
+        sold.addRow(book(2, quantity(2) - 1));
+        assertTrue(sold.moveToFirst());
+        assertTrue(adapter.updateBook(3, sold));
+
+        // A page sorted by the provider in another order than the rows it was read in
+        BookCatalog page = BookCatalog.from(books(BOOKS, 2 * BOOKS))
+                .sortedBy(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, true);
+        adapter.appendBooks(adapter.getBooks().append(page));
+        assertEquals(2 * BOOKS, adapter.getItemCount());
+        assertQuantity(adapter, holder, 2, quantity(2) - 1);
+        for (int position = 0; position < BOOKS; position++) {
+            assertEquals(position + 1, adapter.getItemId(position));
+            assertEquals(page.getId(position), adapter.getItemId(BOOKS + position));
+            assertEquals(page.getTitle(position), adapter.getBooks().getTitle(BOOKS + position));
+        }
+        assertQuantity(adapter, holder, BOOKS, quantity(2 * BOOKS - 1));
+    }
+
+    private static void assertQuantity(BookAdapter adapter, BookAdapter.BookViewHolder holder,
+                                       int position, int quantity) {
+        adapter.onBindViewHolder(holder, position);
+        assertEquals(String.valueOf(quantity), holder.mQuantityTextView.getText().toString());
+    }
+
+    /**
+     * Return the books from the first index, included, to the last one, excluded. Book i has
+     * the id i + 1.
+     */
+    private static MatrixCursor books(int first, int last) {
+        MatrixCursor cursor = new MatrixCursor(PROJECTION, last - first);
+        for (int i = first; i < last; i++) {
+            cursor.addRow(book(i, quantity(i)));
+        }
+        return cursor;
+    }
+
+    private static Object[] book(int index, int quantity) {
+        return new Object[]{index + 1, "Book " + index, "Author " + index % 10, index % 30, quantity};
+    }
+
+    private static int quantity(int position) {
+        return position * 7;
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or -1 when the JVM cannot tell.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
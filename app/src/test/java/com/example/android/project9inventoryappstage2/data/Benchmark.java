@@ -0,0 +1,8 @@
+package com.example.android.project9inventoryappstage2.data;
+
+/**
+ * JUnit category of the benchmarks. The unit tests leave them out, they only run with
+ * {@code -Pbenchmark}, see app/build.gradle.
+ */
+public interface Benchmark {
+}
@@ -0,0 +1,897 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.v4.os.CancellationSignal;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Throughput and latency benchmark of the {@link BookProvider} operations, run on the JVM
+ * with Robolectric's SQLite.
+ * <p>
+ * Each operation is measured against catalogues of every size listed in the
+ * {@code benchmark.sizes} system property. The results (throughput, p50/p99/p999 latency and
+ * bytes allocated per operation on the benchmark thread) are written as JSON to
+ * {@code benchmark.output}, so they can be compared between releases.
+ * <p>
+ * The benchmark is in the {@link Benchmark} category, which the unit tests leave out. It runs
+ * on its own, from 1k to 1M books by default:
+ * <pre>
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark
+ * ./gradlew :app:testDebugUnitTest -Pbenchmark -Dbenchmark.sizes=1000 -Dbenchmark.operations=500
+ * </pre>
+ * The loading of a whole catalogue row by row and in bulk is compared at the sizes of
+ * {@code benchmark.insertSizes}, e.g. {@code -Dbenchmark.insertSizes=10000,100000}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Category(Benchmark.class)
+public class BookProviderBenchmark {
+
+    private static final int[] SIZES = parseSizes(System.getProperty("benchmark.sizes",
+            "1000,10000,100000,1000000"));
+    private static final int OPERATIONS = Integer.getInteger("benchmark.operations", 10000);
+    private static final int[] INSERT_SIZES = parseSizes(System.getProperty("benchmark.insertSizes", "1000"));
+    private static final String OUTPUT = System.getProperty("benchmark.output",
+            "build/benchmark/book-provider.json");
+
+    private static final String[] CATALOG_PROJECTION = {
+            BookContract.BookEntry._ID,
+            BookContract.BookEntry.COLUMN_BOOK_TITLE,
+            BookContract.BookEntry.COLUMN_BOOK_AUTHOR,
+            BookContract.BookEntry.COLUMN_BOOK_PRICE,
+            BookContract.BookEntry.COLUMN_BOOK_QUANTITY};
+
+    private static final List<String> sResults = new ArrayList<>();
+
+    private final Random mRandom = new Random(42);
+    private BookProvider mProvider;
+    private long mMinId;
+    private long mMaxId;
+
+    /**
+     * One measured operation, called with its index.
+     */
+    private interface Operation {
+        void run(int index);
+    }
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(BookProvider.class)
+                .create(BookContract.CONTENT_AUTHORITY).get();
+    }
+
+    @Test
+    public void insert() {
+        for (int size : SIZES) {
+            fill(size);
+            measure("insert", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    mProvider.insert(BookContract.BookEntry.CONTENT_URI, book(index));
+                }
+            });
+        }
+    }
+
+    /**
+     * High-volume writes: each operation inserts a chunk of 100 books in one transaction,
+     * which is how {@link BookImporter} writes.
+     */
+    @Test
+    public void bulkInsert() {
+        for (int size : SIZES) {
+            fill(size);
+            measure("bulk_insert_100", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    ContentValues[] chunk = new ContentValues[100];
+                    for (int i = 0; i < chunk.length; i++) {
+                        chunk[i] = book(index * chunk.length + i);
+                    }
+                    mProvider.bulkInsert(BookContract.BookEntry.CONTENT_URI, chunk);
+                }
+            });
+        }
+    }
+
+    /**
+     * Rows per second of loading a whole catalogue into an empty table, one insert per row
+     * against bulk inserts of 1000 rows.
+     */
+    @Test
+    public void insertThroughput() {
+        for (int size : INSERT_SIZES) {
+            mProvider.delete(BookContract.BookEntry.CONTENT_URI, null, null);
+            long start = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                mProvider.insert(BookContract.BookEntry.CONTENT_URI, book(i));
+            }
+            recordThroughput("insert_rows", size, System.nanoTime() - start);
+
+            mProvider.delete(BookContract.BookEntry.CONTENT_URI, null, null);
+            start = System.nanoTime();
+            fill(size);
+            recordThroughput("bulk_insert_rows", size, System.nanoTime() - start);
+        }
+    }
+
+    @Test
+    public void queryFirstPage() {
+        for (int size : SIZES) {
+            fill(size);
+            measure("query_books_page", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    Uri uri = BookContract.BookEntry.CONTENT_URI.buildUpon()
+                            .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_LIMIT, "50")
+                            .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER,
+                                    String.valueOf(randomId() - 1))
+                            .build();
+                    consume(mProvider.query(uri, CATALOG_PROJECTION, null, null, null));
+                }
+            });
+        }
+    }
+
+    @Test
+    public void queryById() {
+        for (int size : SIZES) {
+            fill(size);
+            measure("query_book_id", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    Uri uri = ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, randomId());
+                    consume(mProvider.query(uri, CATALOG_PROJECTION, null, null, null));
+                }
+            });
+            // The same query, read from the database rather than the book cache
+            mProvider.setBookCacheEnabled(false);
+            try {
+                measure("query_book_id_uncached", size, new Operation() {
+                    @Override
+                    public void run(int index) {
+                        Uri uri = ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, randomId());
+                        consume(mProvider.query(uri, CATALOG_PROJECTION, null, null, null));
+                    }
+                });
+            } finally {
+                mProvider.setBookCacheEnabled(true);
+            }
+        }
+    }
+
+    @Test
+    public void queryBySupplier() {
+        for (int size : SIZES) {
+            fill(size);
+            final long[] supplierIds = supplierIds();
+            measure("query_supplier_books", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    Uri uri = BookContract.SupplierEntry.buildBooksUri(supplierIds[index % supplierIds.length]);
+                    consume(mProvider.query(uri, CATALOG_PROJECTION, null, null, null));
+                }
+            });
+        }
+    }
+
+    /**
+     * The maintained statistics against the scan they replace.
+     */
+    @Test
+    public void queryStats() {
+        for (int size : SIZES) {
+            fill(size);
+            measure("query_book_stats", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    consume(mProvider.query(BookContract.StatsEntry.CONTENT_URI, null, null, null, null));
+                }
+            });
+            measure("query_book_stats_scan", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    consume(mProvider.query(BookContract.BookEntry.CONTENT_URI, new String[]{"COUNT(*)",
+                                    "SUM(" + BookContract.BookEntry.COLUMN_BOOK_PRICE + " * "
+                                            + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + ")"},
+                            null, null, null));
+                }
+            });
+        }
+    }
+
+    @Test
+    public void updateById() {
+        for (int size : SIZES) {
+            fill(size);
+            measure("update_book_id", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    ContentValues values = new ContentValues();
+                    values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, index);
+                    Uri uri = ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, randomId());
+                    mProvider.update(uri, values, null, null);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void sell() {
+        for (int size : SIZES) {
+            fill(size);
+            measure("update_book_sell", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    Uri uri = ContentUris.withAppendedId(BookContract.BookEntry.SELL_URI, randomId());
+                    mProvider.update(uri, null, null, null);
+                }
+            });
+            // A sale and a query of the rollups, which only rolls up the sales recorded since
+            // the previous one: the cost of reading the ledger, not of recording the sales
+            final Uri rollupUri = BookContract.RollupEntry.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(BookContract.RollupEntry.QUERY_PARAMETER_BUCKET,
+                            BookContract.RollupEntry.BUCKET_HOUR)
+                    .build();
+            measure("query_sales_rollup", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    Uri uri = ContentUris.withAppendedId(BookContract.BookEntry.SELL_URI, randomId());
+                    mProvider.update(uri, null, null, null);
+                    consume(mProvider.query(rollupUri, null, null, null, null));
+                }
+            });
+        }
+    }
+
+    /**
+     * Cost of recording a sale in the ledger: the sell statement alone, as a sale was before
+     * the ledger, against the sell of {@link BookStatements} that also inserts the sale, on the
+     * same connection. The difference of their median latencies is recorded as
+     * {@code sell_ledger_overhead}.
+     */
+    @Test
+    public void sellLedgerOverhead() {
+        BookDbHelper helper = new BookDbHelper(RuntimeEnvironment.application);
+        try {
+            final SQLiteDatabase database = helper.getWritableDatabase();
+            final SQLiteStatement sellOnly = database.compileStatement(BookStatements.SQL_SELL_BOOK);
+            final BookStatements statements = new BookStatements(helper);
+            try {
+                for (int size : SIZES) {
+                    fill(size);
+                    long withoutLedger = measure("sell_without_ledger", size, new Operation() {
+                        @Override
+                        public void run(int index) {
+                            database.beginTransactionNonExclusive();
+                            try {
+                                sellOnly.bindLong(1, 1);
+                                sellOnly.bindLong(2, randomId());
+                                sellOnly.bindLong(3, 1);
+                                sellOnly.executeUpdateDelete();
+                                database.setTransactionSuccessful();
+                            } finally {
+                                database.endTransaction();
+                            }
+                        }
+                    });
+                    long withLedger = measure("sell_with_ledger", size, new Operation() {
+                        @Override
+                        public void run(int index) {
+                            statements.sell(randomId(), 1);
+                        }
+                    });
+                    recordOverhead("sell_ledger_overhead", size, withLedger - withoutLedger,
+                            withoutLedger);
+                }
+            } finally {
+                sellOnly.close();
+                statements.close();
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Ten quick sales of one book queued on the {@link BookWriter}, which merges them into a
+     * single sale of ten units. Compare with ten times {@code update_book_sell}.
+     */
+    @Test
+    public void queuedSells() {
+        final List<Runnable> tasks = new ArrayList<>();
+        final BookWriter writer = new BookWriter(RuntimeEnvironment.application.getContentResolver(),
+                new Executor() {
+                    @Override
+                    public void execute(Runnable task) {
+                        tasks.add(task);
+                    }
+                });
+        for (int size : SIZES) {
+            fill(size);
+            measure("sell_10_queued", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    long id = randomId();
+                    for (int i = 0; i < 10; i++) {
+                        writer.sell(id, 1, null);
+                    }
+                    tasks.remove(0).run();
+                }
+            });
+        }
+        assertTrue(writer.getWritesApplied() * 10 == writer.getWritesSubmitted());
+    }
+
+    @Test
+    public void deleteById() {
+        for (int size : SIZES) {
+            fill(size);
+            measure("delete_book_id", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    // Walk the ids in order so every delete removes a row
+                    long id = mMinId + index % (mMaxId - mMinId + 1);
+                    mProvider.delete(ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, id),
+                            null, null);
+                }
+            });
+        }
+    }
+
+    /**
+     * Time to the first screen of the catalogue on a cold start: opening the database and
+     * querying the first page, against reading it from the {@link CatalogSnapshot}. The JVM
+     * has the files in its page cache, so the device gap is wider.
+     */
+    @Test
+    public void coldStartFirstPage() {
+        CatalogSnapshot snapshot = mProvider.getSnapshot();
+        for (int size : SIZES) {
+            fill(size);
+            snapshot.refresh();
+            measure("first_page_database", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    BookDbHelper helper = new BookDbHelper(RuntimeEnvironment.application);
+                    try {
+                        consume(queryFirstPage(helper.getReadableDatabase()));
+                    } finally {
+                        helper.close();
+                    }
+                }
+            });
+            measure("first_page_snapshot", size, new Operation() {
+                @Override
+                public void run(int index) {
+                    consume(CatalogSnapshot.read(RuntimeEnvironment.application, CATALOG_PROJECTION, 50));
+                }
+            });
+
+            // Sales of the first books are patched into the snapshot, without a rebuild
+            long rebuilds = snapshot.getRebuildCount();
+            for (int i = 0; i < 100; i++) {
+                long id = mMinId + mRandom.nextInt(50);
+                mProvider.update(ContentUris.withAppendedId(BookContract.BookEntry.SELL_URI, id), null, null, null);
+            }
+            snapshot.refresh();
+            assertEquals(rebuilds, snapshot.getRebuildCount());
+            BookDbHelper helper = new BookDbHelper(RuntimeEnvironment.application);
+            try {
+                assertSameRows(queryFirstPage(helper.getReadableDatabase()),
+                        CatalogSnapshot.read(RuntimeEnvironment.application, CATALOG_PROJECTION, 50));
+            } finally {
+                helper.close();
+            }
+        }
+    }
+
+    /**
+     * Heap footprint and bind time of the whole catalogue held in a {@link BookCatalog}, against
+     * a {@link MatrixCursor} and the SQLite cursor it is copied from. Binding a row reads its
+     * four fields, as {@code BookAdapter} does. Robolectric's cursor windows live on the Java
+     * heap, unlike the native windows of a device. Run at 100k rows with
+     * {@code -Dbenchmark.sizes=100000}.
+     */
+    @Test
+    public void catalogModel() {
+        for (int size : SIZES) {
+            fill(size);
+            long heap = usedHeap();
+            final Cursor sqliteCursor = mProvider.query(BookContract.BookEntry.CONTENT_URI, CATALOG_PROJECTION,
+                    null, null, BookContract.BookEntry._ID);
+            assertEquals(size, sqliteCursor.getCount());
+            recordFootprint("footprint_cursor_sqlite", size, usedHeap() - heap);
+
+            heap = usedHeap();
+            final MatrixCursor matrixCursor = new MatrixCursor(CATALOG_PROJECTION, size);
+            sqliteCursor.moveToPosition(-1);
+            while (sqliteCursor.moveToNext()) {
+                matrixCursor.addRow(new Object[]{sqliteCursor.getLong(0), sqliteCursor.getString(1),
+                        sqliteCursor.getString(2), sqliteCursor.getInt(3), sqliteCursor.getInt(4)});
+            }
+            recordFootprint("footprint_cursor_matrix", size, usedHeap() - heap);
+
+            heap = usedHeap();
+            final BookCatalog catalog = BookCatalog.from(sqliteCursor);
+            recordFootprint("footprint_catalog", size, usedHeap() - heap);
+
+            try {
+                measure("bind_cursor_sqlite", size, new Operation() {
+                    @Override
+                    public void run(int index) {
+                        bind(sqliteCursor, mRandom.nextInt(sqliteCursor.getCount()));
+                    }
+                });
+                measure("bind_cursor_matrix", size, new Operation() {
+                    @Override
+                    public void run(int index) {
+                        bind(matrixCursor, mRandom.nextInt(matrixCursor.getCount()));
+                    }
+                });
+                final CharArrayBuffer title = new CharArrayBuffer(64);
+                measure("bind_catalog", size, new Operation() {
+                    @Override
+                    public void run(int index) {
+                        int position = mRandom.nextInt(catalog.size());
+                        catalog.copyTitleToBuffer(position, title);
+                        catalog.getAuthor(position);
+                        catalog.getPrice(position);
+                        catalog.getQuantity(position);
+                    }
+                });
+
+                // Sorting and filtering permute the rows without copying them
+                BookCatalog byPrice = catalog.sortedBy(BookContract.BookEntry.COLUMN_BOOK_PRICE, true);
+                for (int position = 1; position < byPrice.size(); position++) {
+                    assertTrue(byPrice.getPrice(position - 1) >= byPrice.getPrice(position));
+                }
+                BookCatalog cheap = catalog.filter(new BookCatalog.Filter() {
+                    @Override
+                    public boolean accept(BookCatalog books, int position) {
+                        return books.getPrice(position) < 10;
+                    }
+                });
+                int cheapBooks = 0;
+                for (int position = 0; position < catalog.size(); position++) {
+                    cheapBooks += catalog.getPrice(position) < 10 ? 1 : 0;
+                }
+                assertEquals(cheapBooks, cheap.size());
+                assertEquals(cheap.getId(cheap.size() - 1),
+                        catalog.getId(catalog.indexOf(cheap.getId(cheap.size() - 1))));
+            } finally {
+                sqliteCursor.close();
+                matrixCursor.close();
+            }
+        }
+    }
+
+    /**
+     * Pages of the catalogue in each sort order and filter. Walking the pages must give the
+     * books of the whole sorted query, and no page query may scan the books table or sort its
+     * rows: each order seeks its index past the last book of the previous page, and the first
+     * page walks the index of its order.
+     */
+    @Test
+    public void sortedPages() {
+        String[] sorts = {BookContract.BookEntry.SORT_ADDED, BookContract.BookEntry.SORT_AUTHOR,
+                BookContract.BookEntry.SORT_PRICE, BookContract.BookEntry.SORT_QUANTITY};
+        String[] filters = {null, BookContract.BookEntry.FILTER_IN_STOCK, BookContract.BookEntry.FILTER_OUT_OF_STOCK};
+        for (int size : SIZES) {
+            fill(size);
+            for (final String sort : sorts) {
+                final Uri[] pages = new Uri[OPERATIONS];
+                for (int i = 0; i < pages.length; i++) {
+                    pages[i] = pageAfter(sort, null, randomId());
+                }
+                measure("query_sorted_page_" + sort, size, new Operation() {
+                    @Override
+                    public void run(int index) {
+                        consume(mProvider.query(pages[index], CATALOG_PROJECTION, null, null, null));
+                    }
+                });
+                assertSameOrder(sort, Math.min(size, 1000));
+            }
+        }
+
+        BookDbHelper helper = new BookDbHelper(RuntimeEnvironment.application);
+        try {
+            for (String sort : sorts) {
+                for (String filter : filters) {
+                    assertIndexedPlan(helper.getReadableDatabase(), sortedPage(sort, filter, null, 0), true);
+                    assertIndexedPlan(helper.getReadableDatabase(), pageAfter(sort, filter, randomId()), false);
+                }
+            }
+        } finally {
+            helper.close();
+        }
+    }
+
+    /**
+     * Search as the user types: a full-text search of the provider for each text against the
+     * narrowing of the books found for the previous text, which must give the same books in
+     * the same order. Run at 100k rows with {@code -Dbenchmark.sizes=100000}.
+     */
+    @Test
+    public void searchAsYouType() {
+        String[] typed = {"Au", "Author", "Author 1", "Author 12", "Author 12 Ti", "Author 12 Title 3"};
+        for (int size : SIZES) {
+            fill(size);
+            BookSearch previous = search(typed[0], null);
+            for (int i = 1; i < typed.length; i++) {
+                final String text = typed[i];
+                final BookSearch last = previous;
+                assertTrue(text, last.canNarrow(text));
+                BookSearch searched = search(text, null);
+                assertSameBooks(text, searched.getBooks(), last.narrow(text).getBooks());
+
+                measure("search_query_" + i, size, new Operation() {
+                    @Override
+                    public void run(int index) {
+                        search(text, null);
+                    }
+                });
+                measure("search_narrow_" + i, size, new Operation() {
+                    @Override
+                    public void run(int index) {
+                        last.narrow(text);
+                    }
+                });
+                previous = searched;
+            }
+            assertTrue(!previous.canNarrow("Author 1"));
+            assertTrue(!previous.canNarrow(previous.getText() + "*"));
+
+            // A cancelled search stops before reading the books
+            CancellationSignal cancelled = new CancellationSignal();
+            cancelled.cancel();
+            assertNull(search("Author", cancelled));
+        }
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        File file = new File(OUTPUT);
+        File directory = file.getAbsoluteFile().getParentFile();
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("[\n");
+            for (int i = 0; i < sResults.size(); i++) {
+                writer.write(sResults.get(i));
+                writer.write(i < sResults.size() - 1 ? ",\n" : "\n");
+            }
+            writer.write("]\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Replace the catalogue with the given number of books.
+     */
+    private void fill(int size) {
+        mProvider.delete(BookContract.BookEntry.CONTENT_URI, null, null);
+        ContentValues[] chunk = new ContentValues[1000];
+        for (int inserted = 0; inserted < size; inserted += chunk.length) {
+            int count = Math.min(chunk.length, size - inserted);
+            for (int i = 0; i < count; i++) {
+                chunk[i] = book(inserted + i);
+            }
+            mProvider.bulkInsert(BookContract.BookEntry.CONTENT_URI,
+                    count == chunk.length ? chunk : Arrays.copyOf(chunk, count));
+        }
+
+        Cursor cursor = mProvider.query(BookContract.BookEntry.CONTENT_URI,
+                new String[]{"MIN(" + BookContract.BookEntry._ID + ")", "MAX(" + BookContract.BookEntry._ID + ")"},
+                null, null, null);
+        try {
+            cursor.moveToFirst();
+            mMinId = cursor.getLong(0);
+            mMaxId = cursor.getLong(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static ContentValues book(int index) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_TITLE, "Title " + index);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_AUTHOR, "Author " + index % 1000);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, index % 100);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, 1000000);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER, "Supplier " + index % 50);
+        values.put(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE, "0212240130");
+        return values;
+    }
+
+    private long[] supplierIds() {
+        Cursor cursor = mProvider.query(BookContract.SupplierEntry.CONTENT_URI,
+                new String[]{BookContract.SupplierEntry._ID}, null, null, null);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long randomId() {
+        return mMinId + (long) (mRandom.nextDouble() * (mMaxId - mMinId + 1));
+    }
+
+    private static Cursor queryFirstPage(SQLiteDatabase database) {
+        return database.query(BookContract.BookEntry.TABLE_NAME, CATALOG_PROJECTION, null, null,
+                null, null, BookContract.BookEntry._ID, "50");
+    }
+
+    /**
+     * Return the page after the book at the given position of the books, or the first page if
+     * the books are null.
+     */
+    private static Uri sortedPage(String sort, String filter, BookCatalog books, int position) {
+        long after = books == null ? 0 : books.getId(position);
+        Uri.Builder builder = BookContract.BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_LIMIT, "50")
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER, String.valueOf(after))
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SORT, sort);
+        if (books != null) {
+            for (String key : books.getSortKeys(sort, position)) {
+                builder.appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER_KEY, key);
+            }
+        }
+        if (filter != null) {
+            builder.appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_FILTER, filter);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Return the page after the book with the given id.
+     */
+    private Uri pageAfter(String sort, String filter, long id) {
+        Cursor cursor = mProvider.query(ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, id),
+                CATALOG_PROJECTION, null, null, null);
+        try {
+            return sortedPage(sort, filter, BookCatalog.from(cursor), 0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Walk the pages of the given sort order until the given number of books and check them
+     * against a single sorted query.
+     */
+    private void assertSameOrder(String sort, int books) {
+        List<Long> paged = new ArrayList<>();
+        Uri next = sortedPage(sort, null, null, 0);
+        while (paged.size() < books) {
+            Cursor page = mProvider.query(next, CATALOG_PROJECTION, null, null, null);
+            try {
+                BookCatalog catalog = BookCatalog.from(page);
+                assertTrue(catalog.size() > 0);
+                for (int position = 0; position < catalog.size(); position++) {
+                    paged.add(catalog.getId(position));
+                }
+                next = sortedPage(sort, null, catalog, catalog.size() - 1);
+            } finally {
+                page.close();
+            }
+        }
+
+        Cursor sorted = mProvider.query(BookContract.BookEntry.CONTENT_URI, new String[]{BookContract.BookEntry._ID},
+                null, null, BookProvider.orderBy(sort));
+        try {
+            for (int i = 0; i < books; i++) {
+                assertTrue(sorted.moveToNext());
+                assertEquals(sort + " at " + i, Long.valueOf(sorted.getLong(0)), paged.get(i));
+            }
+        } finally {
+            sorted.close();
+        }
+    }
+
+    /**
+     * Check the plan of the provider's query of the given page. Every table must be searched on an index or on the row id, and the rows must
+     * come in the order of the index rather than be sorted in a temporary B-tree. The first
+     * page of a sorted order has no book to seek to: it may scan an index in order, which the
+     * limit stops after the page.
+     */
+    private static void assertIndexedPlan(SQLiteDatabase database, Uri page, boolean firstPage) {
+        BookProvider.BooksQuery query = new BookProvider.BooksQuery(page, CATALOG_PROJECTION, null, null, null);
+        Cursor plan = database.rawQuery("EXPLAIN QUERY PLAN " + query.toSql(), query.mSelectionArgs);
+        try {
+            int detail = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext()) {
+                String step = plan.getString(detail);
+                String message = page + ": " + step;
+                boolean usesIndex = step.contains(" USING INDEX ") || step.contains(" USING COVERING INDEX ");
+                assertTrue(message, !step.startsWith("USE TEMP B-TREE"));
+                if (step.startsWith("SEARCH")) {
+                    assertTrue(message, usesIndex || step.contains(" USING INTEGER PRIMARY KEY "));
+                } else if (step.startsWith("SCAN")) {
+                    assertTrue(message, firstPage && usesIndex);
+                }
+            }
+        } finally {
+            plan.close();
+        }
+    }
+
+    private static BookSearch search(String text, CancellationSignal cancellationSignal) {
+        return BookSearch.query(RuntimeEnvironment.application.getContentResolver(), text,
+                CATALOG_PROJECTION, cancellationSignal);
+    }
+
+    private static void assertSameBooks(String text, BookCatalog expected, BookCatalog actual) {
+        assertEquals(text, expected.size(), actual.size());
+        for (int position = 0; position < expected.size(); position++) {
+            assertEquals(text + " at " + position, expected.getId(position), actual.getId(position));
+        }
+    }
+
+    private static void assertSameRows(Cursor expected, Cursor actual) {
+        assertNotNull(actual);
+        try {
+            assertEquals(expected.getCount(), actual.getCount());
+            while (expected.moveToNext() && actual.moveToNext()) {
+                for (int column = 0; column < expected.getColumnCount(); column++) {
+                    assertEquals(expected.getString(column), actual.getString(column));
+                }
+            }
+        } finally {
+            expected.close();
+            actual.close();
+        }
+    }
+
+    private static void bind(Cursor cursor, int position) {
+        cursor.moveToPosition(position);
+        cursor.getString(1);
+        cursor.getString(2);
+        cursor.getInt(3);
+        cursor.getInt(4);
+    }
+
+    /**
+     * Bytes in use on the heap, after a few collections.
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void recordFootprint(String name, int size, long bytes) {
+        String result = String.format(Locale.US,
+                "  {\"operation\": \"%s\", \"size\": %d, \"heapBytes\": %d}", name, size, bytes);
+        System.out.println(result.trim());
+        sResults.add(result);
+    }
+
+    private static void recordThroughput(String name, int rows, long nanos) {
+        String result = String.format(Locale.US,
+                "  {\"operation\": \"%s\", \"size\": %d, \"rowsPerSecond\": %.1f}",
+                name, rows, rows * 1e9 / nanos);
+        System.out.println(result.trim());
+        sResults.add(result);
+    }
+
+    private static void consume(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void recordOverhead(String name, int size, long nanos, long baselineNanos) {
+        String result = String.format(Locale.US,
+                "  {\"operation\": \"%s\", \"size\": %d, \"p50Micros\": %.1f, \"percent\": %.1f}",
+                name, size, nanos / 1e3, 100.0 * nanos / baselineNanos);
+        System.out.println(result.trim());
+        sResults.add(result);
+    }
+
+    /**
+     * Run a warm-up pass, then time each operation and record the result. Return the median
+     * latency, in nanoseconds.
+     */
+    private long measure(String name, int size, Operation operation) {
+        int warmUp = Math.max(1, OPERATIONS / 10);
+        for (int i = 0; i < warmUp; i++) {
+            operation.run(i);
+        }
+
+        long[] latencies = new long[OPERATIONS];
+        long allocatedStart = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < OPERATIONS; i++) {
+            long operationStart = System.nanoTime();
+            operation.run(warmUp + i);
+            latencies[i] = System.nanoTime() - operationStart;
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedStart < 0 ? -1 : (allocatedBytes() - allocatedStart) / OPERATIONS;
+        Arrays.sort(latencies);
+
+        String result = String.format(Locale.US,
+                "  {\"operation\": \"%s\", \"size\": %d, \"operations\": %d, \"opsPerSecond\": %.1f, "
+                        + "\"p50Micros\": %.1f, \"p99Micros\": %.1f, \"p999Micros\": %.1f, "
+                        + "\"allocatedBytesPerOp\": %d}",
+                name, size, OPERATIONS, OPERATIONS * 1e9 / elapsed,
+                percentile(latencies, 0.50) / 1e3, percentile(latencies, 0.99) / 1e3,
+                percentile(latencies, 0.999) / 1e3, allocated);
+        System.out.println(result.trim());
+        sResults.add(result);
+        return percentile(latencies, 0.50);
+    }
+
+    /**
+     * Bytes allocated so far by the current thread, or -1 when the JVM cannot tell (the count
+     * is only available through the HotSpot extension of ThreadMXBean).
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static long percentile(long[] sortedLatencies, double percentile) {
+        int index = (int) Math.ceil(percentile * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, Math.min(index, sortedLatencies.length - 1))];
+    }
+
+    private static int[] parseSizes(String sizes) {
+        String[] parts = sizes.split(",");
+        int[] result = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            result[i] = Integer.parseInt(parts[i].trim());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of the {@link BookProvider} rules that are not covered by the sync tests.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class BookProviderTest {
+
+    private BookProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(BookProvider.class)
+                .create(BookContract.CONTENT_AUTHORITY).get();
+    }
+
+    @Test
+    public void insertWithoutSupplierReportsTheSupplier() {
+        ContentValues values = book("Matilda", 10);
+        values.remove(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER);
+        values.remove(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
+        assertInsertFails(values, "Supplier name required");
+
+        values = book("Matilda", 10);
+        values.remove(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE);
+        assertInsertFails(values, "Supplier phone required");
+    }
+
+    @Test
+    public void cancelledPageIsNotRead() {
+        mProvider.insert(BookContract.BookEntry.CONTENT_URI, book("Matilda", 10));
+        Uri page = BookContract.BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_LIMIT, "20")
+                .build();
+        CancellationSignal cancelled = new CancellationSignal();
+        cancelled.cancel();
+        try {
+            mProvider.query(page, null, null, null, null, cancelled).close();
+            fail("Read a cancelled page");
+        } catch (OperationCanceledException expected) {
+        }
+    }
+
+    @Test
+    public void searchAppliesTheSelection() {
+        mProvider.insert(BookContract.BookEntry.CONTENT_URI, book("Matilda", 10));
+        mProvider.insert(BookContract.BookEntry.CONTENT_URI, book("Matilda the Musical", 0));
+        Uri search = BookContract.BookEntry.SEARCH_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SEARCH, "matil")
+                .build();
+        Cursor cursor = mProvider.query(search, new String[]{BookContract.BookEntry.COLUMN_BOOK_TITLE},
+                BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " > ?", new String[]{"0"}, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals("Matilda", cursor.getString(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void pageAfterDeletedBookStartsInItsPlace() {
+        long[] ids = new long[3];
+        for (int i = 0; i < ids.length; i++) {
+            ContentValues values = book("Matilda " + i, 10);
+            values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, 10 - i);
+            ids[i] = ContentUris.parseId(mProvider.insert(BookContract.BookEntry.CONTENT_URI, values));
+        }
+        // The cheapest book, deleted before the next page is read
+        mProvider.delete(ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, ids[2]), null, null);
+        Uri page = BookContract.BookEntry.CONTENT_URI.buildUpon()
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_SORT, BookContract.BookEntry.SORT_PRICE)
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_LIMIT, "1")
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER, String.valueOf(ids[2]))
+                .appendQueryParameter(BookContract.BookEntry.QUERY_PARAMETER_AFTER_KEY, "8")
+                .build();
+        Cursor cursor = mProvider.query(page, new String[]{BookContract.BookEntry._ID}, null, null, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(ids[1], cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void saleDoesNotConflictWithAnEditOfOtherFields() {
+        Uri book = mProvider.insert(BookContract.BookEntry.CONTENT_URI, book("Matilda", 10));
+        mProvider.update(ContentUris.withAppendedId(BookContract.BookEntry.SELL_URI, ContentUris.parseId(book)),
+                null, null, null);
+
+        ContentValues title = new ContentValues();
+        title.put(BookContract.BookEntry.COLUMN_BOOK_TITLE, "Matilda (Puffin)");
+        title.put(BookContract.BookEntry.expected(BookContract.BookEntry.COLUMN_BOOK_TITLE), "Matilda");
+        assertEquals(1, mProvider.update(book, title, null, null));
+
+        // The edit of the quantity was based on the quantity before the sale
+        ContentValues quantity = new ContentValues();
+        quantity.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, 12);
+        quantity.put(BookContract.BookEntry.expected(BookContract.BookEntry.COLUMN_BOOK_QUANTITY), 10);
+        assertEquals(0, mProvider.update(book, quantity, null, null));
+        quantity.put(BookContract.BookEntry.expected(BookContract.BookEntry.COLUMN_BOOK_QUANTITY), 9);
+        assertEquals(1, mProvider.update(book, quantity, null, null));
+    }
+
+    @Test
+    public void lowStockTitlesUseTheThresholdOfEachBook() {
+        ContentValues values = book("Matilda", 10);
+        values.put(BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD, 20);
+        Uri book = mProvider.insert(BookContract.BookEntry.CONTENT_URI, values);
+        mProvider.insert(BookContract.BookEntry.CONTENT_URI, book("The BFG", 3));
+        assertEquals(2, lowStockTitles());
+
+        ContentValues threshold = new ContentValues();
+        threshold.put(BookContract.BookEntry.COLUMN_LOW_STOCK_THRESHOLD, 5);
+        mProvider.update(book, threshold, null, null);
+        assertEquals(1, lowStockTitles());
+    }
+
+    @Test
+    public void rollupPrunesEveryOldSale() {
+        BookDbHelper helper = new BookDbHelper(RuntimeEnvironment.application);
+        try {
+            SQLiteDatabase db = helper.getWritableDatabase();
+            int sales = 25000;
+            db.beginTransaction();
+            try {
+                for (int i = 0; i < sales; i++) {
+                    // Sold long before the retention period
+                    db.execSQL("INSERT INTO " + BookContract.SaleEntry.TABLE_NAME + " ("
+                                    + BookContract.SaleEntry.COLUMN_BOOK_ID + ", " + BookContract.SaleEntry.COLUMN_UNITS
+                                    + ", " + BookContract.SaleEntry.COLUMN_PRICE + ", "
+                                    + BookContract.SaleEntry.COLUMN_SOLD_AT + ") VALUES (1, 1, 8, ?)",
+                            new Object[]{i});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            assertEquals(sales, SalesLedger.rollUp(db));
+            assertEquals(0, DatabaseUtils.queryNumEntries(db, BookContract.SaleEntry.TABLE_NAME));
+        } finally {
+            helper.close();
+        }
+    }
+
+    private int lowStockTitles() {
+        Cursor cursor = mProvider.query(BookContract.StatsEntry.CONTENT_URI,
+                new String[]{BookContract.StatsEntry.COLUMN_LOW_STOCK_TITLES}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void assertInsertFails(ContentValues values, String message) {
+        try {
+            mProvider.insert(BookContract.BookEntry.CONTENT_URI, values);
+            fail("Inserted " + values);
+        } catch (IllegalArgumentException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    static ContentValues book(String title, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_TITLE, title);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_AUTHOR, "Roald Dahl");
+        values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, 8);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER, "Puffin");
+        values.put(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE, "0212240130");
+        return values;
+    }
+}
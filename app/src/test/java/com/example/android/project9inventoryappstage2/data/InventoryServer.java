@@ -0,0 +1,224 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process stand-in for the central inventory server, speaking the protocol of
+ * {@link SyncEngine} over HTTP on the loopback interface.
+ * <p>
+ * Quantities are the sum of the deltas pushed by all the devices; the other columns keep the
+ * last pushed value. Deleted books stay as tombstones, so that they can be pulled.
+ */
+class InventoryServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final HttpServer mServer;
+
+    /**
+     * Every book by sync id, with the sequence number of its last change.
+     */
+    private final Map<String, JSONObject> mBooks = new HashMap<>();
+    private final Map<String, Long> mLastBatches = new HashMap<>();
+    private long mSeq;
+
+    private boolean mFailNextPush;
+    private int mPushRequests;
+    private long mBytesReceived;
+
+    InventoryServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext(SyncEngine.PATH_PUSH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    push(exchange);
+                } catch (JSONException e) {
+                    respond(exchange, 400, e.toString());
+                }
+            }
+        });
+        mServer.createContext(SyncEngine.PATH_PULL, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    pull(exchange);
+                } catch (JSONException e) {
+                    respond(exchange, 400, e.toString());
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    String getUrl() {
+        return "http://" + mServer.getAddress().getHostString() + ":" + mServer.getAddress().getPort();
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    /**
+     * Apply the next pushed batch, but fail the request as if the connection dropped before
+     * the device received the response.
+     */
+    synchronized void failNextPush() {
+        mFailNextPush = true;
+    }
+
+    synchronized int getPushRequests() {
+        return mPushRequests;
+    }
+
+    synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    synchronized Integer getQuantity(String syncId) throws JSONException {
+        JSONObject book = mBooks.get(syncId);
+        return book == null || book.optBoolean(SyncEngine.COLUMN_DELETED) ? null
+                : book.getInt(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+    }
+
+    private synchronized void push(HttpExchange exchange) throws IOException, JSONException {
+        mPushRequests++;
+        JSONObject batch = new JSONObject(readBody(exchange));
+        String device = batch.getString(SyncEngine.KEY_DEVICE);
+        long batchSeq = batch.getLong(SyncEngine.KEY_BATCH);
+
+        Long lastBatch = mLastBatches.get(device);
+        if (lastBatch == null || batchSeq > lastBatch) {
+            JSONArray books = batch.getJSONArray(SyncEngine.KEY_BOOKS);
+            for (int i = 0; i < books.length(); i++) {
+                apply(books.getJSONObject(i));
+            }
+            mLastBatches.put(device, batchSeq);
+        }
+
+        if (mFailNextPush) {
+            mFailNextPush = false;
+            respond(exchange, 503, "{}");
+            return;
+        }
+        respond(exchange, 200, new JSONObject().put(SyncEngine.KEY_BATCH, batchSeq).toString());
+    }
+
+    private void apply(JSONObject pushed) throws JSONException {
+        String syncId = pushed.getString(SyncEngine.COLUMN_SYNC_ID);
+        JSONObject book = mBooks.get(syncId);
+        if (pushed.optBoolean(SyncEngine.COLUMN_DELETED)) {
+            book = new JSONObject().put(SyncEngine.COLUMN_SYNC_ID, syncId).put(SyncEngine.COLUMN_DELETED, true);
+        } else {
+            int quantity = book == null || book.optBoolean(SyncEngine.COLUMN_DELETED) ? 0
+                    : book.getInt(BookContract.BookEntry.COLUMN_BOOK_QUANTITY);
+            book = new JSONObject(pushed.toString());
+            book.remove(SyncEngine.KEY_DELTA);
+            book.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY,
+                    Math.max(0, quantity + pushed.getInt(SyncEngine.KEY_DELTA)));
+        }
+        book.put(SyncEngine.KEY_SEQ, ++mSeq);
+        mBooks.put(syncId, book);
+    }
+
+    private synchronized void pull(HttpExchange exchange) throws IOException, JSONException {
+        long since = 0;
+        int limit = Integer.MAX_VALUE;
+        String query = exchange.getRequestURI().getQuery();
+        for (String parameter : query == null ? new String[0] : query.split("&")) {
+            String[] pair = parameter.split("=", 2);
+            if (pair[0].equals("since")) {
+                since = Long.parseLong(pair[1]);
+            } else if (pair[0].equals("limit")) {
+                limit = Integer.parseInt(pair[1]);
+            }
+        }
+
+        List<JSONObject> changed = new ArrayList<>();
+        for (JSONObject book : mBooks.values()) {
+            if (book.getLong(SyncEngine.KEY_SEQ) > since) {
+                changed.add(book);
+            }
+        }
+        Collections.sort(changed, new Comparator<JSONObject>() {
+            @Override
+            public int compare(JSONObject a, JSONObject b) {
+                return Long.compare(a.optLong(SyncEngine.KEY_SEQ), b.optLong(SyncEngine.KEY_SEQ));
+            }
+        });
+
+        JSONArray page = new JSONArray();
+        long seq = since;
+        for (int i = 0; i < changed.size() && i < limit; i++) {
+            page.put(changed.get(i));
+            seq = changed.get(i).getLong(SyncEngine.KEY_SEQ);
+        }
+        respond(exchange, 200, new JSONObject()
+                .put(SyncEngine.KEY_SEQ, seq)
+                .put(SyncEngine.KEY_MORE, changed.size() > limit)
+                .put(SyncEngine.KEY_BOOKS, page)
+                .toString());
+    }
+
+    private String readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            bytes.write(buffer, 0, count);
+        }
+        mBytesReceived += bytes.size();
+
+        byte[] body = bytes.toByteArray();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(new ByteArrayInputStream(body));
+            bytes.reset();
+            while ((count = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, count);
+            }
+            body = bytes.toByteArray();
+        }
+        return new String(body, UTF_8);
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Accept-Encoding"))) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            OutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(bytes);
+            gzip.close();
+            bytes = compressed.toByteArray();
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+}
@@ -0,0 +1,204 @@
+package com.example.android.project9inventoryappstage2.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.Bundle;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End-to-end test of the {@link SyncEngine} against the {@link InventoryServer} stand-in, over
+ * HTTP. Device A is the app's {@link BookProvider}; device B is a second database with its
+ * own engine.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class SyncEngineTest {
+
+    private InventoryServer mServer;
+    private BookProvider mProvider;
+    private BookDbHelper mDeviceB;
+    private BookStatements mStatementsB;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new InventoryServer();
+        mProvider = Robolectric.buildContentProvider(BookProvider.class)
+                .create(BookContract.CONTENT_AUTHORITY).get();
+        mDeviceB = new BookDbHelper(RuntimeEnvironment.application, "device_b.db",
+                BookDbHelper.StorageProfile.TUNED);
+        mStatementsB = new BookStatements(mDeviceB);
+    }
+
+    @After
+    public void tearDown() {
+        mServer.stop();
+        mStatementsB.close();
+        mDeviceB.close();
+    }
+
+    @Test
+    public void salesOfTwoDevicesAddUp() throws Exception {
+        Uri book = mProvider.insert(BookContract.BookEntry.CONTENT_URI, book("Matilda", 10));
+        String syncId = syncId(book);
+        syncA();
+        syncB();
+        assertEquals(10, quantityB(syncId));
+
+        sellA(book, 3);
+        assertEquals(1, mStatementsB.sell(idB(syncId), 2));
+        syncA();
+        syncB();
+        syncA();
+
+        assertEquals(Integer.valueOf(5), mServer.getQuantity(syncId));
+        assertEquals(5, quantityA(book));
+        assertEquals(5, quantityB(syncId));
+    }
+
+    @Test
+    public void interruptedPushIsNotAppliedTwice() throws Exception {
+        Uri book = mProvider.insert(BookContract.BookEntry.CONTENT_URI, book("Matilda", 10));
+        String syncId = syncId(book);
+        syncA();
+
+        sellA(book, 4);
+        mServer.failNextPush();
+        Bundle result = mProvider.call(BookContract.METHOD_SYNC, mServer.getUrl(), null);
+        assertNotNull(result.getString(BookContract.EXTRA_SYNC_ERROR));
+
+        // A sale between the failed sync and the next one is pushed in a batch of its own
+        sellA(book, 1);
+        syncA();
+        assertEquals(Integer.valueOf(5), mServer.getQuantity(syncId));
+        assertEquals(5, quantityA(book));
+    }
+
+    @Test
+    public void onlyChangedBooksArePushed() throws Exception {
+        ContentValues[] books = new ContentValues[2 * SyncEngine.BATCH_SIZE + 1];
+        for (int i = 0; i < books.length; i++) {
+            books[i] = book("Book " + i, 10);
+        }
+        mProvider.bulkInsert(BookContract.BookEntry.CONTENT_URI, books);
+        long bytesReceived = mServer.getBytesReceived();
+        assertEquals(books.length, syncA().getInt(BookContract.EXTRA_BOOKS_PUSHED));
+        assertEquals(3, mServer.getPushRequests());
+
+        Uri book = ContentUris.withAppendedId(BookContract.BookEntry.CONTENT_URI, 1);
+        long fullPush = mServer.getBytesReceived() - bytesReceived;
+        sellA(book, 1);
+        bytesReceived = mServer.getBytesReceived();
+        assertEquals(1, syncA().getInt(BookContract.EXTRA_BOOKS_PUSHED));
+        assertEquals(4, mServer.getPushRequests());
+        assertEquals(0, syncA().getInt(BookContract.EXTRA_BOOKS_PUSHED));
+        assertEquals(4, mServer.getPushRequests());
+        // The delta push costs about one book of the full push, not a whole batch
+        long deltaPush = mServer.getBytesReceived() - bytesReceived;
+        assertTrue("Pushed " + deltaPush + " bytes for one book, " + fullPush + " for "
+                + books.length, deltaPush > 0 && deltaPush < 2 * fullPush / books.length);
+
+        // Device B pulls every book, page by page
+        syncB();
+        assertEquals(books.length, DatabaseUtils.queryNumEntries(mDeviceB.getReadableDatabase(),
+                BookContract.BookEntry.TABLE_NAME));
+        assertEquals(9, quantityB(syncId(book)));
+    }
+
+    @Test
+    public void deletionIsPulled() throws Exception {
+        Uri book = mProvider.insert(BookContract.BookEntry.CONTENT_URI, book("Matilda", 10));
+        String syncId = syncId(book);
+        syncA();
+        syncB();
+
+        mProvider.delete(book, null, null);
+        syncA();
+        syncB();
+        assertNull(mServer.getQuantity(syncId));
+        assertEquals(-1, idB(syncId));
+    }
+
+    private Bundle syncA() {
+        Bundle result = mProvider.call(BookContract.METHOD_SYNC, mServer.getUrl(), null);
+        assertFalse(result.containsKey(BookContract.EXTRA_SYNC_ERROR));
+        return result;
+    }
+
+    private void syncB() throws IOException {
+        new SyncEngine(mDeviceB, mStatementsB, new Object(),
+                new SyncEngine.HttpTransport(mServer.getUrl())).sync();
+    }
+
+    private void sellA(Uri book, int units) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.SELL_UNITS, units);
+        Uri uri = ContentUris.withAppendedId(BookContract.BookEntry.SELL_URI, ContentUris.parseId(book));
+        assertEquals(1, mProvider.update(uri, values, null, null));
+    }
+
+    private String syncId(Uri book) {
+        Cursor cursor = mProvider.query(book, new String[]{SyncEngine.COLUMN_SYNC_ID}, null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int quantityA(Uri book) {
+        Cursor cursor = mProvider.query(book, new String[]{BookContract.BookEntry.COLUMN_BOOK_QUANTITY},
+                null, null, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long idB(String syncId) {
+        Cursor cursor = mDeviceB.getReadableDatabase().rawQuery("SELECT " + BookContract.BookEntry._ID
+                + " FROM " + BookContract.BookEntry.TABLE_NAME + " WHERE " + SyncEngine.COLUMN_SYNC_ID + " = ?",
+                new String[]{syncId});
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int quantityB(String syncId) {
+        return (int) DatabaseUtils.longForQuery(mDeviceB.getReadableDatabase(), "SELECT "
+                + BookContract.BookEntry.COLUMN_BOOK_QUANTITY + " FROM " + BookContract.BookEntry.TABLE_NAME
+                + " WHERE " + SyncEngine.COLUMN_SYNC_ID + " = ?", new String[]{syncId});
+    }
+
+    private static ContentValues book(String title, int quantity) {
+        ContentValues values = new ContentValues();
+        values.put(BookContract.BookEntry.COLUMN_BOOK_TITLE, title);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_AUTHOR, "Roald Dahl");
+        values.put(BookContract.BookEntry.COLUMN_BOOK_PRICE, 20);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_QUANTITY, quantity);
+        values.put(BookContract.BookEntry.COLUMN_BOOK_SUPPLIER, "Editorial ART");
+        values.put(BookContract.BookEntry.COLUMN_SUPPLIER_PHONE, "0212240130");
+        return values;
+    }
+}